@@ -0,0 +1,72 @@
+/*
+ * Copyright (c) 2008-2015 Maxifier Ltd. All Rights Reserved.
+ */
+package com.maxifier.mongo;
+
+import javax.annotation.Nullable;
+
+/**
+ * Receiver of serialization and collection operation metrics.
+ * <p>Methods are called from driver and caller threads on hot paths, so implementations
+ * should be thread-safe, non-blocking and cheap. Collection is identified by
+ * {@link com.mongodb.DBCollection#getName()}, null if unknown.</p>
+ *
+ * @see InMemoryMetrics
+ * @see GsonDBCollection#setMetrics(BsonBridgeMetrics)
+ * @see DBObjectDecoder#factory(BsonBridgeMetrics)
+ * @author Konstantin Lyamshin (2015-02-20 11:10)
+ */
+public interface BsonBridgeMetrics {
+    BsonBridgeMetrics NOOP = new BsonBridgeMetrics() {
+        @Override
+        public void operation(@Nullable String collection, String operation) {
+        }
+
+        @Override
+        public void encoded(@Nullable String collection, int bytes, long nanos) {
+        }
+
+        @Override
+        public void decoded(@Nullable String collection, int bytes, long nanos) {
+        }
+
+        @Override
+        public void batch(@Nullable String collection, int documents) {
+        }
+
+        @Override
+        public void cursorWait(@Nullable String collection, long nanos) {
+        }
+
+        @Override
+        public String toString() {
+            return "BsonBridgeMetrics.NOOP";
+        }
+    };
+
+    /**
+     * Collection operation is started, e.g. {@code "insert"} or {@code "find"}.
+     */
+    void operation(@Nullable String collection, String operation);
+
+    /**
+     * Document is encoded to BSON.
+     */
+    void encoded(@Nullable String collection, int bytes, long nanos);
+
+    /**
+     * Document is decoded from BSON.
+     */
+    void decoded(@Nullable String collection, int bytes, long nanos);
+
+    /**
+     * Batch of documents is fetched by cursor or written by bulk operation.
+     */
+    void batch(@Nullable String collection, int documents);
+
+    /**
+     * Cursor is closed after consumer waited for its documents for given time.
+     * Wait time includes decoding unless documents are decoded by prefetch threads.
+     */
+    void cursorWait(@Nullable String collection, long nanos);
+}
@@ -50,11 +50,17 @@ public class BsonReader {
 
     private static final String OBJECT = ".";
     private static final String ARRAY = "#";
+    static final int MAX_RETAINED_BYTES = 8192;
+    static final int MAX_RETAINED_DEPTH = 64;
 
     private String[] path = new String[16];
     private int[] limiters = new int[16];
     private int stack = -1;
 
+    private FieldProfiler profiler; // null if document isn't profiled
+    private Class<?> profiled;
+    private long[] starts; // field start times of profiled document
+
     private int peeked;
 
     private InputStream in;
@@ -65,11 +71,43 @@ public class BsonReader {
 
     // ---- Object initialization and troubleshooting ------------------------------------------------------------------
 
+    /**
+     * Prepares reader for next document. Shared buffers keep grown capacity up to
+     * {@link #MAX_RETAINED_BYTES} and {@link #MAX_RETAINED_DEPTH}, larger ones are released.
+     */
     public void reset(@Nullable InputStream in) {
         this.in = in;
         this.pos = 0;
         this.stack = -1;
         this.peeked = P_NONE;
+        this.profiler = null;
+        this.profiled = null;
+        if (buf.length > MAX_RETAINED_BYTES) {
+            buf = new byte[4];
+        }
+        if (sb.capacity() > MAX_RETAINED_BYTES) {
+            sb = new StringBuilder();
+        }
+        if (path.length > MAX_RETAINED_DEPTH) {
+            path = new String[16];
+            limiters = new int[16];
+            starts = null;
+        }
+    }
+
+    /**
+     * Makes reader attribute decode time of current document to its fields until next reset.
+     * Field time lasts from reading its name till the value is consumed, so it includes
+     * time spent by caller to process the value.
+     *
+     * @param root class of read document
+     */
+    public void profile(FieldProfiler profiler, Class<?> root) {
+        this.profiler = profiler;
+        this.profiled = root;
+        if (starts == null || starts.length < path.length) {
+            starts = new long[path.length];
+        }
     }
 
     public void close() throws IOException {
@@ -79,6 +117,13 @@ public class BsonReader {
         }
     }
 
+    /**
+     * @return number of bytes read since last reset
+     */
+    public int getPosition() {
+        return pos;
+    }
+
     public String getPath() {
         if (stack < 0) {
             return "";
@@ -207,6 +252,12 @@ public class BsonReader {
             int length = path.length * 3 / 2 + 1;
             path = Arrays.copyOf(path, length);
             limiters = Arrays.copyOf(limiters, length);
+            if (starts != null) {
+                starts = Arrays.copyOf(starts, length);
+            }
+        }
+        if (profiler != null) {
+            starts[stack] = System.nanoTime();
         }
 
         if (size < 0) { // copy limiter from parent
@@ -223,6 +274,14 @@ public class BsonReader {
      */
     private int pop() {
         peeked = P_NONE;
+        if (profiler != null) {
+            String item = path[stack];
+            //noinspection StringEquality
+            if (stack == 0 || item != OBJECT && item != ARRAY) { // finished field or document
+                String field = stack > 0? FieldProfiler.fieldPath(path, stack, OBJECT, ARRAY): FieldProfiler.ROOT;
+                profiler.decoded(profiled, field, System.nanoTime() - starts[stack]);
+            }
+        }
         path[stack] = null;
         return limiters[stack--];
     }
@@ -280,6 +339,21 @@ public class BsonReader {
         return field;
     }
 
+    /**
+     * Reads field name and matches it w/o creating a String.
+     *
+     * @return index of matched field, -1 if field is unknown
+     */
+    public int nextName(GsonAdapters.FieldMatcher matcher) throws IOException {
+        if (peek() != P_NAME) {
+            throw new IllegalStateException("Expected Name but was " + toString());
+        }
+        int len = readCStringBytes();
+        int index = matcher.match(buf, 0, len);
+        push(index >= 0? matcher.field(index): parseUTF8(buf, len), -1);
+        return index;
+    }
+
     public void nextNull() throws IOException {
         if (peek() != P_NULL) {
             throw new IllegalStateException("Expected Null but was " + toString());
@@ -461,6 +535,33 @@ public class BsonReader {
         pop(); // finish field
     }
 
+    /**
+     * Reads embedded object or array as raw BSON document w/o parsing it.
+     * Array is read as document with item indexes as field names.
+     */
+    public byte[] nextDocument() throws IOException {
+        int token = peek();
+        if (stack < 0 || token != P_BEGIN_OBJECT && token != P_BEGIN_ARRAY) {
+            throw new IllegalStateException("Expected embedded Object or Array but was " + toString());
+        }
+
+        int length = readInt();
+        if (length < 5 || pos + length - 4 > limiters[stack]) {
+            throw new IllegalStateException("Invalid document length " + length + ": " + toString());
+        }
+        byte[] document = new byte[length];
+        Bits.readFully(in, document, 4, length - 4);
+        pos += length - 4;
+        document[0] = (byte) length;
+        document[1] = (byte) (length >>> 8);
+        document[2] = (byte) (length >>> 16);
+        document[3] = (byte) (length >>> 24);
+
+        pop(); // finish field
+
+        return document;
+    }
+
     public void skipValue() throws IOException {
         switch (peek()) {
             case P_BEGIN_OBJECT:
@@ -566,12 +667,22 @@ public class BsonReader {
 
     @VisibleForTesting
     String readCString() throws IOException {
+        int len = readCStringBytes();
+        return parseUTF8(buf, len);
+    }
+
+    /**
+     * Reads CString into shared buffer.
+     *
+     * @return string length w/o trailing zero
+     */
+    private int readCStringBytes() throws IOException {
         for (int len = 0; true; len++) {
             if (len == buf.length) {
                 buf = Arrays.copyOf(buf, buf.length * 3 / 2);
             }
             if ((buf[len] = readByte()) == 0) {
-                return parseUTF8(buf, len);
+                return len;
             }
         }
     }
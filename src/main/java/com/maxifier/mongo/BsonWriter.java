@@ -25,6 +25,12 @@ import java.util.regex.Pattern;
 public class BsonWriter {
     private static final String OBJECT = ".";
     private static final String ARRAY = "#";
+    private static final ClassValue<ValueKind> VALUE_KINDS = new ClassValue<ValueKind>() {
+        @Override
+        protected ValueKind computeValue(Class<?> type) {
+            return ValueKind.of(type);
+        }
+    };
 
     private OutputBuffer out;
 
@@ -32,11 +38,34 @@ public class BsonWriter {
     private int[] offsets = new int[16];
     private int stack = -1;
 
+    private FieldProfiler profiler; // null if document isn't profiled
+    private Class<?> profiled;
+
     // ---- Object initialization and troubleshooting ------------------------------------------------------------------
 
+    /**
+     * Prepares writer for next document. Path stack keeps grown capacity up to
+     * {@link BsonReader#MAX_RETAINED_DEPTH}, larger one is released.
+     */
     public void reset(@Nullable OutputBuffer out) {
         this.out = out;
         this.stack = -1;
+        this.profiler = null;
+        this.profiled = null;
+        if (path.length > BsonReader.MAX_RETAINED_DEPTH) {
+            path = new String[16];
+            offsets = new int[16];
+        }
+    }
+
+    /**
+     * Makes writer attribute bytes of current document to its fields until next reset.
+     *
+     * @param root class of written document
+     */
+    public void profile(FieldProfiler profiler, Class<?> root) {
+        this.profiler = profiler;
+        this.profiled = root;
     }
 
     public void flush() throws IOException {
@@ -104,8 +133,12 @@ public class BsonWriter {
             throw new IllegalStateException("Value required after name: " + toString());
         }
         out.write(BSON.EOO);
-        out.backpatchSize(out.getPosition() - pop());
+        int offset = pop();
+        out.backpatchSize(out.getPosition() - offset);
         if (stack < 0) {
+            if (profiler != null) {
+                profiler.encoded(profiled, FieldProfiler.ROOT, out.getPosition() - offset);
+            }
             reset(null); // stream finished
         } else {
             next();
@@ -282,14 +315,18 @@ public class BsonWriter {
      * Detect Number type and write a value to the buffer
      */
     public void numberValue(Number n) {
-        if (n instanceof Integer || n instanceof Short || n instanceof Byte || n instanceof AtomicInteger) {
-            intValue(n.intValue());
-        } else if (n instanceof Long || n instanceof AtomicLong) {
-            longValue(n.longValue());
-        } else if (n instanceof Double || n instanceof Float) {
-            doubleValue(n.doubleValue());
-        } else {
-            throw new IllegalArgumentException("Invalid Number class " + n.getClass().getName());
+        switch (VALUE_KINDS.get(n.getClass())) {
+            case INT:
+                intValue(n.intValue());
+                break;
+            case LONG:
+                longValue(n.longValue());
+                break;
+            case DOUBLE:
+                doubleValue(n.doubleValue());
+                break;
+            default:
+                throw new IllegalArgumentException("Invalid Number class " + n.getClass().getName());
         }
     }
 
@@ -299,38 +336,110 @@ public class BsonWriter {
     public void value(Object o) {
         if (o == null) {
             nullValue();
-        } else if (o instanceof Number) {
-            numberValue((Number) o);
-        } else if (o instanceof String) {
-            stringValue(o.toString());
-        } else if (o instanceof Date) {
-            dateValue((Date) o);
-        } else if (o instanceof ObjectId) {
-            objectIdValue((ObjectId) o);
-        } else if (o instanceof Boolean) {
-            booleanValue((Boolean) o);
-        } else if (o instanceof Character) {
-            stringValue(o.toString());
-        } else if (o instanceof Pattern) {
-            regexValue((Pattern) o);
-        } else if (o instanceof Binary) {
-            binaryValue((Binary) o);
-        } else if (o instanceof byte[]) {
-            binaryValue((byte[]) o);
-        } else if (o instanceof UUID) {
-            uuidValue((UUID) o);
-        } else if (o instanceof Symbol) {
-            stringValue(((Symbol) o).getSymbol());
-        } else if (o instanceof BSONTimestamp) {
-            timestampValue((BSONTimestamp) o);
-        } else if (o instanceof Code) {
-            codeValue((Code) o);
-        } else if (o instanceof MinKey) {
-            minkeyValue();
-        } else if (o instanceof MaxKey) {
-            maxkeyValue();
-        } else {
-            throw new IllegalArgumentException("Unknown field type " + o.getClass());
+            return;
+        }
+        switch (VALUE_KINDS.get(o.getClass())) {
+            case INT:
+                intValue(((Number) o).intValue());
+                break;
+            case LONG:
+                longValue(((Number) o).longValue());
+                break;
+            case DOUBLE:
+                doubleValue(((Number) o).doubleValue());
+                break;
+            case NUMBER:
+                numberValue((Number) o); // throws
+                break;
+            case STRING:
+                stringValue(o.toString());
+                break;
+            case DATE:
+                dateValue((Date) o);
+                break;
+            case OBJECT_ID:
+                objectIdValue((ObjectId) o);
+                break;
+            case BOOLEAN:
+                booleanValue((Boolean) o);
+                break;
+            case PATTERN:
+                regexValue((Pattern) o);
+                break;
+            case BINARY:
+                binaryValue((Binary) o);
+                break;
+            case BYTES:
+                binaryValue((byte[]) o);
+                break;
+            case BINARY_UUID:
+                uuidValue((UUID) o);
+                break;
+            case SYMBOL:
+                stringValue(((Symbol) o).getSymbol());
+                break;
+            case TIMESTAMP:
+                timestampValue((BSONTimestamp) o);
+                break;
+            case CODE:
+                codeValue((Code) o);
+                break;
+            case MIN_KEY:
+                minkeyValue();
+                break;
+            case MAX_KEY:
+                maxkeyValue();
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown field type " + o.getClass());
+        }
+    }
+
+    /**
+     * BSON type of value class. Resolved once per class instead of walking {@code instanceof} chain per value.
+     */
+    private enum ValueKind {
+        INT, LONG, DOUBLE, NUMBER, STRING, DATE, OBJECT_ID, BOOLEAN, PATTERN, BINARY, BYTES, BINARY_UUID, SYMBOL,
+        TIMESTAMP, CODE, MIN_KEY, MAX_KEY, UNKNOWN;
+
+        static ValueKind of(Class<?> type) {
+            if (type == Integer.class || type == Short.class || type == Byte.class || AtomicInteger.class.isAssignableFrom(type)) {
+                return INT;
+            } else if (type == Long.class || AtomicLong.class.isAssignableFrom(type)) {
+                return LONG;
+            } else if (type == Double.class || type == Float.class) {
+                return DOUBLE;
+            } else if (Number.class.isAssignableFrom(type)) {
+                return NUMBER;
+            } else if (type == String.class || type == Character.class) {
+                return STRING;
+            } else if (Date.class.isAssignableFrom(type)) {
+                return DATE;
+            } else if (ObjectId.class.isAssignableFrom(type)) {
+                return OBJECT_ID;
+            } else if (type == Boolean.class) {
+                return BOOLEAN;
+            } else if (type == Pattern.class) {
+                return PATTERN;
+            } else if (Binary.class.isAssignableFrom(type)) {
+                return BINARY;
+            } else if (type == byte[].class) {
+                return BYTES;
+            } else if (type == UUID.class) {
+                return BINARY_UUID;
+            } else if (Symbol.class.isAssignableFrom(type)) {
+                return SYMBOL;
+            } else if (BSONTimestamp.class.isAssignableFrom(type)) {
+                return TIMESTAMP;
+            } else if (Code.class.isAssignableFrom(type)) {
+                return CODE;
+            } else if (MinKey.class.isAssignableFrom(type)) {
+                return MIN_KEY;
+            } else if (MaxKey.class.isAssignableFrom(type)) {
+                return MAX_KEY;
+            } else {
+                return UNKNOWN;
+            }
         }
     }
 
@@ -374,6 +483,10 @@ public class BsonWriter {
      * Switches to the next field.
      */
     private void next() {
+        if (profiler != null) {
+            profiler.encoded(profiled, FieldProfiler.fieldPath(path, stack, OBJECT, ARRAY),
+                out.getPosition() - offsets[stack]);
+        }
         if (!isArray()) {
             pop();
             return;
@@ -0,0 +1,84 @@
+/*
+ * Copyright (c) 2008-2015 Maxifier Ltd. All Rights Reserved.
+ */
+package com.maxifier.mongo;
+
+import com.google.common.base.Objects;
+
+import javax.annotation.Nullable;
+
+/**
+ * Value wrapper which stores large field compressed and decompresses it lazily.
+ * <p>Values are compressed by {@link GsonAdapters.CompressedTypeAdapter} when their serialized
+ * size exceeds threshold. Stored value is decompressed on first {@link #get()}, so documents can be
+ * read and written back w/o touching large fields: unread value is written back as is.</p>
+ * <p>Use {@link GsonAdapters#configure(com.google.gson.GsonBuilder)} to install adapter.</p>
+ *
+ * @see GsonAdapters#COMPRESSED_ADAPTER_FACTORY
+ * @author Konstantin Lyamshin (2015-02-25 12:10)
+ */
+public final class Compressed<T> {
+    private T value;
+    private byte[] stored;
+    private GsonAdapters.CompressedTypeAdapter<T> adapter;
+
+    private Compressed(@Nullable T value, @Nullable byte[] stored, @Nullable GsonAdapters.CompressedTypeAdapter<T> adapter) {
+        this.value = value;
+        this.stored = stored;
+        this.adapter = adapter;
+    }
+
+    public static <T> Compressed<T> of(@Nullable T value) {
+        return new Compressed<T>(value, null, null);
+    }
+
+    /**
+     * @param stored compressed value as stored in BSON binary
+     */
+    static <T> Compressed<T> stored(byte[] stored, GsonAdapters.CompressedTypeAdapter<T> adapter) {
+        return new Compressed<T>(null, stored, adapter);
+    }
+
+    /**
+     * Decompresses value on first call.
+     */
+    @Nullable
+    public synchronized T get() {
+        if (stored != null) {
+            value = adapter.decompress(stored);
+            stored = null;
+            adapter = null;
+        }
+        return value;
+    }
+
+    /**
+     * @return true if value isn't compressed or is decompressed already
+     */
+    public synchronized boolean isLoaded() {
+        return stored == null;
+    }
+
+    /**
+     * @return compressed value if it isn't loaded yet
+     */
+    @Nullable
+    synchronized byte[] getStored() {
+        return stored;
+    }
+
+    @Override
+    public boolean equals(@Nullable Object object) {
+        return object == this || object instanceof Compressed && Objects.equal(get(), ((Compressed<?>) object).get());
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hashCode(get());
+    }
+
+    @Override
+    public synchronized String toString() {
+        return stored != null? "Compressed{" + stored.length + " bytes}": "Compressed{" + value + "}";
+    }
+}
@@ -5,11 +5,16 @@ package com.maxifier.mongo;
 
 import com.mongodb.*;
 
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.io.InputStream;
+
 /**
  * DBObjectDecoder
  * <p/>
  * This class extends {@link DefaultDBDecoder} to use {@link DBObjectCallback}.
- * Use {@link DBObjectDecoder#FACTORY} to configure {@link DBCollection}.
+ * Use {@link DBObjectDecoder#FACTORY} to configure {@link DBCollection},
+ * or {@link DBObjectDecoder#factory(BsonBridgeMetrics)} to report decoding metrics.
  * @see DBObjectCallback
  * @see DBCollection#setDBDecoderFactory(com.mongodb.DBDecoderFactory)
  *
@@ -22,8 +27,57 @@ public class DBObjectDecoder extends DefaultDBDecoder {
 		}
 	};
 
+	private final BsonBridgeMetrics metrics;
+
+	public DBObjectDecoder() {
+		this(BsonBridgeMetrics.NOOP);
+	}
+
+	public DBObjectDecoder(BsonBridgeMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	/**
+	 * @return factory of decoders reporting decoded documents to given metrics
+	 */
+	public static DBDecoderFactory factory(final BsonBridgeMetrics metrics) {
+		return new DBDecoderFactory() {
+			public DBDecoder create() {
+				return new DBObjectDecoder(metrics);
+			}
+		};
+	}
+
 	@Override
 	public DBCallback getDBCallback(DBCollection collection) {
 		return new DBObjectCallback(collection);
 	}
+
+	@Override
+	public DBObject decode(byte[] bytes, DBCollection collection) {
+		long start = System.nanoTime();
+		Object event = FlightRecorderEvents.beginDecoded();
+		DBCallback callback = getDBCallback(collection);
+		callback.reset();
+		int size = decode(bytes, callback);
+		decoded(collection, size, System.nanoTime() - start, event, callback.get());
+		return (DBObject) callback.get();
+	}
+
+	@Override
+	public DBObject decode(InputStream in, DBCollection collection) throws IOException {
+		long start = System.nanoTime();
+		Object event = FlightRecorderEvents.beginDecoded();
+		DBCallback callback = getDBCallback(collection);
+		callback.reset();
+		int size = decode(in, callback);
+		decoded(collection, size, System.nanoTime() - start, event, callback.get());
+		return (DBObject) callback.get();
+	}
+
+	private void decoded(DBCollection collection, int size, long nanos, @Nullable Object event, Object document) {
+		String name = collection != null? collection.getName(): null;
+		metrics.decoded(name, size, nanos);
+		FlightRecorderEvents.decoded(event, name, document != null? document.getClass(): DBObject.class, size);
+	}
 }
@@ -0,0 +1,280 @@
+/*
+ * Copyright (c) 2008-2015 Maxifier Ltd. All Rights Reserved.
+ */
+package com.maxifier.mongo;
+
+import com.google.gson.annotations.SerializedName;
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import org.bson.BasicBSONObject;
+
+import javax.annotation.Nullable;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Registry of short stored names of document fields.
+ * <p>Field names are replaced by their aliases when documents are written by {@link GsonWriter}
+ * and restored when they are read by {@link GsonReader}, so Java classes and queries keep
+ * readable names. Aliases are global: a field name has the same alias at any depth of any class,
+ * map keys equal to aliased field names are aliased too.</p>
+ * <p>Aliases are declared explicitly by {@link Builder#alias(String, String)} or generated for all
+ * fields of {@link Builder#register(Class)}ed classes from initials of camel case words, e.g.
+ * {@code customerName} is stored as {@code cn}. Generated alias depends on field name only, so
+ * it's stable when classes change. {@link Builder#build()} fails if two fields share stored name;
+ * declare explicit alias for one of them to fix it.</p>
+ * <p>Queries, updates, projections and sorts passed to {@link GsonDBCollection} are translated by
+ * {@link #translate(DBObject)}. Field names of values which are written by encoder itself
+ * ({@link GsonWrapper}, {@link GsonDBObject}, {@link DBObjectSerializer}) aren't translated, they
+ * are aliased when written, like names of inserted documents.</p>
+ *
+ * @see GsonDBCollection#setAliases(FieldAliases)
+ * @author Konstantin Lyamshin (2015-02-24 11:30)
+ */
+public final class FieldAliases {
+    private final Map<String, String> stored;
+    private final Map<String, String> fields;
+
+    private FieldAliases(Map<String, String> stored) {
+        this.stored = stored;
+        this.fields = new HashMap<String, String>(stored.size());
+        for (Map.Entry<String, String> entry : stored.entrySet()) {
+            fields.put(entry.getValue(), entry.getKey());
+        }
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * @return stored name of field
+     */
+    public String stored(String field) {
+        String alias = stored.get(field);
+        return alias != null? alias: field;
+    }
+
+    /**
+     * @return field name by stored name
+     */
+    public String field(String stored) {
+        String field = fields.get(stored);
+        return field != null? field: stored;
+    }
+
+    /**
+     * @return stored names by field names
+     */
+    public Map<String, String> getAliases() {
+        return Collections.unmodifiableMap(new TreeMap<String, String>(stored));
+    }
+
+    /**
+     * Translates field names of query, update, projection or sort to stored names.
+     * Dotted paths are translated item by item, operators and array indexes are kept.
+     *
+     * @return translated copy of query, or the same query if there is nothing to translate
+     */
+    @Nullable
+    public DBObject translate(@Nullable DBObject query) {
+        if (query == null || stored.isEmpty() || !isTranslated(query)) {
+            return query;
+        }
+        return (DBObject) translateValue(query);
+    }
+
+    private Object translateValue(@Nullable Object value) {
+        if (value instanceof List && isTranslated(value)) {
+            BasicDBList list = new BasicDBList();
+            for (Object item : (List<?>) value) {
+                list.add(translateValue(item));
+            }
+            return list;
+        }
+        if (value instanceof Object[]) {
+            Object[] array = (Object[]) value;
+            Object[] result = new Object[array.length];
+            for (int i = 0; i < array.length; i++) {
+                result[i] = translateValue(array[i]);
+            }
+            return result;
+        }
+        if (value instanceof DBObject && isTranslated(value)) {
+            DBObject object = (DBObject) value;
+            BasicDBObject result = new BasicDBObject();
+            for (String key : object.keySet()) {
+                result.put(translatePath(key), translateValue(object.get(key)));
+            }
+            return result;
+        }
+        return value;
+    }
+
+    /**
+     * @return true if value is plain DBObject, names of other values are aliased by encoder
+     */
+    private static boolean isTranslated(Object value) {
+        return value instanceof BasicBSONObject || value instanceof ValueDBObject || value instanceof List;
+    }
+
+    private String translatePath(String path) {
+        if (path.startsWith("$")) {
+            return path;
+        }
+        if (path.indexOf('.') < 0) {
+            return stored(path);
+        }
+        StringBuilder sb = new StringBuilder(path.length());
+        for (String item : path.split("\\.", -1)) {
+            if (sb.length() > 0) {
+                sb.append('.');
+            }
+            sb.append(item.startsWith("$") || isIndex(item)? item: stored(item));
+        }
+        return sb.toString();
+    }
+
+    private static boolean isIndex(String item) {
+        for (int i = 0; i < item.length(); i++) {
+            if (!Character.isDigit(item.charAt(i))) {
+                return false;
+            }
+        }
+        return !item.isEmpty();
+    }
+
+    @Override
+    public String toString() {
+        return "FieldAliases" + getAliases();
+    }
+
+    /**
+     * Generates alias from initials of camel case words, e.g. {@code customerName} to {@code cn}.
+     */
+    static String initials(String field) {
+        StringBuilder sb = new StringBuilder();
+        boolean boundary = true;
+        for (int i = 0; i < field.length(); i++) {
+            char c = field.charAt(i);
+            if (!Character.isLetterOrDigit(c)) {
+                boundary = true;
+            } else if (boundary || Character.isUpperCase(c) && !Character.isUpperCase(field.charAt(i - 1))) {
+                sb.append(Character.toLowerCase(c));
+                boundary = false;
+            }
+        }
+        return sb.length() > 0? sb.toString(): field;
+    }
+
+    public static class Builder {
+        private final Map<String, String> explicit = new LinkedHashMap<String, String>();
+        private final Set<String> registered = new HashSet<String>();
+        private final Set<Class<?>> classes = new HashSet<Class<?>>();
+
+        private Builder() { }
+
+        /**
+         * Declares explicit stored name of field.
+         */
+        public Builder alias(String field, String stored) {
+            checkName(field);
+            checkName(stored);
+            if (field.equals("_id")) {
+                throw new IllegalArgumentException("Can't alias _id field");
+            }
+            String previous = explicit.put(field, stored);
+            if (previous != null && !previous.equals(stored)) {
+                throw new IllegalArgumentException("Field " + field + " is already aliased as " + previous);
+            }
+            return this;
+        }
+
+        /**
+         * Generates aliases for fields of class and its nested classes which aren't aliased explicitly.
+         * Field names are taken from {@link SerializedName} or Java names.
+         */
+        public Builder register(Class<?> clazz) {
+            collect(clazz);
+            return this;
+        }
+
+        private void collect(Class<?> clazz) {
+            String name = clazz.getName();
+            if (clazz.isPrimitive() || clazz.isEnum() || name.startsWith("java.") ||
+                name.startsWith("org.bson.") || name.startsWith("com.mongodb.") || !classes.add(clazz)) {
+                return;
+            }
+            for (Class<?> c = clazz; c != null && c != Object.class && c != GsonDBObject.class; c = c.getSuperclass()) {
+                for (Field field : c.getDeclaredFields()) {
+                    int modifiers = field.getModifiers();
+                    if (Modifier.isStatic(modifiers) || Modifier.isTransient(modifiers) || field.isSynthetic() ||
+                        field.isAnnotationPresent(Id.class)) {
+                        continue;
+                    }
+                    SerializedName serializedName = field.getAnnotation(SerializedName.class);
+                    registered.add(serializedName != null? serializedName.value(): field.getName());
+                    Class<?> nested = GsonProjection.nestedClass(field.getGenericType());
+                    if (nested != null) {
+                        collect(nested);
+                    }
+                }
+            }
+        }
+
+        /**
+         * @throws IllegalStateException if stored names collide
+         */
+        public FieldAliases build() {
+            Map<String, String> aliases = new HashMap<String, String>(explicit);
+            for (String field : registered) {
+                if (!aliases.containsKey(field) && !field.equals("_id") && !field.startsWith("$")) {
+                    String alias = initials(field);
+                    if (!alias.equals(field)) {
+                        aliases.put(field, alias);
+                    }
+                }
+            }
+
+            // Stored name is either an alias or unaliased field name, it must identify single field
+            Map<String, List<String>> owners = new TreeMap<String, List<String>>();
+            Set<String> names = new HashSet<String>(registered);
+            names.addAll(explicit.keySet());
+            for (String field : names) {
+                String stored = aliases.containsKey(field)? aliases.get(field): field;
+                List<String> fields = owners.get(stored);
+                if (fields == null) {
+                    owners.put(stored, fields = new ArrayList<String>(2));
+                }
+                fields.add(field);
+            }
+            StringBuilder collisions = new StringBuilder();
+            for (Map.Entry<String, List<String>> entry : owners.entrySet()) {
+                if (entry.getValue().size() > 1) {
+                    Collections.sort(entry.getValue());
+                    collisions.append("\n  ").append(entry.getKey()).append(": ").append(entry.getValue());
+                }
+            }
+            if (collisions.length() > 0) {
+                throw new IllegalStateException("Stored field names collide, declare explicit aliases:" + collisions);
+            }
+            return new FieldAliases(aliases);
+        }
+
+        private static void checkName(String name) {
+            if (name.isEmpty() || name.startsWith("$") || name.indexOf('.') >= 0) {
+                throw new IllegalArgumentException("Invalid field name: " + name);
+            }
+        }
+    }
+}
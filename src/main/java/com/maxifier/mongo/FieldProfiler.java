@@ -0,0 +1,238 @@
+/*
+ * Copyright (c) 2008-2015 Maxifier Ltd. All Rights Reserved.
+ */
+package com.maxifier.mongo;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Sampling profiler which attributes encoded bytes and decode time to field paths of document classes.
+ * <p>Sampled documents are profiled by {@link BsonWriter} and {@link BsonReader}, so per-field
+ * overhead is paid for sampled documents only. Paths are dotted with array elements collapsed to
+ * {@code []}, e.g. {@code items[].attributes.value}; map keys are path items too. Stats are inclusive:
+ * bytes and time of a field include its nested fields. Field bytes include BSON type and name,
+ * field time includes time spent by Gson adapters to build its value.</p>
+ *
+ * @see GsonDBCollection#setProfiler(FieldProfiler)
+ * @author Konstantin Lyamshin (2015-02-23 15:20)
+ */
+public class FieldProfiler {
+    static final String ROOT = "";
+
+    private final ConcurrentMap<Class<?>, ConcurrentMap<String, FieldStats>> classes =
+        new ConcurrentHashMap<Class<?>, ConcurrentMap<String, FieldStats>>();
+    private final int sampleRate;
+
+    /**
+     * @param sampleRate profile one of {@code sampleRate} documents in average, 1 to profile all of them
+     */
+    public FieldProfiler(int sampleRate) {
+        if (sampleRate <= 0) {
+            throw new IllegalArgumentException("Invalid sample rate " + sampleRate);
+        }
+        this.sampleRate = sampleRate;
+    }
+
+    /**
+     * @return true if next document should be profiled
+     */
+    boolean sample() {
+        return sampleRate == 1 || ThreadLocalRandom.current().nextInt(sampleRate) == 0;
+    }
+
+    void encoded(Class<?> root, String path, int bytes) {
+        FieldStats stats = stats(root, path);
+        stats.encoded.increment();
+        stats.bytes.add(bytes);
+    }
+
+    void decoded(Class<?> root, String path, long nanos) {
+        FieldStats stats = stats(root, path);
+        stats.decoded.increment();
+        stats.nanos.add(nanos);
+    }
+
+    private FieldStats stats(Class<?> root, String path) {
+        ConcurrentMap<String, FieldStats> fields = classes.get(root);
+        if (fields == null) {
+            ConcurrentMap<String, FieldStats> existing = classes.putIfAbsent(root,
+                fields = new ConcurrentHashMap<String, FieldStats>());
+            if (existing != null) {
+                fields = existing;
+            }
+        }
+        FieldStats stats = fields.get(path);
+        if (stats == null) {
+            FieldStats existing = fields.putIfAbsent(path, stats = new FieldStats(path));
+            if (existing != null) {
+                stats = existing;
+            }
+        }
+        return stats;
+    }
+
+    /**
+     * @return stats of profiled fields by path, whole document stats are at {@code ""} path
+     */
+    public Map<String, FieldStats> getFields(Class<?> root) {
+        Map<String, FieldStats> fields = classes.get(root);
+        return fields != null? Collections.unmodifiableMap(new HashMap<String, FieldStats>(fields)):
+            Collections.<String, FieldStats>emptyMap();
+    }
+
+    public void clear() {
+        classes.clear();
+    }
+
+    /**
+     * Builds report of profiled classes. Fields are ranked by their share of document bytes
+     * or decode time, whatever is larger.
+     *
+     * @param limit max number of fields reported per class
+     */
+    public String report(int limit) {
+        List<Class<?>> roots = new ArrayList<Class<?>>(classes.keySet());
+        Collections.sort(roots, new Comparator<Class<?>>() {
+            @Override
+            public int compare(Class<?> o1, Class<?> o2) {
+                return o1.getName().compareTo(o2.getName());
+            }
+        });
+
+        StringBuilder sb = new StringBuilder();
+        for (Class<?> root : roots) {
+            Map<String, FieldStats> fields = getFields(root);
+            FieldStats document = fields.get(ROOT);
+            final long totalBytes = document != null? document.getBytes(): 0;
+            final long totalNanos = document != null? document.getNanos(): 0;
+            sb.append(root.getName()).append(": ")
+                .append(document != null? document.getEncoded(): 0).append(" encoded, avg ")
+                .append(document != null? document.getAvgBytes(): 0).append(" bytes; ")
+                .append(document != null? document.getDecoded(): 0).append(" decoded, avg ")
+                .append(String.format("%.1f", document != null? document.getAvgNanos() / 1000.0: 0.0)).append(" us\n");
+
+            List<FieldStats> ranked = new ArrayList<FieldStats>(fields.values());
+            ranked.remove(document);
+            Collections.sort(ranked, new Comparator<FieldStats>() {
+                @Override
+                public int compare(FieldStats o1, FieldStats o2) {
+                    return Double.compare(o2.weight(totalBytes, totalNanos), o1.weight(totalBytes, totalNanos));
+                }
+            });
+            sb.append(String.format("  %7s %10s %7s %9s  %s%n", "bytes%", "avg bytes", "time%", "avg us", "field"));
+            for (FieldStats field : ranked.subList(0, Math.min(limit, ranked.size()))) {
+                sb.append(String.format("  %6.1f%% %10d %6.1f%% %9.1f  %s%n",
+                    share(field.getBytes(), totalBytes), field.getAvgBytes(),
+                    share(field.getNanos(), totalNanos), field.getAvgNanos() / 1000.0, field.getPath()));
+            }
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("FieldProfiler{sampleRate=%d, classes=%d}", sampleRate, classes.size());
+    }
+
+    private static double share(long value, long total) {
+        return total > 0? value * 100.0 / total: 0;
+    }
+
+    /**
+     * Builds profiled path from reader or writer stack, collapsing array indexes.
+     *
+     * @param object marker of object frame
+     * @param array marker of array frame
+     */
+    static String fieldPath(String[] path, int stack, String object, String array) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i <= stack; i++) {
+            String p = path[i];
+            //noinspection StringEquality
+            if (p == object) {
+                continue;
+            }
+            //noinspection StringEquality
+            if (p == array) {
+                sb.append("[]");
+                i++; // skip index
+            } else {
+                if (sb.length() > 0) {
+                    sb.append('.');
+                }
+                sb.append(p);
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Profiled stats of a field.
+     */
+    public static class FieldStats {
+        private final String path;
+        private final LongAdder encoded = new LongAdder();
+        private final LongAdder bytes = new LongAdder();
+        private final LongAdder decoded = new LongAdder();
+        private final LongAdder nanos = new LongAdder();
+
+        FieldStats(String path) {
+            this.path = path;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        /**
+         * @return number of encoded field values
+         */
+        public long getEncoded() {
+            return encoded.sum();
+        }
+
+        public long getBytes() {
+            return bytes.sum();
+        }
+
+        public long getAvgBytes() {
+            long count = getEncoded();
+            return count > 0? getBytes() / count: 0;
+        }
+
+        /**
+         * @return number of decoded field values
+         */
+        public long getDecoded() {
+            return decoded.sum();
+        }
+
+        public long getNanos() {
+            return nanos.sum();
+        }
+
+        public long getAvgNanos() {
+            long count = getDecoded();
+            return count > 0? getNanos() / count: 0;
+        }
+
+        private double weight(long totalBytes, long totalNanos) {
+            return Math.max(share(getBytes(), totalBytes), share(getNanos(), totalNanos));
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s{encoded=%d, bytes=%d, decoded=%d, nanos=%d}",
+                path, getEncoded(), getBytes(), getDecoded(), getNanos());
+        }
+    }
+}
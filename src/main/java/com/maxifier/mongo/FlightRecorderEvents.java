@@ -0,0 +1,286 @@
+/*
+ * Copyright (c) 2008-2015 Maxifier Ltd. All Rights Reserved.
+ */
+package com.maxifier.mongo;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+import javax.annotation.Nullable;
+
+/**
+ * JDK Flight Recorder events of codec, cursor, bulk and cache hot paths.
+ * <p>Events are committed only if they are enabled in running recording, otherwise each call
+ * costs a couple of field reads. Per-document events ({@code DocumentEncoded}, {@code DocumentDecoded},
+ * {@code CacheLookup}) are disabled by default and should be enabled by recording settings, e.g.
+ * {@code com.maxifier.mongo.DocumentDecoded#enabled=true}. On JVMs without {@code jdk.jfr} module
+ * or with Flight Recorder disabled all calls are no-op.</p>
+ * <p>Events span the traced operation ({@code begin()} to {@code commit()}), so recording timeline
+ * relates them to GC pauses and CPU samples of the same thread.</p>
+ *
+ * @author Konstantin Lyamshin (2015-02-23 10:40)
+ */
+final class FlightRecorderEvents {
+    private static final boolean AVAILABLE = isAvailable();
+
+    private FlightRecorderEvents() { }
+
+    private static boolean isAvailable() {
+        try {
+            Class.forName("jdk.jfr.Event");
+            return Recorder.init();
+        } catch (ClassNotFoundException e) {
+            return false;
+        } catch (LinkageError e) { // including failed event type initializers
+            return false;
+        } catch (RuntimeException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @return started event to pass to {@link #encoded(Object, String, Class, int)}, null if it isn't recorded
+     */
+    @Nullable
+    static Object beginEncoded() {
+        return AVAILABLE? Recorder.beginEncoded(): null;
+    }
+
+    static void encoded(@Nullable Object event, @Nullable String collection, Class<?> documentClass, int bytes) {
+        if (event != null) {
+            Recorder.encoded(event, collection, documentClass, bytes);
+        }
+    }
+
+    /**
+     * @return started event to pass to {@link #decoded(Object, String, Class, int)}, null if it isn't recorded
+     */
+    @Nullable
+    static Object beginDecoded() {
+        return AVAILABLE? Recorder.beginDecoded(): null;
+    }
+
+    static void decoded(@Nullable Object event, @Nullable String collection, Class<?> documentClass, int bytes) {
+        if (event != null) {
+            Recorder.decoded(event, collection, documentClass, bytes);
+        }
+    }
+
+    /**
+     * @return started event to pass to {@link #cursorBatch(Object, String, int)}, null if it isn't recorded,
+     * so caller needn't track batch fetches
+     */
+    @Nullable
+    static Object beginCursorBatch() {
+        return AVAILABLE? Recorder.beginCursorBatch(): null;
+    }
+
+    /**
+     * Commits event if cursor call fetched batch, started event is just dropped otherwise.
+     */
+    static void cursorBatch(@Nullable Object event, @Nullable String collection, int documents) {
+        if (event != null) {
+            Recorder.cursorBatch(event, collection, documents);
+        }
+    }
+
+    /**
+     * @return started event to pass to {@link #bulkExecuted(Object, String, int)}, null if it isn't recorded
+     */
+    @Nullable
+    static Object beginBulk() {
+        return AVAILABLE? Recorder.beginBulk(): null;
+    }
+
+    static void bulkExecuted(@Nullable Object event, @Nullable String collection, int requests) {
+        if (event != null) {
+            Recorder.bulkExecuted(event, collection, requests);
+        }
+    }
+
+    /**
+     * @param cache {@code "id"} or {@code "query"}
+     */
+    static void cacheLookup(@Nullable String collection, String cache, boolean hit) {
+        if (AVAILABLE) {
+            Recorder.cacheLookup(collection, cache, hit);
+        }
+    }
+
+    /**
+     * Loaded on first use only, so JVMs without {@code jdk.jfr} don't resolve event classes.
+     * Events are allocated only if their type is enabled, started events are passed back as {@code Object}.
+     */
+    private static final class Recorder {
+        /**
+         * Initializes event types, so failures are caught once instead of breaking callers.
+         *
+         * @return true if events could be recorded
+         */
+        static boolean init() {
+            if (!FlightRecorder.isAvailable()) {
+                return false;
+            }
+            return DocumentEncoded.TYPE != null && DocumentDecoded.TYPE != null && CursorBatch.TYPE != null
+                && BulkExecuted.TYPE != null && CacheLookup.TYPE != null;
+        }
+
+        static Object beginEncoded() {
+            return DocumentEncoded.TYPE.isEnabled()? begin(new DocumentEncoded()): null;
+        }
+
+        static void encoded(Object started, @Nullable String collection, Class<?> documentClass, int bytes) {
+            DocumentEncoded event = (DocumentEncoded) started;
+            event.end();
+            if (event.shouldCommit()) {
+                event.collection = collection;
+                event.documentClass = documentClass;
+                event.bytes = bytes;
+                event.commit();
+            }
+        }
+
+        static Object beginDecoded() {
+            return DocumentDecoded.TYPE.isEnabled()? begin(new DocumentDecoded()): null;
+        }
+
+        static void decoded(Object started, @Nullable String collection, Class<?> documentClass, int bytes) {
+            DocumentDecoded event = (DocumentDecoded) started;
+            event.end();
+            if (event.shouldCommit()) {
+                event.collection = collection;
+                event.documentClass = documentClass;
+                event.bytes = bytes;
+                event.commit();
+            }
+        }
+
+        static Object beginCursorBatch() {
+            return CursorBatch.TYPE.isEnabled()? begin(new CursorBatch()): null;
+        }
+
+        static void cursorBatch(Object started, @Nullable String collection, int documents) {
+            CursorBatch event = (CursorBatch) started;
+            event.end();
+            if (event.shouldCommit()) {
+                event.collection = collection;
+                event.documents = documents;
+                event.commit();
+            }
+        }
+
+        static Object beginBulk() {
+            return BulkExecuted.TYPE.isEnabled()? begin(new BulkExecuted()): null;
+        }
+
+        static void bulkExecuted(Object started, @Nullable String collection, int requests) {
+            BulkExecuted event = (BulkExecuted) started;
+            event.end();
+            if (event.shouldCommit()) {
+                event.collection = collection;
+                event.requests = requests;
+                event.commit();
+            }
+        }
+
+        static void cacheLookup(@Nullable String collection, String cache, boolean hit) {
+            if (!CacheLookup.TYPE.isEnabled()) {
+                return;
+            }
+            CacheLookup event = new CacheLookup();
+            if (event.shouldCommit()) {
+                event.collection = collection;
+                event.cache = cache;
+                event.hit = hit;
+                event.commit();
+            }
+        }
+
+        private static Event begin(Event event) {
+            event.begin();
+            return event;
+        }
+    }
+
+    @Name("com.maxifier.mongo.DocumentEncoded")
+    @Label("Document Encoded")
+    @Category({"MongoDB", "BSON Bridge"})
+    @Enabled(false)
+    @StackTrace(false)
+    static class DocumentEncoded extends Event {
+        static final jdk.jfr.EventType TYPE = jdk.jfr.EventType.getEventType(DocumentEncoded.class);
+
+        @Label("Collection")
+        String collection;
+        @Label("Document Class")
+        Class<?> documentClass;
+        @Label("Size")
+        @DataAmount
+        int bytes;
+    }
+
+    @Name("com.maxifier.mongo.DocumentDecoded")
+    @Label("Document Decoded")
+    @Category({"MongoDB", "BSON Bridge"})
+    @Enabled(false)
+    @StackTrace(false)
+    static class DocumentDecoded extends Event {
+        static final jdk.jfr.EventType TYPE = jdk.jfr.EventType.getEventType(DocumentDecoded.class);
+
+        @Label("Collection")
+        String collection;
+        @Label("Document Class")
+        Class<?> documentClass;
+        @Label("Size")
+        @DataAmount
+        int bytes;
+    }
+
+    @Name("com.maxifier.mongo.CursorBatch")
+    @Label("Cursor Batch")
+    @Description("Cursor call which fetched batch of documents, including their decoding")
+    @Category({"MongoDB", "BSON Bridge"})
+    static class CursorBatch extends Event {
+        static final jdk.jfr.EventType TYPE = jdk.jfr.EventType.getEventType(CursorBatch.class);
+
+        @Label("Collection")
+        String collection;
+        @Label("Documents")
+        int documents;
+    }
+
+    @Name("com.maxifier.mongo.BulkExecuted")
+    @Label("Bulk Executed")
+    @Category({"MongoDB", "BSON Bridge"})
+    static class BulkExecuted extends Event {
+        static final jdk.jfr.EventType TYPE = jdk.jfr.EventType.getEventType(BulkExecuted.class);
+
+        @Label("Collection")
+        String collection;
+        @Label("Requests")
+        int requests;
+    }
+
+    @Name("com.maxifier.mongo.CacheLookup")
+    @Label("Cache Lookup")
+    @Category({"MongoDB", "BSON Bridge"})
+    @Enabled(false)
+    @StackTrace(false)
+    static class CacheLookup extends Event {
+        static final jdk.jfr.EventType TYPE = jdk.jfr.EventType.getEventType(CacheLookup.class);
+
+        @Label("Collection")
+        String collection;
+        @Label("Cache")
+        String cache;
+        @Label("Hit")
+        boolean hit;
+    }
+}
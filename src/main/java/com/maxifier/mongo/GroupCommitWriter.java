@@ -0,0 +1,247 @@
+/*
+ * Copyright (c) 2008-2015 Maxifier Ltd. All Rights Reserved.
+ */
+package com.maxifier.mongo;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.mongodb.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Asynchronous write facade which groups single-document writes of many threads into bulk operations.
+ * <p>Writes are collected until {@code maxBatch} writes are pending or {@code maxDelay} passed since
+ * the first pending write, then they are executed as one unordered {@link GsonDBCollection.BulkOperation}
+ * in executor thread. Each write gets own future which is completed from {@link BulkWriteResult}:
+ * failed writes get {@link MongoException} with server error code and message, the rest writes
+ * of the same bulk complete normally.</p>
+ * <p>{@link #close()} flushes pending writes, no writes are accepted after that.</p>
+ *
+ * @author Konstantin Lyamshin (2015-02-16 12:10)
+ */
+public class GroupCommitWriter<T> implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(GroupCommitWriter.class);
+
+    private final GsonDBCollection<T> collection;
+    private final ScheduledExecutorService executor;
+    private final int maxBatch;
+    private final long maxDelay;
+    private final WriteConcern concern;
+    private List<Write> pending; // guarded by this
+    private ScheduledFuture<?> deadline; // guarded by this
+    private boolean closed; // guarded by this
+
+    /**
+     * @param collection target collection
+     * @param executor executor to run bulk operations and deadline timers
+     * @param maxBatch max number of writes in one bulk operation
+     * @param maxDelay max delay of pending write
+     * @param unit delay time unit
+     * @param concern write concern of bulk operations
+     */
+    public GroupCommitWriter(GsonDBCollection<T> collection, ScheduledExecutorService executor,
+                             int maxBatch, long maxDelay, TimeUnit unit, WriteConcern concern) {
+        if (maxBatch <= 0) {
+            throw new IllegalArgumentException("Invalid batch size " + maxBatch);
+        }
+        this.collection = collection;
+        this.executor = executor;
+        this.maxBatch = maxBatch;
+        this.maxDelay = unit.toNanos(maxDelay);
+        this.concern = concern;
+        this.pending = new ArrayList<Write>(maxBatch);
+    }
+
+    public ListenableFuture<Void> insert(T doc) {
+        return add(new Write(Write.INSERT, doc, null, null)).<Void>cast();
+    }
+
+    public ListenableFuture<Void> updateOne(DBObject query, DBObject update) {
+        return add(new Write(Write.UPDATE, null, query, update)).<Void>cast();
+    }
+
+    /**
+     * @return future of upserted {@code _id}, or null if existing document was updated
+     */
+    public ListenableFuture<Object> upsertOne(DBObject query, DBObject upsert) {
+        return add(new Write(Write.UPSERT, null, query, upsert)).future;
+    }
+
+    public ListenableFuture<Void> removeOne(DBObject query) {
+        return add(new Write(Write.REMOVE, null, query, null)).<Void>cast();
+    }
+
+    private Write add(Write write) {
+        List<Write> batch = null;
+        synchronized (this) {
+            if (closed) {
+                throw new IllegalStateException("Writer is closed " + toString());
+            }
+            pending.add(write);
+            if (pending.size() >= maxBatch) {
+                batch = takePending();
+            } else if (deadline == null) {
+                deadline = executor.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        flush();
+                    }
+                }, maxDelay, TimeUnit.NANOSECONDS);
+            }
+        }
+        if (batch != null) {
+            submit(batch);
+        }
+        return write;
+    }
+
+    private List<Write> takePending() {
+        assert Thread.holdsLock(this);
+        List<Write> batch = pending;
+        pending = new ArrayList<Write>(maxBatch);
+        if (deadline != null) {
+            deadline.cancel(false);
+            deadline = null;
+        }
+        return batch;
+    }
+
+    private void submit(final List<Write> batch) {
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    execute(batch);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            for (Write write : batch) {
+                write.future.setException(e);
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Executes pending writes in executor thread.
+     */
+    public void flush() {
+        List<Write> batch;
+        synchronized (this) {
+            batch = takePending();
+        }
+        if (!batch.isEmpty()) {
+            submit(batch);
+        }
+    }
+
+    /**
+     * Flushes pending writes and stops accepting new ones.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            closed = true;
+        }
+        flush();
+    }
+
+    private void execute(List<Write> batch) {
+        try {
+            GsonDBCollection.BulkOperation<T> op = collection.bulk(false);
+            for (Write write : batch) {
+                write.apply(op);
+            }
+            complete(batch, concern != null? op.execute(concern): op.execute());
+        } catch (BulkWriteException e) {
+            MongoException concernError = null;
+            if (e.getWriteConcernError() != null) {
+                concernError = new MongoException(e.getWriteConcernError().getCode(), e.getWriteConcernError().getMessage());
+            }
+            for (BulkWriteError error : e.getWriteErrors()) {
+                batch.get(error.getIndex()).future.setException(new MongoException(error.getCode(), error.getMessage()));
+            }
+            if (concernError != null) {
+                for (Write write : batch) {
+                    write.future.setException(concernError); // no effect on failed writes
+                }
+            }
+            complete(batch, e.getWriteResult());
+        } catch (Throwable e) {
+            logger.warn("Can't execute {} grouped writes", batch.size(), e);
+            for (Write write : batch) {
+                write.future.setException(e);
+            }
+        }
+    }
+
+    private static void complete(List<Write> batch, BulkWriteResult result) {
+        if (result != null && result.isAcknowledged()) {
+            for (BulkWriteUpsert upsert : result.getUpserts()) {
+                batch.get(upsert.getIndex()).future.set(upsert.getId());
+            }
+        }
+        for (Write write : batch) {
+            write.future.set(null); // no effect on completed writes
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("GroupCommitWriter{pending=%d, maxBatch=%d, maxDelay=%dns}", pending.size(), maxBatch, maxDelay);
+    }
+
+    private static class Write {
+        static final int INSERT = 0;
+        static final int UPDATE = 1;
+        static final int UPSERT = 2;
+        static final int REMOVE = 3;
+
+        final int type;
+        final Object doc;
+        final DBObject query;
+        final DBObject update;
+        final SettableFuture<Object> future = SettableFuture.create();
+
+        Write(int type, Object doc, DBObject query, DBObject update) {
+            this.type = type;
+            this.doc = doc;
+            this.query = query;
+            this.update = update;
+        }
+
+        @SuppressWarnings("unchecked")
+        <V> ListenableFuture<V> cast() {
+            return (ListenableFuture<V>) (ListenableFuture<?>) future;
+        }
+
+        @SuppressWarnings("unchecked")
+        <T> void apply(GsonDBCollection.BulkOperation<T> op) {
+            switch (type) {
+                case INSERT:
+                    op.insert((T) doc);
+                    break;
+                case UPDATE:
+                    op.find(query).updateOne(update);
+                    break;
+                case UPSERT:
+                    op.find(query).upsertOne(update);
+                    break;
+                case REMOVE:
+                    op.find(query).removeOne();
+                    break;
+                default:
+                    throw new IllegalStateException("Unknown write type " + type);
+            }
+        }
+    }
+}
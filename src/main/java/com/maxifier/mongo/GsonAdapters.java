@@ -3,6 +3,7 @@
  */
 package com.maxifier.mongo;
 
+import com.google.common.base.Charsets;
 import com.google.gson.*;
 import com.google.gson.reflect.TypeToken;
 import com.google.gson.stream.JsonReader;
@@ -11,14 +12,26 @@ import com.google.gson.stream.JsonWriter;
 import org.bson.BSON;
 import org.bson.types.*;
 
+import javax.annotation.Nullable;
+import java.io.FilterWriter;
 import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.Writer;
 import java.lang.reflect.ParameterizedType;
 import java.lang.reflect.Type;
 import java.text.DateFormat;
 import java.text.ParsePosition;
 import java.text.SimpleDateFormat;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.List;
 import java.util.Locale;
+import java.util.TimeZone;
 import java.util.UUID;
 import java.util.regex.Pattern;
 
@@ -38,6 +51,7 @@ import static java.lang.String.format;
 public final class GsonAdapters {
     public static final String F_NULLABLE = "$null";
     public static final String F_LONG = "$numberLong";
+    public static final String F_DOUBLE = "$numberDouble";
     public static final String F_OBJECTID = "$oid";
     public static final String F_DATE = "$date";
     public static final String F_UUID = "$uuid";
@@ -55,6 +69,15 @@ public final class GsonAdapters {
 
     public static final String DATE_FORMAT = "yyyy-MM-dd'T'HH:mm:ss.SSSZ";
 
+    /**
+     * User defined BSON binary subtype of values compressed by {@link CompressedTypeAdapter}.
+     */
+    public static final byte B_COMPRESSED = (byte) 0x80;
+    /**
+     * Default min size of serialized value to compress.
+     */
+    public static final int COMPRESSION_THRESHOLD = 1024;
+
     private GsonAdapters() { }
 
     public static GsonBuilder configure(GsonBuilder builder) {
@@ -63,6 +86,8 @@ public final class GsonAdapters {
             .registerTypeAdapter(Long.class, LONG_ADAPTER)
             .registerTypeAdapter(long.class, LONG_ADAPTER)
             .registerTypeAdapter(Date.class, DATE_ADAPTER)
+            .registerTypeAdapter(Instant.class, INSTANT_ADAPTER)
+            .registerTypeAdapter(LocalDateTime.class, LOCAL_DATE_TIME_ADAPTER)
             .registerTypeAdapter(UUID.class, UUID_ADAPTER)
             .registerTypeAdapter(byte[].class, BYTES_ADAPTER)
             .registerTypeAdapter(Binary.class, BINARY_ADAPTER)
@@ -71,7 +96,9 @@ public final class GsonAdapters {
             .registerTypeAdapter(Code.class, CODE_ADAPTER)
             .registerTypeAdapter(MinKey.class, MINKEY_ADAPTER)
             .registerTypeAdapter(MaxKey.class, MAXKEY_ADAPTER)
-            .registerTypeAdapterFactory(NULLABLE_ADAPTER_FACTORY);
+            .registerTypeAdapterFactory(NULLABLE_ADAPTER_FACTORY)
+            .registerTypeAdapterFactory(COMPRESSED_ADAPTER_FACTORY)
+            .registerTypeAdapterFactory(STREAMED_ARRAY_ADAPTER_FACTORY);
     }
 
     public static final TypeAdapter<Long> LONG_ADAPTER = new TypeAdapter<Long>() {
@@ -113,6 +140,55 @@ public final class GsonAdapters {
             return "LONG_ADAPTER";
         }
     };
+    /**
+     * Writes {@code NaN} and infinite values as {@code {"$numberDouble": "NaN"}} which is valid JSON,
+     * finite values are written as plain numbers.
+     */
+    public static final TypeAdapter<Double> DOUBLE_ADAPTER = new TypeAdapter<Double>() {
+        @Override
+        public void write(JsonWriter out, Double value) throws IOException {
+            if (value == null) {
+                out.nullValue();
+            } else if (Double.isNaN(value) || Double.isInfinite(value)) {
+                out.beginObject()
+                    .name(F_DOUBLE).value(value.toString())
+                    .endObject();
+            } else {
+                out.value(value.doubleValue());
+            }
+        }
+
+        @Override
+        public Double read(JsonReader in) throws IOException {
+            JsonToken peek = in.peek();
+            if (peek == JsonToken.NULL) {
+                in.nextNull();
+                return null;
+            }
+
+            if (peek == JsonToken.NUMBER) {
+                return in.nextDouble();
+            }
+
+            in.beginObject();
+            String name = in.nextName();
+            if (!name.equals(F_DOUBLE)) {
+                throw new JsonSyntaxException(format("Unexpected Double field %s at %s", name, in.getPath()));
+            }
+            String value = in.nextString();
+            in.endObject();
+            try {
+                return Double.parseDouble(value); // strict JsonReader.nextDouble() rejects NaN
+            } catch (NumberFormatException e) {
+                throw new JsonSyntaxException(format("Invalid Double %s at %s", value, in.getPath()), e);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "DOUBLE_ADAPTER";
+        }
+    };
     public static final TypeAdapter<ObjectId> OBJECTID_ADAPTER = new TypeAdapter<ObjectId>() {
         @Override
         public void write(JsonWriter out, ObjectId value) throws IOException {
@@ -148,22 +224,12 @@ public final class GsonAdapters {
         }
     };
     public static final TypeAdapter<Date> DATE_ADAPTER = new TypeAdapter<Date>() {
-        private final ThreadLocal<DateFormat> cache = new ThreadLocal<DateFormat>();
-
         @Override
         public void write(JsonWriter out, Date value) throws IOException {
             if (value == null) {
                 out.nullValue();
-            } else if (out instanceof GsonBuffer.JsonBufferedWriter) {
-                // internally use value w/o conversions
-                out.beginObject()
-                    .name(F_DATE).value(value.getTime())
-                    .endObject();
             } else {
-                // externally use symbolic format
-                out.beginObject()
-                    .name(F_DATE).value(format(value))
-                    .endObject();
+                writeDate(out, value.getTime());
             }
         }
 
@@ -173,55 +239,107 @@ public final class GsonAdapters {
                 in.nextNull();
                 return null;
             }
+            return new Date(readDate(in));
+        }
 
-            in.beginObject();
-            String name = in.nextName();
-            if (!name.equals(F_DATE)) {
-                throw new JsonSyntaxException(String.format("Unexpected Date field %s at %s", name, in.getPath()));
+        @Override
+        public String toString() {
+            return "DATE_ADAPTER";
+        }
+    };
+    public static final TypeAdapter<Instant> INSTANT_ADAPTER = new TypeAdapter<Instant>() {
+        @Override
+        public void write(JsonWriter out, Instant value) throws IOException {
+            if (value == null) {
+                out.nullValue();
+            } else {
+                writeDate(out, value.toEpochMilli());
+            }
+        }
+
+        @Override
+        public Instant read(JsonReader in) throws IOException {
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                return null;
+            }
+            return Instant.ofEpochMilli(readDate(in));
+        }
+
+        @Override
+        public String toString() {
+            return "INSTANT_ADAPTER";
+        }
+    };
+    /**
+     * Stores {@link LocalDateTime} as BSON Date treating it as UTC time (precision is truncated to milliseconds).
+     */
+    public static final TypeAdapter<LocalDateTime> LOCAL_DATE_TIME_ADAPTER = new TypeAdapter<LocalDateTime>() {
+        @Override
+        public void write(JsonWriter out, LocalDateTime value) throws IOException {
+            if (value == null) {
+                out.nullValue();
+            } else {
+                writeDate(out, value.toInstant(ZoneOffset.UTC).toEpochMilli());
             }
-            Date date = parse(in);
-            in.endObject();
-            return date;
         }
 
-        private String format(Date value) {
-            DateFormat format = cache.get();
-            if (format == null) {
-                format = new SimpleDateFormat(DATE_FORMAT, Locale.US);
-                cache.set(format);
+        @Override
+        public LocalDateTime read(JsonReader in) throws IOException {
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                return null;
             }
-            return format.format(value);
+            return LocalDateTime.ofInstant(Instant.ofEpochMilli(readDate(in)), ZoneOffset.UTC);
+        }
+
+        @Override
+        public String toString() {
+            return "LOCAL_DATE_TIME_ADAPTER";
+        }
+    };
+
+    private static void writeDate(JsonWriter out, long millis) throws IOException {
+        if (out instanceof GsonBuffer.JsonBufferedWriter) {
+            // internally use value w/o conversions
+            out.beginObject()
+                .name(F_DATE).value(millis)
+                .endObject();
+        } else {
+            // externally use symbolic format
+            out.beginObject()
+                .name(F_DATE).value(DateCodec.get().format(millis))
+                .endObject();
         }
+    }
 
-        private Date parse(JsonReader in) throws IOException {
+    private static long readDate(JsonReader in) throws IOException {
+        in.beginObject();
+        String name = in.nextName();
+        if (!name.equals(F_DATE)) {
+            throw new JsonSyntaxException(format("Unexpected Date field %s at %s", name, in.getPath()));
+        }
+        long millis;
+        if (in.peek() == JsonToken.NUMBER && (in instanceof GsonBuffer.JsonBufferedReader || in instanceof GsonReader)) {
+            millis = in.nextLong(); // internally use value w/o conversions
+        } else {
             String value = in.nextString();
             if (value.indexOf('T') < 0) {
                 // looks like numeric timestamp
                 try {
-                    return new Date(Long.parseLong(value));
+                    millis = Long.parseLong(value);
+                    in.endObject();
+                    return millis;
                 } catch (NumberFormatException ignored) {
                 }
             }
-
             // looks like symbolic timestamp
-            DateFormat format = cache.get();
-            if (format == null) {
-                format = new SimpleDateFormat(DATE_FORMAT, Locale.US);
-                cache.set(format);
-            }
-            ParsePosition pos = new ParsePosition(0);
-            Date date = format.parse(value, pos);
-            if (pos.getIndex() != value.length()) {
-                throw new JsonSyntaxException(String.format("Invalid Date value '%s' at %d near to%s", value, pos.getErrorIndex(), in.getPath()));
-            }
-            return date;
+            millis = DateCodec.get().parse(value, in);
         }
+        in.endObject();
+        return millis;
+    }
 
-        @Override
-        public String toString() {
-            return "DATE_ADAPTER";
-        }
-    };
     public static final TypeAdapter<UUID> UUID_ADAPTER = new TypeAdapter<UUID>() {
         @Override
         public void write(JsonWriter out, UUID value) throws IOException {
@@ -262,9 +380,9 @@ public final class GsonAdapters {
             if (value == null) {
                 out.nullValue();
             } else {
-                out.beginObject()
-                    .name(F_BINARY).value(Base64Codec.encode(value))
-                    .name(F_BINARY_TYPE).value(BSON.B_GENERAL)
+                out.beginObject().name(F_BINARY);
+                writeBinary(out, value);
+                out.name(F_BINARY_TYPE).value(BSON.B_GENERAL)
                     .endObject();
             }
         }
@@ -281,7 +399,7 @@ public final class GsonAdapters {
             if (!name.equals(F_BINARY)) {
                 throw new JsonSyntaxException(format("Unexpected Binary field %s at %s", name, in.getPath()));
             }
-            byte[] bytes = Base64Codec.decode(in.nextString());
+            byte[] bytes = readBinary(in);
             if (in.peek() == NAME) {
                 name = in.nextName();
                 if (!name.equals(F_BINARY_TYPE)) {
@@ -304,9 +422,9 @@ public final class GsonAdapters {
             if (value == null) {
                 out.nullValue();
             } else {
-                out.beginObject()
-                    .name(F_BINARY).value(Base64Codec.encode(value.getData()))
-                    .name(F_BINARY_TYPE).value(value.getType())
+                out.beginObject().name(F_BINARY);
+                writeBinary(out, value.getData());
+                out.name(F_BINARY_TYPE).value(value.getType())
                     .endObject();
             }
         }
@@ -323,7 +441,7 @@ public final class GsonAdapters {
             if (!name.equals(F_BINARY)) {
                 throw new JsonSyntaxException(format("Unexpected Binary field %s at %s", name, in.getPath()));
             }
-            byte[] bytes = Base64Codec.decode(in.nextString());
+            byte[] bytes = readBinary(in);
             int type = BSON.B_GENERAL;
             if (in.peek() == NAME) {
                 name = in.nextName();
@@ -341,6 +459,29 @@ public final class GsonAdapters {
             return "BINARY_ADAPTER";
         }
     };
+
+    private static void writeBinary(JsonWriter out, byte[] data) throws IOException {
+        if (out instanceof GsonWriter) {
+            ((GsonWriter) out).binaryValue(data); // internally pass data w/o encoding
+        } else if (out instanceof GsonBuffer.JsonBufferedWriter) {
+            ((GsonBuffer.JsonBufferedWriter) out).binaryValue(data);
+        } else if (out instanceof Base64JsonWriter) {
+            ((Base64JsonWriter) out).binaryValue(data);
+        } else {
+            out.value(Base64Codec.encode(data));
+        }
+    }
+
+    private static byte[] readBinary(JsonReader in) throws IOException {
+        if (in instanceof GsonBuffer.JsonBufferedReader) {
+            return ((GsonBuffer.JsonBufferedReader) in).nextBinary();
+        }
+        if (in instanceof GsonReader) {
+            return ((GsonReader) in).nextBinary();
+        }
+        return Base64Codec.decode(in.nextString());
+    }
+
     public static final TypeAdapter<Pattern> REGEX_ADAPTER = new TypeAdapter<Pattern>() {
         @Override
         public void write(JsonWriter out, Pattern value) throws IOException {
@@ -632,18 +773,323 @@ public final class GsonAdapters {
         }
     }
 
+    /**
+     * Installs {@link CompressedTypeAdapter} for {@link Compressed} values.
+     */
+    public static final TypeAdapterFactory COMPRESSED_ADAPTER_FACTORY = new TypeAdapterFactory() {
+        private final CompressedAdapterFactory factory = new CompressedAdapterFactory();
+
+        @Override
+        public <T> TypeAdapter<T> create(Gson gson, TypeToken<T> type) {
+            return type.getRawType() == Compressed.class? factory.create(gson, type): null;
+        }
+
+        @Override
+        public String toString() {
+            return "COMPRESSED_ADAPTER_FACTORY";
+        }
+    };
+
+    /**
+     * Compresses values of any type, use it to annotate large fields:
+     * <pre>
+     * &#64;JsonAdapter(GsonAdapters.CompressedAdapterFactory.class)
+     * String description;
+     * &#64;JsonAdapter(GsonAdapters.CompressedAdapterFactory.class)
+     * Compressed&lt;Report&gt; report; // same as w/o annotation
+     * </pre>
+     * <p>Annotated fields are decompressed eagerly, declare field as {@link Compressed} to decompress
+     * it lazily. Subclass factory to change compression threshold.</p>
+     */
+    public static class CompressedAdapterFactory implements TypeAdapterFactory {
+        private final int threshold;
+
+        public CompressedAdapterFactory() {
+            this(COMPRESSION_THRESHOLD);
+        }
+
+        /**
+         * @param threshold min size of serialized value to compress
+         */
+        public CompressedAdapterFactory(int threshold) {
+            this.threshold = threshold;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked") // checked by reflection
+        public <T> TypeAdapter<T> create(Gson gson, TypeToken<T> type) {
+            if (type.getRawType() == Compressed.class) {
+                if (!(type.getType() instanceof ParameterizedType)) {
+                    throw new IllegalArgumentException("Type parameter not specified for Compressed type " + type);
+                }
+                Type valueType = ((ParameterizedType) type.getType()).getActualTypeArguments()[0];
+                TypeToken<?> valueToken = TypeToken.get(valueType);
+                return new CompressedHolderAdapter(new CompressedTypeAdapter(
+                    gson.getAdapter(valueToken), valueToken.getRawType(), threshold));
+            }
+            return new CompressedTypeAdapter<T>(gson.getAdapter(type), type.getRawType(), threshold);
+        }
+    }
+
+    /**
+     * Stores large values as BSON binary of {@link #B_COMPRESSED} subtype compressed by {@link LzCodec}.
+     * <p>Values are serialized to bytes before compression: {@code byte[]} as is, {@code String} as UTF-8,
+     * other types as JSON text using delegate adapter. Values smaller than threshold or incompressible ones
+     * are written by delegate adapter as usual, so they stay queryable and values written before compression
+     * was turned on are read properly.</p>
+     * <p>Binary data starts with codec id byte, so codec can be changed w/o migration.</p>
+     */
+    public static class CompressedTypeAdapter<T> extends TypeAdapter<T> {
+        private static final byte CODEC_LZ = 1;
+
+        private final TypeAdapter<T> delegate;
+        private final Class<? super T> rawType;
+        private final int threshold;
+
+        public CompressedTypeAdapter(TypeAdapter<T> delegate, Class<? super T> rawType, int threshold) {
+            this.delegate = delegate;
+            this.rawType = rawType;
+            this.threshold = threshold;
+        }
+
+        @Override
+        public void write(JsonWriter out, T value) throws IOException {
+            if (value == null) {
+                out.nullValue();
+                return;
+            }
+            byte[] stored = compress(value);
+            if (stored != null) {
+                BINARY_ADAPTER.write(out, new Binary(B_COMPRESSED, stored));
+            } else {
+                delegate.write(out, value);
+            }
+        }
+
+        @Override
+        public T read(JsonReader in) throws IOException {
+            Compressed<T> value = readCompressed(in);
+            return value != null? value.get(): null;
+        }
+
+        /**
+         * @return value which isn't decompressed yet, null if null stored
+         */
+        @Nullable
+        @SuppressWarnings("unchecked") // checked by reflection
+        Compressed<T> readCompressed(JsonReader in) throws IOException {
+            JsonToken peek = in.peek();
+            if (peek == JsonToken.NULL) {
+                in.nextNull();
+                return null;
+            }
+            if (peek != BEGIN_OBJECT) {
+                return Compressed.of(delegate.read(in));
+            }
+
+            JsonReader reader = in instanceof GsonBuffer.Prefetchable? in: new GsonBuffer.PrefetchableReader(in);
+            if (!F_BINARY.equals(((GsonBuffer.Prefetchable) reader).peekObjectField())) {
+                return Compressed.of(delegate.read(reader)); // uncompressed object
+            }
+            Binary binary = BINARY_ADAPTER.read(reader);
+            if (binary.getType() == B_COMPRESSED) {
+                return Compressed.stored(binary.getData(), this);
+            }
+            if (rawType == byte[].class) {
+                return Compressed.of((T) binary.getData()); // uncompressed bytes
+            }
+            throw new JsonSyntaxException(format("Unexpected Binary subtype %d at %s", binary.getType(), in.getPath()));
+        }
+
+        /**
+         * @return binary data to store or null if value shouldn't be compressed
+         */
+        @Nullable
+        byte[] compress(T value) throws IOException {
+            byte[] bytes;
+            if (rawType == byte[].class) {
+                bytes = (byte[]) value;
+            } else if (rawType == String.class) {
+                bytes = ((String) value).getBytes(Charsets.UTF_8);
+            } else {
+                StringWriter text = new StringWriter();
+                JsonWriter writer = new JsonWriter(text);
+                writer.setLenient(true);
+                writer.setSerializeNulls(false);
+                delegate.write(writer, value);
+                writer.close();
+                bytes = text.toString().getBytes(Charsets.UTF_8);
+            }
+            if (bytes.length < threshold) {
+                return null;
+            }
+            byte[] compressed = LzCodec.compress(bytes, 1);
+            if (compressed.length >= bytes.length) {
+                return null; // incompressible
+            }
+            compressed[0] = CODEC_LZ;
+            return compressed;
+        }
+
+        @SuppressWarnings("unchecked") // checked by reflection
+        T decompress(byte[] stored) {
+            if (stored.length == 0 || stored[0] != CODEC_LZ) {
+                throw new JsonSyntaxException("Unsupported compression codec " + (stored.length > 0? stored[0]: -1));
+            }
+            byte[] bytes;
+            try {
+                bytes = LzCodec.decompress(stored, 1);
+            } catch (IllegalArgumentException e) {
+                throw new JsonSyntaxException(e.getMessage(), e);
+            }
+            if (rawType == byte[].class) {
+                return (T) bytes;
+            }
+            String text = new String(bytes, Charsets.UTF_8);
+            if (rawType == String.class) {
+                return (T) text;
+            }
+            try {
+                JsonReader reader = new JsonReader(new StringReader(text));
+                reader.setLenient(true);
+                return delegate.read(reader);
+            } catch (IOException e) {
+                throw new JsonSyntaxException("Can't read compressed value", e);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "Compressed{for=" + delegate + "}";
+        }
+    }
+
+    public static class CompressedHolderAdapter<T> extends TypeAdapter<Compressed<T>> {
+        private final CompressedTypeAdapter<T> adapter;
+
+        public CompressedHolderAdapter(CompressedTypeAdapter<T> adapter) {
+            this.adapter = adapter;
+        }
+
+        @Override
+        public void write(JsonWriter out, Compressed<T> value) throws IOException {
+            if (value == null) {
+                out.nullValue();
+                return;
+            }
+            byte[] stored = value.getStored();
+            if (stored != null) {
+                BINARY_ADAPTER.write(out, new Binary(B_COMPRESSED, stored)); // write back w/o decompression
+            } else {
+                adapter.write(out, value.get());
+            }
+        }
+
+        @Override
+        public Compressed<T> read(JsonReader in) throws IOException {
+            return adapter.readCompressed(in);
+        }
+
+        @Override
+        public String toString() {
+            return "CompressedHolder{for=" + adapter + "}";
+        }
+    }
+
+    /**
+     * Installs {@link StreamedArrayTypeAdapter} for {@link StreamedArray} fields.
+     */
+    public static final TypeAdapterFactory STREAMED_ARRAY_ADAPTER_FACTORY = new TypeAdapterFactory() {
+        @Override
+        @SuppressWarnings("unchecked") // checked by reflection
+        public <T> TypeAdapter<T> create(Gson gson, TypeToken<T> type) {
+            if (type.getRawType() == StreamedArray.class) {
+                if (!(type.getType() instanceof ParameterizedType)) {
+                    throw new IllegalArgumentException("Type parameter not specified for StreamedArray type " + type);
+                }
+                Type elementType = ((ParameterizedType) type.getType()).getActualTypeArguments()[0];
+                return new StreamedArrayTypeAdapter(gson.getAdapter(TypeToken.get(elementType)));
+            }
+            return null;
+        }
+
+        @Override
+        public String toString() {
+            return "STREAMED_ARRAY_ADAPTER_FACTORY";
+        }
+    };
+
+    public static class StreamedArrayTypeAdapter<E> extends TypeAdapter<StreamedArray<E>> {
+        private final TypeAdapter<E> delegate;
+
+        public StreamedArrayTypeAdapter(TypeAdapter<E> delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public void write(JsonWriter out, StreamedArray<E> value) throws IOException {
+            if (value == null) {
+                out.nullValue();
+                return;
+            }
+            out.beginArray();
+            for (E element : value) {
+                delegate.write(out, element);
+            }
+            out.endArray();
+        }
+
+        @Override
+        public StreamedArray<E> read(JsonReader in) throws IOException {
+            JsonToken peek = in.peek();
+            if (peek == JsonToken.NULL) {
+                in.nextNull();
+                return null;
+            }
+            if (peek == JsonToken.BEGIN_ARRAY && in instanceof GsonReader) {
+                GsonReader reader = (GsonReader) in;
+                byte[] stored = reader.nextRawArray();
+                if (stored != null) {
+                    return StreamedArray.stored(stored, delegate, reader.getAliases());
+                }
+            }
+
+            // array is buffered already, read it as is
+            List<E> elements = new ArrayList<E>();
+            in.beginArray();
+            while (in.hasNext()) {
+                elements.add(delegate.read(in));
+            }
+            in.endArray();
+            return StreamedArray.of(elements);
+        }
+
+        @Override
+        public String toString() {
+            return "StreamedArray{for=" + delegate + "}";
+        }
+    }
+
     /**
      * Utility class which helps to parse {@link JsonReader} streams.
      * <p>Replacement for Java7 string switch syntax.</p>
+     * <p>Field names are placed into a hash table at construction time, seed of the hash function
+     * is chosen so that every name occupies its own slot. So {@link #match(String)} costs one hash
+     * computation and at most one comparison regardless of fields count. Hash is computed over
+     * UTF-8 representation of names so {@link #match(byte[], int, int)} can match raw names
+     * (see {@link BsonReader#nextName(FieldMatcher)}).</p>
+     * <p>Matcher is immutable and thread-safe, but costly to build: constructor searches up to
+     * {@code MAX_SEEDS} seeds per table size. Build it once and keep in a static field.</p>
      * <p>Usage example:
      * <pre>
+     * private static final FieldMatcher FIELDS = new FieldMatcher("field1", "field2", "field3");
+     * ...
      * String field1 = null;
      * Integer field2 = null;
      * Double field3 = null;
-     * FieldMatcher m = new FieldMatcher("field1", "field2", "field3"); // natural field order
      * in.beginObject();
      * while (in.hasNext()) {
-     *     switch (m.match(in.nextName())) {
+     *     switch (FIELDS.match(in.nextName())) {
      *         case 0: field1 = in.nextString(); break;
      *         case 1: field2 = in.nextInt(); break;
      *         case 2: field3 = in.nextDouble(); break;
@@ -654,79 +1100,364 @@ public final class GsonAdapters {
      * </pre></p>
      */
     public static class FieldMatcher {
+        private static final int MAX_SEEDS = 256;
+        private static final int FNV_BASIS = 0x811C9DC5;
+        private static final int FNV_PRIME = 0x01000193;
+
         private final String[] fields;
-        private int start;
+        private final byte[][] bytes;
+        private final int[] table; // field index per slot, -1 for empty slots
+        private final int mask;
+        private final int seed;
+        private final boolean perfect; // every field is placed in its home slot
 
         public FieldMatcher(String... fields) {
-            this.fields = fields;
+            this.fields = fields.clone();
+            this.bytes = new byte[fields.length][];
+            for (int i = 0; i < fields.length; i++) {
+                for (int j = 0; j < i; j++) {
+                    if (fields[i].equals(fields[j])) {
+                        throw new IllegalArgumentException("Duplicate field " + fields[i]);
+                    }
+                }
+                bytes[i] = fields[i].getBytes(Charsets.UTF_8);
+            }
+
+            // search for collision free seed, grow the table if needed
+            int size = Integer.highestOneBit(Math.max(fields.length, 1) * 2 - 1) << 1;
+            int seed = 0;
+            int[] table = place(size, seed, true);
+            while (table == null) {
+                if (++seed == MAX_SEEDS) {
+                    if (size >= fields.length * 16) {
+                        seed = 0;
+                        table = place(size, seed, false); // give up, use linear probing
+                        break;
+                    }
+                    size <<= 1;
+                    seed = 0;
+                }
+                table = place(size, seed, true);
+            }
+
+            this.table = table;
+            this.mask = size - 1;
+            this.seed = seed;
+            this.perfect = isPerfect(table, size, seed);
+        }
+
+        private int[] place(int size, int seed, boolean perfect) {
+            int[] table = new int[size];
+            Arrays.fill(table, -1);
+            for (int i = 0; i < fields.length; i++) {
+                int slot = hash(bytes[i], 0, bytes[i].length, seed) & (size - 1);
+                while (table[slot] >= 0) {
+                    if (perfect) {
+                        return null; // collision
+                    }
+                    slot = (slot + 1) & (size - 1);
+                }
+                table[slot] = i;
+            }
+            return table;
+        }
+
+        private boolean isPerfect(int[] table, int size, int seed) {
+            for (int i = 0; i < fields.length; i++) {
+                if (table[hash(bytes[i], 0, bytes[i].length, seed) & (size - 1)] != i) {
+                    return false;
+                }
+            }
+            return true;
         }
 
         public int match(String field) throws IOException {
-            int i = start;
-            do {
-                int p = i++;
-                if (i == fields.length) {
-                    i = 0; // loop indices
+            int slot = hash(field, seed) & mask;
+            for (int index = table[slot]; index >= 0; index = table[slot = (slot + 1) & mask]) {
+                if (fields[index].equals(field)) {
+                    return index;
                 }
-                if (fields[p].equals(field)) {
-                    start = i;
-                    return p;
+                if (perfect) {
+                    break;
                 }
-            } while (i != start);
+            }
+
+            // not found
+            return -1;
+        }
+
+        /**
+         * Matches field name in UTF-8 representation.
+         */
+        public int match(byte[] field, int offset, int length) {
+            int slot = hash(field, offset, length, seed) & mask;
+            for (int index = table[slot]; index >= 0; index = table[slot = (slot + 1) & mask]) {
+                if (equals(bytes[index], field, offset, length)) {
+                    return index;
+                }
+                if (perfect) {
+                    break;
+                }
+            }
 
             // not found
             return -1;
         }
 
+        /**
+         * @return field name by its index
+         */
+        public String field(int index) {
+            return fields[index];
+        }
+
+        private static boolean equals(byte[] expected, byte[] field, int offset, int length) {
+            if (expected.length != length) {
+                return false;
+            }
+            for (int i = 0; i < length; i++) {
+                if (expected[i] != field[offset + i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private static int hash(byte[] b, int offset, int length, int seed) {
+            int h = FNV_BASIS ^ seed;
+            for (int i = offset; i < offset + length; i++) {
+                h = (h ^ (b[i] & 0xFF)) * FNV_PRIME;
+            }
+            return h ^ h >>> 16;
+        }
+
+        private static int hash(String s, int seed) {
+            int h = FNV_BASIS ^ seed;
+            for (int i = 0; i < s.length(); i++) {
+                char c = s.charAt(i);
+                if (c >= 0x80) {
+                    byte[] b = s.getBytes(Charsets.UTF_8); // non ASCII names are rare
+                    return hash(b, 0, b.length, seed);
+                }
+                h = (h ^ c) * FNV_PRIME;
+            }
+            return h ^ h >>> 16;
+        }
+
         @Override
         public String toString() {
-            StringBuilder sb = new StringBuilder();
-            for (int i = 0; i < fields.length; i++) {
-                sb.append(',').append(fields[i]);
-                if (start == i) {
-                    sb.append('*');
+            return Arrays.toString(fields);
+        }
+    }
+
+    /**
+     * Fixed pattern formatter and parser for {@link #DATE_FORMAT}.
+     * <p>Produces exactly the same output as {@link SimpleDateFormat} w/o {@code Calendar} and
+     * intermediate objects. Canonical values are parsed directly to epoch millis, everything else
+     * (unpadded, out of range or lenient values, years before Gregorian cutover) is delegated
+     * to {@code SimpleDateFormat} so the set of accepted inputs stays the same.</p>
+     * <p>Instances are thread-confined, use {@link #get()} to obtain one. Time zone is captured
+     * on first use by thread just like cached {@code SimpleDateFormat} does.</p>
+     */
+    static final class DateCodec {
+        private static final int LENGTH = 28; // yyyy-MM-ddTHH:mm:ss.SSS+hhmm
+        private static final int MIN_YEAR = 1583; // first full year after Gregorian cutover
+        private static final int MAX_YEAR = 9999;
+        private static final long MILLIS_PER_DAY = 86400000L;
+        private static final ThreadLocal<DateCodec> cache = new ThreadLocal<DateCodec>();
+
+        private final char[] buf = new char[LENGTH];
+        private final TimeZone zone = TimeZone.getDefault();
+        private DateFormat fallback;
+
+        static DateCodec get() {
+            DateCodec codec = cache.get();
+            if (codec == null) {
+                cache.set(codec = new DateCodec());
+            }
+            return codec;
+        }
+
+        private DateCodec() {
+        }
+
+        String format(long millis) {
+            int offset = zone.getOffset(millis);
+            long local = millis + offset;
+            long days = Math.floorDiv(local, MILLIS_PER_DAY);
+            int time = (int) (local - days * MILLIS_PER_DAY);
+
+            // civil date from days since epoch
+            long z = days + 719468;
+            long era = Math.floorDiv(z, 146097);
+            int doe = (int) (z - era * 146097);
+            int yoe = (doe - doe / 1460 + doe / 36524 - doe / 146096) / 365;
+            int doy = doe - (365 * yoe + yoe / 4 - yoe / 100);
+            int mp = (5 * doy + 2) / 153;
+            int day = doy - (153 * mp + 2) / 5 + 1;
+            int month = mp < 10? mp + 3: mp - 9;
+            long year = yoe + era * 400 + (month <= 2? 1: 0);
+            if (year < MIN_YEAR || year > MAX_YEAR) {
+                return fallback().format(new Date(millis));
+            }
+
+            int zoneMinutes = offset / 60000;
+            char zoneSign = '+';
+            if (zoneMinutes < 0) {
+                zoneSign = '-';
+                zoneMinutes = -zoneMinutes;
+            }
+
+            char[] buf = this.buf;
+            digits(buf, 0, (int) year, 4);
+            buf[4] = '-';
+            digits(buf, 5, month, 2);
+            buf[7] = '-';
+            digits(buf, 8, day, 2);
+            buf[10] = 'T';
+            digits(buf, 11, time / 3600000, 2);
+            buf[13] = ':';
+            digits(buf, 14, time / 60000 % 60, 2);
+            buf[16] = ':';
+            digits(buf, 17, time / 1000 % 60, 2);
+            buf[19] = '.';
+            digits(buf, 20, time % 1000, 3);
+            buf[23] = zoneSign;
+            digits(buf, 24, zoneMinutes / 60, 2);
+            digits(buf, 26, zoneMinutes % 60, 2);
+            return new String(buf, 0, LENGTH);
+        }
+
+        long parse(String value, JsonReader in) {
+            if (value.length() == LENGTH
+                && value.charAt(4) == '-' && value.charAt(7) == '-' && value.charAt(10) == 'T'
+                && value.charAt(13) == ':' && value.charAt(16) == ':' && value.charAt(19) == '.') {
+                int year = digits(value, 0, 4);
+                int month = digits(value, 5, 2);
+                int day = digits(value, 8, 2);
+                int hour = digits(value, 11, 2);
+                int minute = digits(value, 14, 2);
+                int second = digits(value, 17, 2);
+                int millis = digits(value, 20, 3);
+                int zoneHour = digits(value, 24, 2);
+                int zoneMinute = digits(value, 26, 2);
+                char zoneSign = value.charAt(23);
+                if (year >= MIN_YEAR && month >= 1 && month <= 12 && day >= 1 && day <= lengthOfMonth(year, month)
+                    && hour >= 0 && hour < 24 && minute >= 0 && minute < 60 && second >= 0 && second < 60
+                    && millis >= 0 && zoneHour >= 0 && zoneHour < 24 && zoneMinute >= 0 && zoneMinute < 60
+                    && (zoneSign == '+' || zoneSign == '-')) {
+                    long offset = (zoneHour * 60 + zoneMinute) * 60000L;
+                    long local = epochDay(year, month, day) * MILLIS_PER_DAY
+                        + ((hour * 60 + minute) * 60 + second) * 1000L + millis;
+                    return zoneSign == '+'? local - offset: local + offset;
+                }
+            }
+
+            // non canonical value, use lenient parser
+            ParsePosition pos = new ParsePosition(0);
+            Date date = fallback().parse(value, pos);
+            if (pos.getIndex() != value.length()) {
+                throw new JsonSyntaxException(String.format("Invalid Date value '%s' at %d near to%s", value, pos.getErrorIndex(), in.getPath()));
+            }
+            return date.getTime();
+        }
+
+        private DateFormat fallback() {
+            if (fallback == null) {
+                fallback = new SimpleDateFormat(DATE_FORMAT, Locale.US);
+                fallback.setTimeZone(zone);
+            }
+            return fallback;
+        }
+
+        private static void digits(char[] buf, int pos, int value, int width) {
+            for (int i = pos + width - 1; i >= pos; i--, value /= 10) {
+                buf[i] = (char) ('0' + value % 10);
+            }
+        }
+
+        /**
+         * @return parsed decimal value, negative if non-digit found
+         */
+        private static int digits(String s, int pos, int width) {
+            int value = 0;
+            for (int i = pos; i < pos + width; i++) {
+                int digit = s.charAt(i) - '0';
+                if (digit < 0 || digit > 9) {
+                    return -1;
                 }
+                value = value * 10 + digit;
             }
-            return '[' + sb.substring(1) + ']';
+            return value;
+        }
+
+        private static int lengthOfMonth(int year, int month) {
+            switch (month) {
+                case 2: return year % 4 == 0 && (year % 100 != 0 || year % 400 == 0)? 29: 28;
+                case 4: case 6: case 9: case 11: return 30;
+                default: return 31;
+            }
+        }
+
+        /**
+         * @return days since epoch of specified Gregorian date
+         */
+        private static long epochDay(int year, int month, int day) {
+            int y = month <= 2? year - 1: year;
+            int era = y / 400; // positive years only
+            int yoe = y - era * 400;
+            int doy = (153 * (month > 2? month - 3: month + 9) + 2) / 5 + day - 1;
+            int doe = yoe * 365 + yoe / 4 - yoe / 100 + doy;
+            return era * 146097L + doe - 719468;
         }
     }
 
     /**
      * <p>Provides Base64 encoding and decoding.</p>
-     * <p>This class implements Base64 encoding</p>
-     * <p>Thanks to Apache Commons project. This class refactored from org.apache.commons.codec.binary</p>
-     * <p>Original Thanks to <a href="http://svn.apache.org/repos/asf/webservices/commons/trunk/modules/util/">commons</a> project in
-     * ws.apache.org for this code. </p>
+     * <p>Encoder translates 12 bits per table lookup. Decoder translates 4 chars per step and validates
+     * whole block at once.</p>
      */
     static final class Base64Codec {
-
         private static final int BYTES_PER_UNENCODED_BLOCK = 3;
         private static final int BYTES_PER_ENCODED_BLOCK = 4;
 
         /**
-         * Mask used to extract 6 bits, used when encoding
+         * Size of unencoded data encoded per chunk while streaming.
          */
-        private static final int SixBitMask = 0x3f;
+        private static final int CHUNK_SIZE = BYTES_PER_UNENCODED_BLOCK * 1024;
 
         /**
          * padding char
          */
-        private static final byte PAD = '=';
+        private static final char PAD = '=';
 
         /**
          * This array is a lookup table that translates 6-bit positive integer index values into their "Base64 Alphabet"
          * equivalents as specified in Table 1 of RFC 2045.
          */
-        private static final byte[] EncodeTable = {'A', 'B', 'C', 'D', 'E', 'F',
+        private static final char[] EncodeTable = {'A', 'B', 'C', 'D', 'E', 'F',
             'G', 'H', 'I', 'J', 'K', 'L', 'M', 'N', 'O', 'P', 'Q', 'R', 'S',
             'T', 'U', 'V', 'W', 'X', 'Y', 'Z', 'a', 'b', 'c', 'd', 'e', 'f',
             'g', 'h', 'i', 'j', 'k', 'l', 'm', 'n', 'o', 'p', 'q', 'r', 's',
             't', 'u', 'v', 'w', 'x', 'y', 'z', '0', '1', '2', '3', '4', '5',
             '6', '7', '8', '9', '+', '/'};
 
-        private static final int[] DecodeTable = new int[128];
+        /**
+         * Translates 12-bit values into pairs of Base64 chars, pair of n is stored at [2n, 2n+1].
+         */
+        private static final char[] PairTable = new char[2 << 12];
+
+        /**
+         * Translates chars into 6-bit values, -1 for chars out of alphabet.
+         */
+        private static final int[] DecodeTable = new int[256];
 
         static {
+            for (int i = 0; i < 1 << 12; i++) {
+                PairTable[i << 1] = EncodeTable[i >> 6];
+                PairTable[i << 1 | 1] = EncodeTable[i & 0x3F];
+            }
+            Arrays.fill(DecodeTable, -1);
             for (int i = 0; i < EncodeTable.length; i++) {
                 DecodeTable[EncodeTable[i]] = i;
             }
@@ -737,33 +1468,53 @@ public final class GsonAdapters {
 
         /**
          * Translates the specified Base64 string into a byte array.
+         * Trailing padding is optional.
          *
          * @param s the Base64 string (not null)
          * @return the byte array (not null)
+         * @throws IllegalArgumentException string contains invalid chars or has invalid length
          */
-        public static byte[] decode(String s) {
-            int delta = s.endsWith("==") ? 2 : s.endsWith("=") ? 1 : 0;
-            byte[] buffer = new byte[s.length() * BYTES_PER_UNENCODED_BLOCK / BYTES_PER_ENCODED_BLOCK - delta];
-            int mask = 0xFF;
+        public static byte[] decode(CharSequence s) {
+            int length = s.length();
+            if (length > 0 && s.charAt(length - 1) == PAD) {
+                length -= length > 1 && s.charAt(length - 2) == PAD? 2: 1;
+            }
+            int tail = length % BYTES_PER_ENCODED_BLOCK;
+            if (tail == 1) {
+                throw new IllegalArgumentException("Invalid Base64 length " + s.length());
+            }
+
+            byte[] buffer = new byte[length / BYTES_PER_ENCODED_BLOCK * BYTES_PER_UNENCODED_BLOCK + (tail > 0? tail - 1: 0)];
+            int full = length - tail;
             int pos = 0;
-            for (int i = 0; i < s.length(); i += BYTES_PER_ENCODED_BLOCK) {
-                int c0 = DecodeTable[s.charAt(i)];
-                int c1 = DecodeTable[s.charAt(i + 1)];
-                buffer[pos++] = (byte) (((c0 << 2) | (c1 >> 4)) & mask);
-                if (pos >= buffer.length) {
-                    return buffer;
+            for (int i = 0; i < full; i += BYTES_PER_ENCODED_BLOCK) {
+                int bits = decode(s, i) << 18 | decode(s, i + 1) << 12 | decode(s, i + 2) << 6 | decode(s, i + 3);
+                if (bits < 0) {
+                    throw new IllegalArgumentException("Invalid Base64 char near " + i);
+                }
+                buffer[pos++] = (byte) (bits >> 16);
+                buffer[pos++] = (byte) (bits >> 8);
+                buffer[pos++] = (byte) bits;
+            }
+
+            if (tail > 0) {
+                int bits = decode(s, full) << 18 | decode(s, full + 1) << 12 | (tail > 2? decode(s, full + 2) << 6: 0);
+                if (bits < 0) {
+                    throw new IllegalArgumentException("Invalid Base64 char near " + full);
                 }
-                int c2 = DecodeTable[s.charAt(i + 2)];
-                buffer[pos++] = (byte) (((c1 << 4) | (c2 >> 2)) & mask);
-                if (pos >= buffer.length) {
-                    return buffer;
+                buffer[pos++] = (byte) (bits >> 16);
+                if (tail > 2) {
+                    buffer[pos] = (byte) (bits >> 8);
                 }
-                int c3 = DecodeTable[s.charAt(i + 3)];
-                buffer[pos++] = (byte) (((c2 << 6) | c3) & mask);
             }
             return buffer;
         }
 
+        private static int decode(CharSequence s, int i) {
+            char c = s.charAt(i);
+            return c < DecodeTable.length? DecodeTable[c]: -1;
+        }
+
         /**
          * Translates the specified byte array into Base64 string.
          *
@@ -771,47 +1522,283 @@ public final class GsonAdapters {
          * @return the translated Base64 string (not null)
          */
         public static String encode(byte[] in) {
+            char[] buffer = new char[encodedLength(in.length)];
+            encode(in, 0, in.length, buffer);
+            return new String(buffer);
+        }
+
+        /**
+         * Translates the specified byte array into Base64 chunk by chunk, so the whole string is never built.
+         *
+         * @param in the byte array (not null)
+         * @param out the writer to append Base64 chars to (not null)
+         */
+        public static void encode(byte[] in, Writer out) throws IOException {
+            char[] buffer = new char[encodedLength(Math.min(in.length, CHUNK_SIZE))];
+            for (int off = 0; off < in.length; off += CHUNK_SIZE) {
+                int len = Math.min(in.length - off, CHUNK_SIZE);
+                out.write(buffer, 0, encode(in, off, len, buffer));
+            }
+        }
 
-            int modulus = 0;
-            int bitWorkArea = 0;
-            int numEncodedBytes = (in.length / BYTES_PER_UNENCODED_BLOCK) * BYTES_PER_ENCODED_BLOCK
-                + ((in.length % BYTES_PER_UNENCODED_BLOCK == 0) ? 0 : 4);
+        static int encodedLength(int length) {
+            return (length + BYTES_PER_UNENCODED_BLOCK - 1) / BYTES_PER_UNENCODED_BLOCK * BYTES_PER_ENCODED_BLOCK;
+        }
 
-            byte[] buffer = new byte[numEncodedBytes];
+        /**
+         * Encodes part of array into the buffer.
+         *
+         * @return number of chars written
+         */
+        private static int encode(byte[] in, int off, int len, char[] buffer) {
+            int end = off + len - len % BYTES_PER_UNENCODED_BLOCK;
             int pos = 0;
+            for (int i = off; i < end; i += BYTES_PER_UNENCODED_BLOCK) {
+                int bits = (in[i] & 0xFF) << 16 | (in[i + 1] & 0xFF) << 8 | in[i + 2] & 0xFF;
+                int hi = bits >> 11 & ~1;
+                int lo = (bits & 0xFFF) << 1;
+                buffer[pos++] = PairTable[hi];
+                buffer[pos++] = PairTable[hi | 1];
+                buffer[pos++] = PairTable[lo];
+                buffer[pos++] = PairTable[lo | 1];
+            }
 
-            for (int b : in) {
-                modulus = (modulus + 1) % BYTES_PER_UNENCODED_BLOCK;
+            switch (len % BYTES_PER_UNENCODED_BLOCK) { // 0-2
+                case 1: { // 8 bits = 6 + 2
+                    int bits = in[end] & 0xFF;
+                    buffer[pos++] = EncodeTable[bits >> 2];
+                    buffer[pos++] = EncodeTable[bits << 4 & 0x3F];
+                    buffer[pos++] = PAD;
+                    buffer[pos++] = PAD;
+                    break;
+                }
 
-                if (b < 0)
-                    b += 256;
+                case 2: { // 16 bits = 6 + 6 + 4
+                    int bits = (in[end] & 0xFF) << 8 | in[end + 1] & 0xFF;
+                    buffer[pos++] = EncodeTable[bits >> 10];
+                    buffer[pos++] = EncodeTable[bits >> 4 & 0x3F];
+                    buffer[pos++] = EncodeTable[bits << 2 & 0x3F];
+                    buffer[pos++] = PAD;
+                    break;
+                }
+            }
+            return pos;
+        }
+    }
 
-                bitWorkArea = (bitWorkArea << 8) + b; //  BITS_PER_BYTE
-                if (0 == modulus) { // 3 bytes = 24 bits = 4 * 6 bits to extract
-                    buffer[pos++] = EncodeTable[(bitWorkArea >> 18) & SixBitMask];
-                    buffer[pos++] = EncodeTable[(bitWorkArea >> 12) & SixBitMask];
-                    buffer[pos++] = EncodeTable[(bitWorkArea >> 6) & SixBitMask];
-                    buffer[pos++] = EncodeTable[bitWorkArea & SixBitMask];
+    /**
+     * <p>JSON writer which streams binary values as Base64 chunk by chunk right into the underlying writer.</p>
+     * <p>JsonWriter has no raw value API, so placeholder string is written in place of binary and
+     * substituted by encoded data when it reaches the underlying writer. Placeholder is matched by
+     * identity, thus user strings are never substituted.</p>
+     */
+    static final class Base64JsonWriter extends JsonWriter {
+        private final Substitution out;
+
+        Base64JsonWriter(Writer out) {
+            this(new Substitution(out));
+        }
+
+        private Base64JsonWriter(Substitution out) {
+            super(out);
+            this.out = out;
+        }
+
+        void binaryValue(byte[] data) throws IOException {
+            out.pending = data;
+            try {
+                value(out.placeholder);
+            } finally {
+                out.pending = null;
+            }
+        }
+
+        private static final class Substitution extends FilterWriter {
+            private final String placeholder = new String("binary"); // compared by identity
+            private byte[] pending;
+
+            Substitution(Writer out) {
+                super(out);
+            }
+
+            @Override
+            public void write(String str, int off, int len) throws IOException {
+                if (str == placeholder && pending != null) {
+                    Base64Codec.encode(pending, out);
+                } else {
+                    out.write(str, off, len);
                 }
             }
+        }
+    }
 
-            switch (modulus) { // 0-2
-                case 1: // 8 bits = 6 + 2
-                    buffer[pos++] = EncodeTable[(bitWorkArea >> 2) & SixBitMask]; // top 6 bits
-                    buffer[pos++] = EncodeTable[(bitWorkArea << 4) & SixBitMask]; // remaining 2
-                    buffer[pos++] = PAD;
-                    buffer[pos] = PAD; // Last entry no need to ++
+    /**
+     * Pure Java LZ77 codec of LZ4 block family.
+     * <p>Block is prefixed by varint length of uncompressed data and consists of sequences: token byte
+     * holds literal count and match length in its nibbles (15 means continued by bytes up to first
+     * non-255 one), then literals and 2-byte little-endian offset of match follow. Last sequence
+     * has literals only.</p>
+     * <p>Matches are found using single-entry hash table of 4-byte prefixes, so compression is greedy
+     * and fast rather than tight. It works well on verbose text like JSON.</p>
+     */
+    static final class LzCodec {
+        private static final int MIN_MATCH = 4;
+        private static final int MAX_OFFSET = 0xFFFF;
+        private static final int HASH_BITS = 12;
+        private static final int MASK = 0x0F;
+
+        private LzCodec() { }
+
+        /**
+         * @param offset number of bytes to reserve at the beginning of result
+         */
+        static byte[] compress(byte[] src, int offset) {
+            int length = src.length;
+            byte[] dst = new byte[offset + 5 + length + length / 127 + 16];
+            int op = offset;
+            for (int v = length; ; v >>>= 7) { // varint length
+                if ((v & ~0x7F) == 0) {
+                    dst[op++] = (byte) v;
                     break;
+                }
+                dst[op++] = (byte) (v & 0x7F | 0x80);
+            }
+
+            int[] table = new int[1 << HASH_BITS]; // position + 1 of last occurrence of prefix
+            int anchor = 0;
+            int ip = 0;
+            while (ip <= length - MIN_MATCH) {
+                int prefix = readInt(src, ip);
+                int hash = (prefix * -1640531535) >>> (32 - HASH_BITS);
+                int ref = table[hash] - 1;
+                table[hash] = ip + 1;
+                if (ref < 0 || ip - ref > MAX_OFFSET || readInt(src, ref) != prefix) {
+                    ip++;
+                    continue;
+                }
+                int match = MIN_MATCH;
+                while (ip + match < length && src[ref + match] == src[ip + match]) {
+                    match++;
+                }
+                op = writeLiterals(src, anchor, ip - anchor, match - MIN_MATCH, dst, op);
+                dst[op++] = (byte) (ip - ref);
+                dst[op++] = (byte) (ip - ref >>> 8);
+                if (match - MIN_MATCH >= MASK) {
+                    op = writeLength(match - MIN_MATCH - MASK, dst, op);
+                }
+                ip += match;
+                anchor = ip;
+            }
+            op = writeLiterals(src, anchor, length - anchor, 0, dst, op);
+            return Arrays.copyOf(dst, op);
+        }
 
-                case 2: // 16 bits = 6 + 6 + 4
-                    buffer[pos++] = EncodeTable[(bitWorkArea >> 10) & SixBitMask];
-                    buffer[pos++] = EncodeTable[(bitWorkArea >> 4) & SixBitMask];
-                    buffer[pos++] = EncodeTable[(bitWorkArea << 2) & SixBitMask];
-                    buffer[pos] = PAD; // Last entry no need to ++
+        private static int writeLiterals(byte[] src, int start, int count, int match, byte[] dst, int op) {
+            dst[op++] = (byte) (Math.min(count, MASK) << 4 | Math.min(match, MASK));
+            if (count >= MASK) {
+                op = writeLength(count - MASK, dst, op);
+            }
+            System.arraycopy(src, start, dst, op, count);
+            return op + count;
+        }
+
+        private static int writeLength(int length, byte[] dst, int op) {
+            for (; length >= 0xFF; length -= 0xFF) {
+                dst[op++] = (byte) 0xFF;
+            }
+            dst[op++] = (byte) length;
+            return op;
+        }
+
+        private static int readInt(byte[] src, int i) {
+            return (src[i] & 0xFF) | (src[i + 1] & 0xFF) << 8 | (src[i + 2] & 0xFF) << 16 | src[i + 3] << 24;
+        }
+
+        /**
+         * @param offset position of compressed block in source array
+         * @throws IllegalArgumentException if data is corrupted
+         */
+        static byte[] decompress(byte[] src, int offset) {
+            int ip = offset;
+            int length = 0;
+            for (int shift = 0; ; shift += 7) { // varint length
+                if (ip >= src.length || shift > 28) {
+                    throw corrupted(ip);
+                }
+                byte b = src[ip++];
+                length |= (b & 0x7F) << shift;
+                if (b >= 0) {
                     break;
+                }
+            }
+            if (length < 0) {
+                throw corrupted(offset);
             }
 
-            return new String(buffer);
+            byte[] dst = new byte[length];
+            int op = 0;
+            while (true) {
+                if (ip >= src.length) {
+                    throw corrupted(ip); // last sequence expected
+                }
+                int token = src[ip++] & 0xFF;
+                int literals = token >>> 4;
+                if (literals == MASK) {
+                    int b;
+                    do {
+                        if (ip >= src.length) {
+                            throw corrupted(ip);
+                        }
+                        literals += b = src[ip++] & 0xFF;
+                    } while (b == 0xFF);
+                }
+                if (literals < 0 || literals > src.length - ip || literals > length - op) {
+                    throw corrupted(ip);
+                }
+                System.arraycopy(src, ip, dst, op, literals);
+                ip += literals;
+                op += literals;
+                if (ip == src.length) {
+                    break; // last sequence
+                }
+
+                if (ip + 2 > src.length) {
+                    throw corrupted(ip);
+                }
+                int distance = (src[ip] & 0xFF) | (src[ip + 1] & 0xFF) << 8;
+                ip += 2;
+                int match = token & MASK;
+                if (match == MASK) {
+                    int b;
+                    do {
+                        if (ip >= src.length) {
+                            throw corrupted(ip);
+                        }
+                        match += b = src[ip++] & 0xFF;
+                    } while (b == 0xFF);
+                }
+                match += MIN_MATCH;
+                if (distance == 0 || distance > op || match < 0 || match > length - op) {
+                    throw corrupted(ip);
+                }
+                int ref = op - distance;
+                if (distance >= match) {
+                    System.arraycopy(dst, ref, dst, op, match);
+                    op += match;
+                } else {
+                    for (int end = op + match; op < end; ) { // overlapped copy repeats pattern
+                        dst[op++] = dst[ref++];
+                    }
+                }
+            }
+            if (op != length) {
+                throw corrupted(ip);
+            }
+            return dst;
+        }
+
+        private static IllegalArgumentException corrupted(int position) {
+            return new IllegalArgumentException("Corrupted compressed data at " + position);
         }
     }
 }
@@ -41,6 +41,13 @@ public final class GsonBuffer {
         tokens.clear();
     }
 
+    /**
+     * @return number of buffered tokens including values
+     */
+    int size() {
+        return tokens.size();
+    }
+
     public JsonBufferedReader reader() {
         return reader;
     }
@@ -85,7 +92,8 @@ public final class GsonBuffer {
                 case NUMBER:
                 case BOOLEAN:
                 case NULL:
-                    sb.append(delimiter).append(it.hasNext()? it.next(): "<NULL>");
+                    Object value = it.hasNext()? it.next(): "<NULL>";
+                    sb.append(delimiter).append(value instanceof byte[]? "<BINARY>": value);
                     delimiter = ", ";
                     break;
 
@@ -107,6 +115,13 @@ public final class GsonBuffer {
          */
         @Nullable
         String peekObjectField() throws IOException;
+
+        /**
+         * Prefetch first object field and its value if the value is a string, e.g. type discriminator.
+         * @return value of first field, null if field not found or its value isn't a string
+         */
+        @Nullable
+        String peekObjectString() throws IOException;
     }
 
     /**
@@ -175,6 +190,15 @@ public final class GsonBuffer {
             return this;
         }
 
+        /**
+         * Buffers binary data as is. Data is translated to Base64 only if it's read as a string.
+         */
+        public JsonWriter binaryValue(byte[] value) {
+            tokens.add(STRING);
+            tokens.add(value);
+            return this;
+        }
+
         @Override
         public JsonWriter value(boolean value) {
             tokens.add(BOOLEAN);
@@ -253,6 +277,22 @@ public final class GsonBuffer {
             return null;
         }
 
+        @Override
+        @Nullable
+        public String peekObjectString() {
+            Iterator<Object> it = tokens.iterator();
+            if (it.hasNext() && it.next() == BEGIN_OBJECT) {
+                if (it.hasNext() && it.next() == NAME && it.hasNext()) {
+                    it.next(); // name
+                    if (it.hasNext() && it.next() == STRING) {
+                        Object value = it.next();
+                        return value instanceof String? (String) value: null;
+                    }
+                }
+            }
+            return null;
+        }
+
         @Override
         public boolean hasNext() {
             Object token = tokens.peek();
@@ -314,7 +354,8 @@ public final class GsonBuffer {
             Object peek = tokens.peek();
             if (peek == STRING) {
                 tokens.remove();
-                return (String) tokens.remove();
+                Object value = tokens.remove();
+                return value instanceof byte[]? GsonAdapters.Base64Codec.encode((byte[]) value): (String) value;
             }
             if (peek == NUMBER) {
                 tokens.remove();
@@ -327,6 +368,18 @@ public final class GsonBuffer {
             throw new IllegalStateException("Expected STRING but was: " + peek);
         }
 
+        /**
+         * Reads binary data buffered by {@link JsonBufferedWriter#binaryValue(byte[])} or Base64 string.
+         */
+        public byte[] nextBinary() {
+            if (tokens.peek() != STRING) {
+                throw new IllegalStateException("Expected STRING but was: " + tokens.peek());
+            }
+            tokens.remove();
+            Object value = tokens.remove();
+            return value instanceof byte[]? (byte[]) value: GsonAdapters.Base64Codec.decode((String) value);
+        }
+
         @Override
         public boolean nextBoolean() {
             if (tokens.peek() != BOOLEAN) {
@@ -445,6 +498,7 @@ public final class GsonBuffer {
         private final JsonReader reader;
         private boolean prefetchedObject;
         private String prefetchedName;
+        private String prefetchedValue;
 
         public PrefetchableReader(JsonReader reader) {
             super(NULL_READER);
@@ -456,12 +510,14 @@ public final class GsonBuffer {
             reader.close();
             prefetchedObject = false;
             prefetchedName = null;
+            prefetchedValue = null;
         }
 
         @Override
         public String toString() {
             return String.format("Prefetcher{%s(%s)}", reader,
-                prefetchedObject? "BEGIN_OBJECT": prefetchedName != null? prefetchedName: ""
+                prefetchedObject? "BEGIN_OBJECT": prefetchedName != null? prefetchedName:
+                    prefetchedValue != null? prefetchedValue: ""
             );
         }
 
@@ -483,6 +539,9 @@ public final class GsonBuffer {
             if (prefetchedName != null) {
                 return NAME;
             }
+            if (prefetchedValue != null) {
+                return STRING;
+            }
             return reader.peek();
         }
 
@@ -504,8 +563,20 @@ public final class GsonBuffer {
             return null;
         }
 
+        @Nullable
+        @Override
+        public String peekObjectString() throws IOException {
+            if (peekObjectField() == null) {
+                return null;
+            }
+            if (prefetchedValue == null && reader.peek() == STRING) {
+                prefetchedValue = reader.nextString();
+            }
+            return prefetchedValue;
+        }
+
         private boolean isPrefetched() {
-            return prefetchedObject || prefetchedName != null;
+            return prefetchedObject || prefetchedName != null || prefetchedValue != null;
         }
 
         @Override
@@ -558,9 +629,14 @@ public final class GsonBuffer {
 
         @Override
         public String nextString() throws IOException {
-            if (isPrefetched()) {
+            if (prefetchedObject || prefetchedName != null) {
                 throw new IllegalStateException("Expected STRING, but got " + toString());
             }
+            if (prefetchedValue != null) {
+                String value = prefetchedValue;
+                prefetchedValue = null;
+                return value;
+            }
             return reader.nextString();
         }
 
@@ -610,8 +686,11 @@ public final class GsonBuffer {
                 // Skip object already fetched
                 prefetchedObject = false;
                 if (prefetchedName != null) {
-                    reader.skipValue();
+                    if (prefetchedValue == null) {
+                        reader.skipValue();
+                    }
                     prefetchedName = null;
+                    prefetchedValue = null;
                 }
                 while (reader.hasNext()) {
                     reader.nextName();
@@ -623,6 +702,10 @@ public final class GsonBuffer {
             if (prefetchedName != null) {
                 throw new IllegalStateException("Expected VALUE, but got " + toString());
             }
+            if (prefetchedValue != null) {
+                prefetchedValue = null;
+                return;
+            }
             reader.skipValue();
         }
     }
@@ -4,23 +4,59 @@
 package com.maxifier.mongo;
 
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Function;
+import com.google.common.collect.Iterators;
 import com.google.gson.Gson;
 import com.mongodb.*;
 import org.bson.BSONCallback;
 import org.bson.BSONObject;
+import org.bson.BasicBSONObject;
+import org.bson.io.BasicOutputBuffer;
 import org.bson.io.OutputBuffer;
 import org.bson.types.Binary;
+import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import javax.annotation.Nullable;
 import java.io.ByteArrayInputStream;
 import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.Writer;
+import java.lang.ref.WeakReference;
 import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.math.BigInteger;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Queue;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
 
 /**
  * {@link DBCollection} wrapper which works with <em>Gson</em> configured POJOs.
@@ -28,76 +64,619 @@ import static java.util.concurrent.TimeUnit.MILLISECONDS;
  * @author Konstantin Lyamshin (2014-12-29 15:45)
  */
 public class GsonDBCollection<T> {
+    private static final Logger logger = LoggerFactory.getLogger(GsonDBCollection.class);
+    private static final int DEFAULT_PREFETCH_CHUNK = 100;
+    private static final int MAX_POOLED_CODECS = 64;
+
     private final DBCollection dbc;
     private final Class<T> clazz;
     private final Gson gson;
+    private final GsonDBCollection<?> root; // null for root collection
+    private final String name;
+    private final ConcurrentMap<Class<?>, GsonDBCollection<?>> views = new ConcurrentHashMap<Class<?>, GsonDBCollection<?>>();
+    private final CodecPool<GsonDBEncoder> encoders = new CodecPool<GsonDBEncoder>(MAX_POOLED_CODECS);
+    private final CodecPool<GsonDBDecoder> decoders = new CodecPool<GsonDBDecoder>(MAX_POOLED_CODECS);
+    private final DBDecoderFactory decoderFactory = new DBDecoderFactory() {
+        @Override
+        public DBDecoder create() {
+            GsonDBDecoder decoder = decoders.get();
+            if (decoder != null && !decoder.busy) {
+                return decoder;
+            }
+            GsonDBDecoder created = new GsonDBDecoder();
+            if (decoder == null) {
+                decoders.bind(created);
+            }
+            return created;
+        }
+    };
+    private final ThreadLocal<RawEncoder> rawEncoders = new ThreadLocal<RawEncoder>();
+    private volatile DBObject projection;
+    private volatile BsonBridgeMetrics metrics = BsonBridgeMetrics.NOOP; // used by root collection only
+    private volatile OperationTracer tracer; // used by root collection only
+    private volatile FieldProfiler profiler; // used by root collection only
+    private volatile FieldAliases aliases; // used by root collection only
+    private volatile IdCache idCache;
+    private volatile QueryCache queryCache;
 
     public GsonDBCollection(DBCollection dbc, Class<T> rootClass, Gson gson) {
         this.dbc = dbc;
         this.clazz = rootClass;
         this.gson = gson;
+        this.root = null;
+        this.name = dbc.getName();
         dbc.setDBEncoderFactory(new DBEncoderFactory() {
             @Override
             public DBEncoder create() {
-                return new GsonDBEncoder();
-            }
-        });
-        dbc.setDBDecoderFactory(new DBDecoderFactory() {
-            @Override
-            public DBDecoder create() {
-                return new GsonDBDecoder();
+                GsonDBEncoder encoder = encoders.get();
+                if (encoder != null && !encoder.busy) {
+                    return encoder;
+                }
+                GsonDBEncoder created = new GsonDBEncoder();
+                if (encoder == null) {
+                    encoders.bind(created);
+                }
+                return created;
             }
         });
+        dbc.setDBDecoderFactory(decoderFactory);
         dbc.setObjectClass(null);
     }
 
+    private GsonDBCollection(GsonDBCollection<?> root, Class<T> viewClass) {
+        this.dbc = root.dbc;
+        this.clazz = viewClass;
+        this.gson = root.gson;
+        this.root = root;
+        this.name = root.name;
+    }
+
     public DBCollection getDBCollection() {
         return dbc;
     }
 
+    /**
+     * Returns view of the same collection which reads documents as another class,
+     * e.g. lightweight POJO with subset of fields. Views share {@link DBCollection}
+     * and cache invalidation with root collection, but have own caches and projection.
+     * Use {@code view.setProjection(GsonProjection.of(gson, viewClass))} to fetch mapped fields only.
+     */
+    @SuppressWarnings("unchecked")
+    public <V> GsonDBCollection<V> view(Class<V> viewClass) {
+        if (root != null) {
+            return root.view(viewClass);
+        }
+        if (viewClass == clazz) {
+            return (GsonDBCollection<V>) this;
+        }
+        GsonDBCollection<?> view = views.get(viewClass);
+        if (view == null) {
+            GsonDBCollection<?> existing = views.putIfAbsent(viewClass, view = new GsonDBCollection<V>(this, viewClass));
+            if (existing != null) {
+                view = existing;
+            }
+        }
+        return (GsonDBCollection<V>) view;
+    }
+
+    /**
+     * Sets receiver of operation and serialization metrics, shared by root collection and its views.
+     */
+    public void setMetrics(BsonBridgeMetrics metrics) {
+        (root != null? root: this).metrics = metrics;
+    }
+
+    public BsonBridgeMetrics getMetrics() {
+        return (root != null? root: this).metrics;
+    }
+
+    /**
+     * Sets tracer of operation latencies, shared by root collection and its views, or disables tracing if null.
+     */
+    public void setTracer(@Nullable OperationTracer tracer) {
+        (root != null? root: this).tracer = tracer;
+    }
+
+    @Nullable
+    public OperationTracer getTracer() {
+        return (root != null? root: this).tracer;
+    }
+
+    /**
+     * Sets profiler of document fields, shared by root collection and its views, or disables profiling if null.
+     */
+    public void setProfiler(@Nullable FieldProfiler profiler) {
+        (root != null? root: this).profiler = profiler;
+    }
+
+    @Nullable
+    public FieldProfiler getProfiler() {
+        return (root != null? root: this).profiler;
+    }
+
+    /**
+     * Sets stored names of document fields, shared by root collection and its views, or disables aliasing if null.
+     * <p>Should be set before collection is used, because documents stored with different aliases can't be read.</p>
+     */
+    public void setAliases(@Nullable FieldAliases aliases) {
+        (root != null? root: this).aliases = aliases;
+    }
+
+    @Nullable
+    public FieldAliases getAliases() {
+        return (root != null? root: this).aliases;
+    }
+
+    /**
+     * @return query, update, projection or sort with stored field names
+     */
+    @Nullable
+    DBObject stored(@Nullable DBObject query) {
+        FieldAliases aliases = getAliases();
+        return aliases != null? aliases.translate(query): query;
+    }
+
+    /**
+     * @return operation start time for {@link #traced(String, DBObject, long, DBCursor)}
+     */
+    private long operation(String operation) {
+        getMetrics().operation(name, operation);
+        return System.nanoTime();
+    }
+
+    private void traced(String operation, @Nullable DBObject query, long start, @Nullable DBCursor cursor) {
+        OperationTracer tracer = getTracer();
+        if (tracer != null) {
+            tracer.traced(name, operation, query, System.nanoTime() - start, cursor);
+        }
+    }
+
+    /**
+     * Sets fields fetched by queries which don't specify {@link QueryBuilder#fields(DBObject)}.
+     * <p>Whole documents are fetched by default. Use {@link GsonProjection#of(Gson, Class)} to fetch
+     * fields mapped by class only. Driver marks {@link GsonDBObject}s read with projection as partial.</p>
+     */
+    public void setProjection(@Nullable DBObject projection) {
+        this.projection = projection;
+    }
+
+    @Nullable
+    public DBObject getProjection() {
+        return projection;
+    }
+
+    /**
+     * Enables read-through cache of {@link #findOne(DBObject)} by {@code _id}, or disables it if null.
+     */
+    public void setIdCache(@Nullable IdCache idCache) {
+        this.idCache = idCache;
+    }
+
+    @Nullable
+    public IdCache getIdCache() {
+        return idCache;
+    }
+
+    /**
+     * Sets cache of {@link QueryBuilder#cached()} query results, or disables caching if null.
+     */
+    public void setQueryCache(@Nullable QueryCache queryCache) {
+        this.queryCache = queryCache;
+    }
+
+    @Nullable
+    public QueryCache getQueryCache() {
+        return queryCache;
+    }
+
+    /**
+     * Invalidates cached documents which could be modified by query, all cached documents if query is null.
+     * Caches of root collection and all its views are invalidated.
+     */
+    void written(@Nullable DBObject query) {
+        GsonDBCollection<?> root = this.root != null? this.root: this;
+        root.invalidate(query, false);
+        for (GsonDBCollection<?> view : root.views.values()) {
+            view.invalidate(query, false);
+        }
+    }
+
+    /**
+     * Invalidates cached query results of root collection and all its views.
+     */
+    void inserted() {
+        GsonDBCollection<?> root = this.root != null? this.root: this;
+        root.invalidate(null, true);
+        for (GsonDBCollection<?> view : root.views.values()) {
+            view.invalidate(null, true);
+        }
+    }
+
+    private void invalidate(@Nullable DBObject query, boolean inserted) {
+        IdCache documents = idCache;
+        if (documents != null && !inserted) {
+            documents.invalidate(query);
+        }
+        QueryCache results = queryCache;
+        if (results != null) {
+            results.invalidateAll();
+        }
+    }
+
     // ---- Simple update ----------------------------------------------------------------------------------------------
 
     public WriteResult insert(T doc) {
-        return dbc.insert(GsonWrapper.of(doc));
+        long start = operation("insert");
+        try {
+            return dbc.insert(GsonWrapper.of(doc));
+        } finally {
+            inserted();
+            traced("insert", null, start, null);
+        }
     }
 
     public WriteResult updateAll(DBObject query, DBObject update) {
-        return dbc.update(query, update, false, true);
+        long start = operation("update");
+        try {
+            return dbc.update(stored(query), stored(update), false, true);
+        } finally {
+            written(query);
+            traced("update", query, start, null);
+        }
     }
 
     public WriteResult updateOne(DBObject query, DBObject update) {
-        return dbc.update(query, update, false, false);
+        long start = operation("update");
+        try {
+            return dbc.update(stored(query), stored(update), false, false);
+        } finally {
+            written(query);
+            traced("update", query, start, null);
+        }
     }
 
     public WriteResult upsertOne(DBObject query, DBObject upsert) {
-        return dbc.update(query, upsert, true, false);
+        long start = operation("upsert");
+        try {
+            return dbc.update(stored(query), stored(upsert), true, false);
+        } finally {
+            written(query);
+            traced("upsert", query, start, null);
+        }
     }
 
     public WriteResult removeAll(DBObject query) {
-        return dbc.remove(query);
+        long start = operation("remove");
+        try {
+            return dbc.remove(stored(query));
+        } finally {
+            written(query);
+            traced("remove", query, start, null);
+        }
     }
 
     // ---- Query ------------------------------------------------------------------------------------------------------
 
     public T findOne(DBObject query) {
-        GsonWrapper wrapper = (GsonWrapper) dbc.findOne(query);
-        return wrapper != null? clazz.cast(wrapper.getPojo()): null;
+        long start = operation("findOne");
+        IdCache cache = idCache;
+        Object id = cache != null? IdCache.idOf(query): null;
+        if (id == null) {
+            Cursor cursor = new Cursor(find(query).limit(-1).cursor(), query);
+            cursor.traced = false;
+            try {
+                return cursor.hasNext()? cursor.next(): null;
+            } finally {
+                cursor.close();
+                traced("findOne", query, start, cursor.cursor);
+            }
+        }
+
+        byte[] bytes = cache.get(id);
+        FlightRecorderEvents.cacheLookup(name, "id", bytes != null);
+        if (bytes == null) {
+            long generation = cache.generation();
+            DBCursor cursor = find(query).limit(-1).cursor();
+            cursor.setDecoderFactory(RawDBObject.DECODER_FACTORY);
+            try {
+                if (!cursor.hasNext()) {
+                    return null;
+                }
+                bytes = ((RawDBObject) cursor.next()).getBytes();
+            } finally {
+                cursor.close();
+                traced("findOne", query, start, cursor);
+            }
+            cache.put(id, bytes, generation);
+        }
+        GsonWrapper wrapper = (GsonWrapper) decoderFactory.create().readObject(bytes);
+        return clazz.cast(wrapper.getPojo());
     }
 
     public QueryBuilder find(DBObject query) {
         return new QueryBuilder(query);
     }
 
+    // ---- Parallel scan ----------------------------------------------------------------------------------------------
+
+    /**
+     * Splits query into {@code partitions} disjoint {@code _id} ranges which could be fetched concurrently.
+     * <p>If {@code _id} values are ObjectIds, ranges split creation time evenly. Integer values are split
+     * evenly too. Otherwise split points are taken from {@code _id} index by splitVector command; if it fails
+     * (e.g. isn't permitted) query is scanned by one cursor. All {@code _id} values should be of the same
+     * type because range operators match single BSON type.</p>
+     */
+    public ParallelScan parallelScan(DBObject query, int partitions) {
+        if (partitions <= 0) {
+            throw new IllegalArgumentException("Invalid partitions count " + partitions);
+        }
+        return parallelScan(query, splitPoints(query, partitions));
+    }
+
+    /**
+     * Splits query into {@code _id} ranges by given ascending split points.
+     */
+    public ParallelScan parallelScan(DBObject query, List<?> splitPoints) {
+        return new ParallelScan(new QueryBuilder(query).ranges(splitPoints));
+    }
+
+    @VisibleForTesting
+    static DBObject rangeQuery(DBObject query, @Nullable Object lower, @Nullable Object upper) {
+        BasicDBObject range = new BasicDBObject();
+        if (lower != null) {
+            range.put("$gte", lower);
+        }
+        if (upper != null) {
+            range.put("$lt", upper);
+        }
+        if (range.isEmpty()) {
+            return query;
+        }
+        if (query.keySet().isEmpty()) {
+            return new BasicDBObject("_id", range);
+        }
+        return new BasicDBObject("$and", Arrays.asList(query, new BasicDBObject("_id", range)));
+    }
+
+    private List<Object> splitPoints(DBObject query, int partitions) {
+        Object min = boundaryId(query, 1);
+        Object max = boundaryId(query, -1);
+        if (partitions == 1 || min == null || min.equals(max)) {
+            return Collections.emptyList();
+        }
+        if (min instanceof ObjectId && max instanceof ObjectId) {
+            return splitObjectIds((ObjectId) min, (ObjectId) max, partitions);
+        }
+        if ((min instanceof Integer || min instanceof Long) && (max instanceof Integer || max instanceof Long)) {
+            return splitNumbers(((Number) min).longValue(), ((Number) max).longValue(), partitions);
+        }
+        return splitVector(min, max, partitions);
+    }
+
+    private Object boundaryId(DBObject query, int order) {
+        DBCursor cursor = dbc.find(stored(query), new BasicDBObject("_id", 1))
+            .sort(new BasicDBObject("_id", order))
+            .limit(-1);
+        cursor.setDecoderFactory(DefaultDBDecoder.FACTORY);
+        try {
+            return cursor.hasNext()? cursor.next().get("_id"): null;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Takes split points from {@code _id} index by splitVector command. Server walks index keys of
+     * {@code [min, max)} range once. Query isn't applied, so ranges are balanced by all documents.
+     */
+    private List<Object> splitVector(Object min, Object max, int partitions) {
+        CommandResult stats = dbc.getStats();
+        Object size = stats.ok()? stats.get("size"): null;
+        if (!(size instanceof Number) || ((Number) size).longValue() <= 0) {
+            return Collections.emptyList();
+        }
+        CommandResult result = dbc.getDB().command(new BasicDBObject("splitVector", dbc.getFullName())
+            .append("keyPattern", new BasicDBObject("_id", 1))
+            .append("min", new BasicDBObject("_id", min))
+            .append("max", new BasicDBObject("_id", max))
+            .append("maxChunkSizeBytes", Math.max(1L, ((Number) size).longValue() * 2 / partitions)) // splits at half size
+            .append("maxSplitPoints", partitions - 1));
+        if (!result.ok()) {
+            logger.warn("Can't split {} into {} partitions, scanning by one cursor: {}",
+                name, partitions, result.getErrorMessage());
+            return Collections.emptyList();
+        }
+        List<Object> points = new ArrayList<Object>(partitions - 1);
+        for (Object key : (List<?>) result.get("splitKeys")) {
+            points.add(((DBObject) key).get("_id"));
+        }
+        return points;
+    }
+
+    @VisibleForTesting
+    static List<Object> splitObjectIds(ObjectId min, ObjectId max, int partitions) {
+        long from = min.getTimestamp() & 0xFFFFFFFFL;
+        long to = (max.getTimestamp() & 0xFFFFFFFFL) + 1; // exclusive
+        List<Object> points = new ArrayList<Object>(partitions - 1);
+        long last = from;
+        for (int i = 1; i < partitions; i++) {
+            long time = from + (to - from) * i / partitions;
+            if (time > last) {
+                points.add(minObjectId(time));
+                last = time;
+            }
+        }
+        return points;
+    }
+
+    /**
+     * @return the least ObjectId of given second
+     */
+    private static ObjectId minObjectId(long seconds) {
+        byte[] bytes = new byte[12];
+        bytes[0] = (byte) (seconds >>> 24);
+        bytes[1] = (byte) (seconds >>> 16);
+        bytes[2] = (byte) (seconds >>> 8);
+        bytes[3] = (byte) seconds;
+        return new ObjectId(bytes);
+    }
+
+    /**
+     * Splits integer {@code _id} range evenly. Points are Integers if both bounds fit int.
+     */
+    @VisibleForTesting
+    static List<Object> splitNumbers(long min, long max, int partitions) {
+        boolean ints = min == (int) min && max == (int) max;
+        BigInteger from = BigInteger.valueOf(min);
+        BigInteger length = BigInteger.valueOf(max).subtract(from).add(BigInteger.ONE); // may exceed long
+        List<Object> points = new ArrayList<Object>(partitions - 1);
+        long last = min;
+        for (int i = 1; i < partitions; i++) {
+            long point = from.add(length.multiply(BigInteger.valueOf(i)).divide(BigInteger.valueOf(partitions))).longValue();
+            if (point > last) {
+                if (ints) {
+                    points.add((int) point);
+                } else {
+                    points.add(point);
+                }
+                last = point;
+            }
+        }
+        return points;
+    }
+
+    /**
+     * Set of disjoint queries which cover source query, each fetched by own cursor.
+     */
+    public class ParallelScan {
+        private final List<QueryBuilder> partitions;
+
+        private ParallelScan(List<QueryBuilder> partitions) {
+            this.partitions = partitions;
+        }
+
+        /**
+         * @return partition queries, could be configured separately
+         */
+        public List<QueryBuilder> getPartitions() {
+            return partitions;
+        }
+
+        /**
+         * Merges all partitions into one {@link PrefetchCursor}. Documents come in arbitrary order.
+         * Depth should be not less than partitions count to keep all fetchers busy.
+         */
+        public PrefetchCursor iterator(ExecutorService executor, int depth, long maxBytes) {
+            List<DBCursor> cursors = new ArrayList<DBCursor>(partitions.size());
+            for (QueryBuilder partition : partitions) {
+                DBCursor cursor = partition.cursor();
+                cursor.setDecoderFactory(RawDBObject.DECODER_FACTORY);
+                cursors.add(cursor);
+            }
+            QueryBuilder first = partitions.get(0);
+            return new PrefetchCursor(cursors, first.query, executor, depth, maxBytes, first.chunkSize());
+        }
+
+        /**
+         * Processes each partition in executor thread and waits for completion.
+         * First failure cancels the rest partitions and is rethrown.
+         */
+        public void forEach(ExecutorService executor, final PartitionCallback<T> callback) {
+            List<Future<?>> tasks = new ArrayList<Future<?>>(partitions.size());
+            try {
+                for (int i = 0; i < partitions.size(); i++) {
+                    final int partition = i;
+                    tasks.add(executor.submit(new Callable<Void>() {
+                        @Override
+                        public Void call() throws Exception {
+                            Cursor cursor = partitions.get(partition).iterator();
+                            try {
+                                callback.process(partition, cursor);
+                            } finally {
+                                cursor.close();
+                            }
+                            return null;
+                        }
+                    }));
+                }
+                for (Future<?> task : tasks) {
+                    task.get();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new MongoException("Interrupted while processing partitions", e);
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                }
+                if (cause instanceof Error) {
+                    throw (Error) cause;
+                }
+                throw new MongoException("Can't process partition", cause);
+            } finally {
+                for (Future<?> task : tasks) {
+                    task.cancel(true);
+                }
+            }
+        }
+
+        @Override
+        public String toString() {
+            return String.format("ParallelScan{%d partitions}", partitions.size());
+        }
+    }
+
+    /**
+     * Callback to process one partition of {@link ParallelScan}.
+     */
+    public interface PartitionCallback<T> {
+        void process(int partition, Iterator<T> documents) throws Exception;
+    }
+
     public class QueryBuilder implements Iterable<T> {
         private final DBObject query;
         private DBObject fields;
         private DBObject sort;
         private QueryParams params;
+        private ExecutorService prefetchExecutor;
+        private int prefetchDepth;
+        private long prefetchBytes;
+        private boolean cached;
 
         private QueryBuilder(DBObject query) {
             this.query = query;
         }
 
+        /**
+         * @return copies of this query restricted by {@code _id} ranges between split points
+         */
+        private List<QueryBuilder> ranges(List<?> splitPoints) {
+            List<QueryBuilder> ranges = new ArrayList<QueryBuilder>(splitPoints.size() + 1);
+            Object lower = null;
+            for (Object upper : splitPoints) {
+                ranges.add(range(lower, upper));
+                lower = upper;
+            }
+            ranges.add(range(lower, null));
+            return ranges;
+        }
+
+        private QueryBuilder range(@Nullable Object lower, @Nullable Object upper) {
+            QueryBuilder range = new QueryBuilder(rangeQuery(query, lower, upper));
+            range.fields = fields;
+            range.sort = sort;
+            range.params = params;
+            range.prefetchExecutor = prefetchExecutor;
+            range.prefetchDepth = prefetchDepth;
+            range.prefetchBytes = prefetchBytes;
+            range.cached = cached;
+            return range;
+        }
+
+        /**
+         * Overrides collection's {@link #setProjection(DBObject) projection}, empty fields fetch whole documents.
+         */
         public QueryBuilder fields(DBObject fields) {
             this.fields = fields;
             return this;
@@ -157,6 +736,33 @@ public class GsonDBCollection<T> {
             return this;
         }
 
+        /**
+         * Makes {@link #iterator()} return {@link PrefetchCursor} which fetches and decodes documents
+         * in background while caller processes current ones.
+         *
+         * @param executor executor to run background fetching
+         * @param depth max number of decoded chunks (of {@link #batchSize(int)} documents) to read ahead
+         * @param maxBytes max total size of BSON documents to read ahead, at least one chunk is read ahead anyway
+         */
+        public QueryBuilder prefetch(ExecutorService executor, int depth, long maxBytes) {
+            if (depth <= 0) {
+                throw new IllegalArgumentException("Invalid prefetch depth " + depth);
+            }
+            this.prefetchExecutor = executor;
+            this.prefetchDepth = depth;
+            this.prefetchBytes = maxBytes;
+            return this;
+        }
+
+        /**
+         * Takes results from collection's {@link QueryCache} if it's configured.
+         * Cached results are fetched at once, so use it for small results only.
+         */
+        public QueryBuilder cached() {
+            this.cached = true;
+            return this;
+        }
+
         public DBObject andUpdateOne(DBObject update) {
             return andUpdateOne(update, false);
         }
@@ -165,7 +771,13 @@ public class GsonDBCollection<T> {
             if (params != null) {
                 throw new IllegalStateException("Query parameters not supported for findAndModify");
             }
-            return dbc.findAndModify(query, fields, sort, false, update, returnNew, false);
+            long start = operation("findAndModify");
+            try {
+                return dbc.findAndModify(stored(query), stored(fields), stored(sort), false, stored(update), returnNew, false);
+            } finally {
+                written(query);
+                traced("findAndModify", query, start, null);
+            }
         }
 
         public DBObject andUpsertOne(DBObject update) {
@@ -176,56 +788,236 @@ public class GsonDBCollection<T> {
             if (params != null) {
                 throw new IllegalStateException("Query parameters not supported for findAndModify");
             }
-            return dbc.findAndModify(query, fields, sort, false, update, returnNew, true);
+            long start = operation("findAndModify");
+            try {
+                return dbc.findAndModify(stored(query), stored(fields), stored(sort), false, stored(update), returnNew, true);
+            } finally {
+                written(query);
+                traced("findAndModify", query, start, null);
+            }
         }
 
         public DBObject andRemoveOne() {
             if (params != null) {
                 throw new IllegalStateException("Query parameters not supported for findAndModify");
             }
-            return dbc.findAndModify(query, fields, sort, true, null, false, false);
+            long start = operation("findAndModify");
+            try {
+                return dbc.findAndModify(stored(query), stored(fields), stored(sort), true, null, false, false);
+            } finally {
+                written(query);
+                traced("findAndModify", query, start, null);
+            }
         }
 
         @Override
         public Cursor iterator() {
-            DBCursor cursor = dbc.find(query, fields);
-            if (sort != null) {
-                cursor.sort(sort);
+            long start = operation("find");
+            QueryCache cache = queryCache;
+            if (cached && cache != null) {
+                try {
+                    return cachedCursor(cache);
+                } finally {
+                    traced("find", query, start, null);
+                }
             }
-            if (params != null) {
-                params.write(cursor);
+            if (prefetchExecutor != null) {
+                DBCursor cursor = cursor();
+                cursor.setDecoderFactory(RawDBObject.DECODER_FACTORY);
+                return new PrefetchCursor(Collections.singletonList(cursor), query,
+                    prefetchExecutor, prefetchDepth, prefetchBytes, chunkSize());
             }
-            return new Cursor(cursor);
+            return new Cursor(cursor(), query);
+        }
+
+        private Cursor cachedCursor(QueryCache cache) {
+            final boolean[] loaded = new boolean[1];
+            List<byte[]> documents = cache.get(cacheKey(), new Callable<List<byte[]>>() {
+                @Override
+                public List<byte[]> call() throws Exception {
+                    loaded[0] = true;
+                    DBCursor cursor = cursor();
+                    cursor.setDecoderFactory(RawDBObject.DECODER_FACTORY);
+                    try {
+                        List<byte[]> documents = new ArrayList<byte[]>();
+                        while (cursor.hasNext()) {
+                            documents.add(((RawDBObject) cursor.next()).getBytes());
+                        }
+                        return documents;
+                    } finally {
+                        cursor.close();
+                    }
+                }
+            });
+            FlightRecorderEvents.cacheLookup(name, "query", !loaded[0]);
+            return new CachedCursor(documents);
         }
 
         public int count() {
-            DBCursor cursor = dbc.find(query, fields);
+            long start = operation("count");
+            try {
+                return cursor().count();
+            } finally {
+                traced("count", query, start, null);
+            }
+        }
+
+        /**
+         * Exports query results as newline-delimited extended JSON.
+         * Documents are fetched in raw form and transcoded w/o building POJOs.
+         *
+         * @return number of exported documents
+         */
+        public long export(Writer out, JsonExporter exporter) throws IOException {
+            long start = operation("export");
+            DBCursor cursor = cursor();
+            cursor.setDecoderFactory(RawDBObject.DECODER_FACTORY);
+            try {
+                return exporter.export(Iterators.transform(cursor, RAW_BYTES), out);
+            } finally {
+                cursor.close();
+                traced("export", query, start, cursor);
+            }
+        }
+
+        /**
+         * Creates sequential stream of query results. Closing the stream closes cursor.
+         */
+        public Stream<T> stream() {
+            return stream(Collections.singletonList(this), false);
+        }
+
+        /**
+         * Creates parallel stream of query results. Closing the stream closes cursors.
+         * <p>Unsorted queries w/o skip and limit are split into {@code _id} ranges like
+         * {@link #parallelScan(DBObject, int)} does, other queries are split by fetched batches only.</p>
+         */
+        public Stream<T> parallelStream() {
+            List<QueryBuilder> ranges = Collections.singletonList(this);
+            if (sort == null && !cached && (params == null || params.skip == 0 && params.limit == 0)) {
+                ranges = ranges(splitPoints(query, ForkJoinPool.getCommonPoolParallelism() * 4));
+            }
+            return stream(ranges, true);
+        }
+
+        private Stream<T> stream(List<QueryBuilder> ranges, boolean parallel) {
+            final Queue<Cursor> cursors = new ConcurrentLinkedQueue<Cursor>();
+            return StreamSupport.stream(new QuerySpliterator(ranges, 0, ranges.size(), cursors), parallel)
+                .onClose(new Runnable() {
+                    @Override
+                    public void run() {
+                        for (Cursor cursor; (cursor = cursors.poll()) != null; ) {
+                            cursor.close();
+                        }
+                    }
+                });
+        }
+
+        private int chunkSize() {
+            return params != null && params.batchSize > 0? params.batchSize: DEFAULT_PREFETCH_CHUNK;
+        }
+
+        private byte[] cacheKey() {
+            return encode(new BasicDBObject("query", query)
+                .append("fields", fields != null? fields: projection)
+                .append("sort", sort)
+                .append("params", params != null? params.toDBObject(): null)).getBytes();
+        }
+
+        private DBCursor cursor() {
+            DBCursor cursor = dbc.find(stored(query), stored(fields != null? fields: projection));
+            if (root != null) {
+                cursor.setDecoderFactory(decoderFactory); // view reads own class
+            }
             if (sort != null) {
-                cursor.sort(sort);
+                cursor.sort(stored(sort));
             }
             if (params != null) {
                 params.write(cursor);
             }
-            return cursor.count();
+            OperationTracer tracer = getTracer();
+            if (tracer != null && (params == null || params.comment == null)) {
+                cursor.comment(OperationTracer.tag(name, "find", query));
+            }
+            return cursor;
         }
     }
 
+    /**
+     * Driver 2.x exposes fetched batches by deprecated {@code DBCursor} methods only, so deprecation
+     * is suppressed here rather than at call sites.
+     */
+    @SuppressWarnings("deprecation")
+    private static int numGetMores(DBCursor cursor) {
+        return cursor.numGetMores();
+    }
+
+    /**
+     * @return sizes of batches fetched so far
+     * @see #numGetMores(DBCursor)
+     */
+    @SuppressWarnings("deprecation")
+    private static List<Integer> batchSizes(DBCursor cursor) {
+        return cursor.getSizes();
+    }
+
     public class Cursor implements Iterator<T>, Closeable {
         private final DBCursor cursor;
-
-        private Cursor(DBCursor cursor) {
+        @Nullable
+        private final DBObject query; // as passed by caller, not translated to stored names
+        long waitNanos; // time spent waiting for documents
+        boolean traced = true; // false if owner traces operation itself
+        private boolean reported;
+        private boolean queried;
+
+        private Cursor(DBCursor cursor, @Nullable DBObject query) {
             this.cursor = cursor;
+            this.query = query;
         }
 
         @Override
         public boolean hasNext() {
-            return cursor.hasNext();
+            long start = System.nanoTime();
+            Object batch = FlightRecorderEvents.beginCursorBatch();
+            int getMores = batch != null? numGetMores(cursor): -1;
+            boolean hasNext;
+            try {
+                hasNext = cursor.hasNext();
+            } finally {
+                waited(start, batch, getMores);
+            }
+            if (!hasNext) {
+                report(Collections.singletonList(cursor));
+            }
+            return hasNext;
         }
 
         @Override
         public T next() {
-            GsonWrapper wrapper = (GsonWrapper) cursor.next();
-            return wrapper != null? clazz.cast(wrapper.getPojo()): null;
+            long start = System.nanoTime();
+            Object batch = FlightRecorderEvents.beginCursorBatch();
+            int getMores = batch != null? numGetMores(cursor): -1;
+            try {
+                GsonWrapper wrapper = (GsonWrapper) cursor.next();
+                return wrapper != null? clazz.cast(wrapper.getPojo()): null;
+            } finally {
+                waited(start, batch, getMores);
+            }
+        }
+
+        /**
+         * Accounts wait time and records batch event if query or getMore is sent by this call.
+         *
+         * @param batch started batch event, null if batches aren't tracked
+         * @param getMores number of getMores before call
+         */
+        private void waited(long start, @Nullable Object batch, int getMores) {
+            waitNanos += System.nanoTime() - start;
+            if (batch != null && (!queried || numGetMores(cursor) != getMores)) {
+                List<Integer> sizes = batchSizes(cursor);
+                FlightRecorderEvents.cursorBatch(batch, name, sizes.isEmpty()? 0: sizes.get(sizes.size() - 1));
+            }
+            queried = true;
         }
 
         @Override
@@ -236,9 +1028,350 @@ public class GsonDBCollection<T> {
         @Override
         public void close() {
             cursor.close();
+            report(Collections.singletonList(cursor));
+        }
+
+        /**
+         * Reports wait time and fetched batches once, when cursor is exhausted or closed.
+         */
+        void report(List<DBCursor> cursors) {
+            if (reported) {
+                return;
+            }
+            reported = true;
+            BsonBridgeMetrics metrics = getMetrics();
+            metrics.cursorWait(name, waitNanos);
+            OperationTracer tracer = getTracer();
+            if (tracer != null && traced && !cursors.isEmpty()) {
+                DBCursor cursor = cursors.get(0);
+                tracer.traced(name, "find", query, waitNanos, cursor);
+            }
+            for (DBCursor cursor : cursors) {
+                for (Integer size : batchSizes(cursor)) {
+                    metrics.batch(name, size);
+                }
+            }
+        }
+    }
+
+    /**
+     * Cursor over cached query results.
+     */
+    private class CachedCursor extends Cursor {
+        private final GsonDBDecoder decoder = new GsonDBDecoder();
+        private final Iterator<byte[]> documents;
+
+        private CachedCursor(List<byte[]> documents) {
+            super(null, null);
+            this.documents = documents.iterator();
+        }
+
+        @Override
+        public boolean hasNext() {
+            return documents.hasNext();
+        }
+
+        @Override
+        public T next() {
+            GsonWrapper wrapper = (GsonWrapper) decoder.readObject(documents.next());
+            return clazz.cast(wrapper.getPojo());
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException("Can't remove cached document");
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    /**
+     * {@link Spliterator} over consecutive query ranges.
+     * <p>Not started ranges are split in halves, started range is split by fetched batches.
+     * Opened cursors are registered in shared queue to be closed with stream.</p>
+     */
+    private class QuerySpliterator implements Spliterator<T> {
+        private static final int CHARACTERISTICS = ORDERED; // Cursor.next() returns null for null documents
+        private final List<QueryBuilder> ranges;
+        private final Queue<Cursor> cursors;
+        private int from;
+        private final int to;
+        private Cursor cursor;
+
+        private QuerySpliterator(List<QueryBuilder> ranges, int from, int to, Queue<Cursor> cursors) {
+            this.ranges = ranges;
+            this.from = from;
+            this.to = to;
+            this.cursors = cursors;
+        }
+
+        /**
+         * @return cursor with available documents or null if all ranges are finished
+         */
+        private Cursor cursor() {
+            while (cursor == null || !cursor.hasNext()) {
+                if (cursor != null) {
+                    cursors.remove(cursor);
+                    cursor.close();
+                    cursor = null;
+                    from++;
+                }
+                if (from >= to) {
+                    return null;
+                }
+                cursor = ranges.get(from).iterator();
+                cursors.add(cursor);
+            }
+            return cursor;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super T> action) {
+            Cursor cursor = cursor();
+            if (cursor == null) {
+                return false;
+            }
+            action.accept(cursor.next());
+            return true;
+        }
+
+        @Override
+        public Spliterator<T> trySplit() {
+            if (cursor == null && to - from > 1) {
+                int middle = (from + to) >>> 1;
+                QuerySpliterator prefix = new QuerySpliterator(ranges, from, middle, cursors);
+                from = middle;
+                return prefix;
+            }
+            Cursor cursor = cursor();
+            if (cursor == null) {
+                return null;
+            }
+            int chunkSize = ranges.get(from).chunkSize();
+            Object[] batch = new Object[chunkSize];
+            int size = 0;
+            while (size < chunkSize && cursor.hasNext()) {
+                batch[size++] = cursor.next();
+            }
+            return Spliterators.spliterator(batch, 0, size, CHARACTERISTICS);
+        }
+
+        @Override
+        public long estimateSize() {
+            return Long.MAX_VALUE;
+        }
+
+        @Override
+        public int characteristics() {
+            return CHARACTERISTICS;
+        }
+    }
+
+    /**
+     * {@link Cursor} which fetches and decodes documents by chunks in background threads.
+     * <p>Documents are fetched in raw form and decoded by background threads too. Reading ahead
+     * stops when {@code depth} chunks or {@code maxBytes} of BSON are waiting for caller.
+     * If several cursors are merged, order is kept inside chunk only.
+     * {@link #close()} stops fetching, waits for in-flight chunks and closes underlying cursors.</p>
+     */
+    public class PrefetchCursor extends Cursor {
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition notEmpty = lock.newCondition();
+        private final Condition notFull = lock.newCondition();
+        private final ArrayDeque<Chunk> chunks = new ArrayDeque<Chunk>();
+        private final List<DBCursor> cursors;
+        private final List<Future<?>> tasks;
+        private final int depth;
+        private final long maxBytes;
+        private final int chunkSize;
+        private long bytes; // guarded by lock
+        private int finished; // guarded by lock
+        private int running; // fetchers which may touch cursors, guarded by lock
+        private volatile Throwable failure; // written under lock
+        private volatile boolean closed;
+        private Chunk current;
+        private int position;
+
+        private PrefetchCursor(List<DBCursor> cursors, @Nullable DBObject query, ExecutorService executor, int depth,
+                               long maxBytes, int chunkSize) {
+            super(null, query); // all methods are overridden
+            this.cursors = cursors;
+            this.tasks = new ArrayList<Future<?>>(cursors.size());
+            this.depth = depth;
+            this.maxBytes = maxBytes;
+            this.chunkSize = chunkSize;
+            for (final DBCursor cursor : cursors) {
+                tasks.add(executor.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        fetch(cursor);
+                    }
+                }));
+            }
+        }
+
+        private boolean isStopped() {
+            return closed || failure != null;
+        }
+
+        private void fetch(DBCursor cursor) {
+            lock.lock();
+            try {
+                if (closed) {
+                    return; // cursors are closed or being closed
+                }
+                running++;
+            } finally {
+                lock.unlock();
+            }
+            GsonDBDecoder decoder = new GsonDBDecoder();
+            try {
+                while (!isStopped()) {
+                    Chunk chunk = new Chunk(chunkSize);
+                    while (chunk.size < chunkSize && !isStopped() && cursor.hasNext()) {
+                        RawDBObject raw = (RawDBObject) cursor.next();
+                        GsonWrapper wrapper = (GsonWrapper) decoder.readObject(raw.getBytes());
+                        chunk.values[chunk.size++] = wrapper != null? clazz.cast(wrapper.getPojo()): null;
+                        chunk.bytes += raw.getSize();
+                    }
+                    if (chunk.size == 0) {
+                        break; // cursor exhausted
+                    }
+
+                    lock.lock();
+                    try {
+                        while (!isStopped() && !chunks.isEmpty() && (chunks.size() >= depth || bytes + chunk.bytes > maxBytes)) {
+                            notFull.await();
+                        }
+                        chunks.addLast(chunk);
+                        bytes += chunk.bytes;
+                        notEmpty.signal();
+                    } finally {
+                        lock.unlock();
+                    }
+                }
+            } catch (Throwable e) {
+                lock.lock();
+                try {
+                    if (failure == null) {
+                        failure = e;
+                    }
+                    notFull.signalAll(); // stop other fetchers
+                } finally {
+                    lock.unlock();
+                }
+            } finally {
+                lock.lock();
+                try {
+                    finished++;
+                    running--;
+                    notEmpty.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (current != null && position < current.size) {
+                return true;
+            }
+            if (closed) {
+                return false;
+            }
+            long start = System.nanoTime();
+            lock.lock();
+            try {
+                while (chunks.isEmpty() && finished < tasks.size() && failure == null) {
+                    notEmpty.await();
+                }
+                waitNanos += System.nanoTime() - start;
+                current = chunks.pollFirst();
+                position = 0;
+                if (current != null) {
+                    bytes -= current.bytes;
+                    notFull.signal();
+                    return true;
+                }
+                if (failure instanceof RuntimeException) {
+                    throw (RuntimeException) failure;
+                }
+                if (failure instanceof Error) {
+                    throw (Error) failure;
+                }
+                if (failure != null) {
+                    throw new MongoException("Can't prefetch documents", failure);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new MongoException("Interrupted while waiting for prefetched documents", e);
+            } finally {
+                lock.unlock();
+            }
+            report(cursors); // all fetchers are finished
+            return false;
+        }
+
+        @Override
+        public T next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            T value = current.values[position];
+            current.values[position++] = null; // free memory early
+            return value;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException("Can't remove prefetched document");
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+            lock.lock();
+            try {
+                notFull.signalAll();
+                for (Future<?> task : tasks) {
+                    task.cancel(false); // returns true for running task too, so wait for running fetchers
+                }
+                while (running > 0) {
+                    notEmpty.awaitUninterruptibly();
+                }
+                chunks.clear();
+                current = null;
+            } finally {
+                lock.unlock();
+            }
+            for (DBCursor cursor : cursors) {
+                cursor.close();
+            }
+            report(cursors);
+        }
+    }
+
+    private class Chunk {
+        private final T[] values;
+        private int size;
+        private long bytes;
+
+        @SuppressWarnings("unchecked")
+        private Chunk(int capacity) {
+            this.values = (T[]) new Object[capacity];
         }
     }
 
+    private static final Function<DBObject, byte[]> RAW_BYTES = new Function<DBObject, byte[]>() {
+        @Override
+        public byte[] apply(DBObject input) {
+            return ((RawDBObject) input).getBytes();
+        }
+    };
+
     private static class QueryParams {
         private int skip;
         private int limit;
@@ -257,6 +1390,20 @@ public class GsonDBCollection<T> {
             specials.put(name, o);
         }
 
+        /**
+         * @return parameters which could affect query results, batch size isn't included
+         */
+        public DBObject toDBObject() {
+            return new BasicDBObject("skip", skip)
+                .append("limit", limit)
+                .append("timeout", timeout)
+                .append("hintO", hintO)
+                .append("hintS", hintS)
+                .append("comment", comment)
+                .append("snapshot", snapshot)
+                .append("specials", specials);
+        }
+
         public void write(DBCursor cursor) {
             cursor
                 .skip(skip)
@@ -282,14 +1429,38 @@ public class GsonDBCollection<T> {
     // ---- Bulk modification ------------------------------------------------------------------------------------------
 
     public BulkOperation<T> bulk(boolean ordered) {
-        return new BulkOperation<T>(ordered? dbc.initializeOrderedBulkOperation(): dbc.initializeUnorderedBulkOperation());
+        return new BulkOperation<T>(ordered? dbc.initializeOrderedBulkOperation(): dbc.initializeUnorderedBulkOperation(), this);
     }
 
+    /**
+     * Encodes document to BSON in caller thread using per-thread encoder and buffer.
+     */
+    RawDBObject encode(DBObject document) {
+        RawEncoder encoder = rawEncoders.get();
+        if (encoder == null) {
+            rawEncoders.set(encoder = new RawEncoder());
+        }
+        return encoder.encode(document);
+    }
+
+    /**
+     * Bulk write operation. Requests are collected and passed to the driver on execution,
+     * so documents could be encoded in parallel by {@link #execute(ExecutorService, WriteConcern)}.
+     */
     public static class BulkOperation<T> {
+        private static final int ENCODE_CHUNK = 64;
+
         private final BulkWriteOperation op;
+        private final GsonDBCollection<?> collection;
+        private final List<Request> requests = new ArrayList<Request>();
 
         public BulkOperation(BulkWriteOperation op) {
+            this(op, null);
+        }
+
+        BulkOperation(BulkWriteOperation op, @Nullable GsonDBCollection<?> collection) {
             this.op = op;
+            this.collection = collection;
         }
 
         public boolean isOrdered() {
@@ -297,48 +1468,306 @@ public class GsonDBCollection<T> {
         }
 
         public void insert(T doc) {
-            op.insert(GsonWrapper.of(doc));
+            requests.add(new Request(Request.INSERT, null, GsonWrapper.of(doc)));
         }
 
         public Builder find(DBObject query) {
-            return new Builder(op.find(query));
+            return new Builder(requests, query);
         }
 
         public BulkWriteResult execute() {
-            return op.execute();
+            long start = executed();
+            Object event = FlightRecorderEvents.beginBulk();
+            try {
+                apply(null);
+                return op.execute();
+            } finally {
+                traced(start, event);
+                written();
+            }
+        }
+
+        public BulkWriteResult execute(WriteConcern concern) {
+            long start = executed();
+            Object event = FlightRecorderEvents.beginBulk();
+            try {
+                apply(null);
+                return op.execute(concern);
+            } finally {
+                traced(start, event);
+                written();
+            }
+        }
+
+        /**
+         * Encodes inserted documents in executor threads, then executes requests in original order.
+         * Queries and update specs are encoded by the driver as usual, it checks update keys
+         * before encoding, so updates can't be passed pre-encoded.
+         * <p>Falls back to encoding in caller thread if operation isn't created by
+         * {@link GsonDBCollection#bulk(boolean)}.</p>
+         */
+        public BulkWriteResult execute(ExecutorService executor, WriteConcern concern) {
+            long start = executed();
+            Object event = FlightRecorderEvents.beginBulk();
+            try {
+                apply(collection != null? encode(executor): null);
+                return op.execute(concern);
+            } finally {
+                traced(start, event);
+                written();
+            }
+        }
+
+        private long executed() {
+            if (collection == null) {
+                return 0;
+            }
+            collection.getMetrics().batch(collection.name, requests.size());
+            return collection.operation("bulk");
+        }
+
+        private void traced(long start, @Nullable Object event) {
+            if (collection != null) {
+                FlightRecorderEvents.bulkExecuted(event, collection.name, requests.size());
+                collection.traced("bulk", null, start, null);
+            }
+        }
+
+        private DBObject[] encode(ExecutorService executor) {
+            final DBObject[] encoded = new DBObject[requests.size()];
+            List<Future<?>> tasks = new ArrayList<Future<?>>(encoded.length / ENCODE_CHUNK + 1);
+            try {
+                for (int i = 0; i < encoded.length; i += ENCODE_CHUNK) {
+                    final int from = i;
+                    final int to = Math.min(i + ENCODE_CHUNK, encoded.length);
+                    tasks.add(executor.submit(new Runnable() {
+                        @Override
+                        public void run() {
+                            for (int j = from; j < to; j++) {
+                                Request request = requests.get(j);
+                                if (request.type == Request.INSERT) {
+                                    encoded[j] = collection.encode(collection.stored(request.document));
+                                }
+                            }
+                        }
+                    }));
+                }
+                for (Future<?> task : tasks) {
+                    task.get();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new MongoException("Interrupted while encoding bulk operation", e);
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                }
+                if (cause instanceof Error) {
+                    throw (Error) cause;
+                }
+                throw new MongoException("Can't encode bulk documents", cause);
+            } finally {
+                for (Future<?> task : tasks) {
+                    task.cancel(true);
+                }
+            }
+            return encoded;
+        }
+
+        private void apply(@Nullable DBObject[] encoded) {
+            for (int i = 0; i < requests.size(); i++) {
+                Request request = requests.get(i);
+                DBObject document = encoded != null && encoded[i] != null? encoded[i]: stored(request.document);
+                DBObject query = stored(request.query);
+                switch (request.type) {
+                    case Request.INSERT:
+                        op.insert(document);
+                        break;
+                    case Request.UPDATE_ONE:
+                        op.find(query).updateOne(document);
+                        break;
+                    case Request.UPDATE_ALL:
+                        op.find(query).update(document);
+                        break;
+                    case Request.UPSERT_ONE:
+                        op.find(query).upsert().updateOne(document);
+                        break;
+                    case Request.REMOVE_ONE:
+                        op.find(query).removeOne();
+                        break;
+                    case Request.REMOVE_ALL:
+                        op.find(query).remove();
+                        break;
+                    default:
+                        throw new IllegalStateException("Unknown request type " + request.type);
+                }
+            }
+        }
+
+        @Nullable
+        private DBObject stored(@Nullable DBObject query) {
+            return collection != null? collection.stored(query): query;
+        }
+
+        private void written() {
+            if (collection != null) {
+                for (Request request : requests) {
+                    if (request.query != null) {
+                        collection.written(request.query);
+                    } else {
+                        collection.inserted();
+                    }
+                }
+            }
+            requests.clear();
         }
 
         public static class Builder {
-            private final BulkWriteRequestBuilder request;
+            private final List<Request> requests;
+            private final DBObject query;
 
-            public Builder(BulkWriteRequestBuilder request) {
-                this.request = request;
+            private Builder(List<Request> requests, DBObject query) {
+                this.requests = requests;
+                this.query = query;
             }
 
             public void updateOne(DBObject update) {
-                request.updateOne(update);
+                requests.add(new Request(Request.UPDATE_ONE, query, update));
             }
 
             public void updateAll(DBObject update) {
-                request.update(update);
+                requests.add(new Request(Request.UPDATE_ALL, query, update));
             }
 
             public void upsertOne(DBObject update) {
-                request.upsert().updateOne(update);
+                requests.add(new Request(Request.UPSERT_ONE, query, update));
             }
 
             public void removeOne() {
-                request.removeOne();
+                requests.add(new Request(Request.REMOVE_ONE, query, null));
             }
 
             public void removeAll() {
-                request.remove();
+                requests.add(new Request(Request.REMOVE_ALL, query, null));
+            }
+        }
+
+        private static class Request {
+            static final int INSERT = 0;
+            static final int UPDATE_ONE = 1;
+            static final int UPDATE_ALL = 2;
+            static final int UPSERT_ONE = 3;
+            static final int REMOVE_ONE = 4;
+            static final int REMOVE_ALL = 5;
+
+            final int type;
+            final DBObject query;
+            final DBObject document;
+
+            Request(int type, DBObject query, DBObject document) {
+                this.type = type;
+                this.query = query;
+                this.document = document;
             }
         }
     }
 
     // ---- Encoding/Decoding ------------------------------------------------------------------------------------------
 
+    /**
+     * Bounded pool of codecs bound to threads.
+     * <p>Driver uses codecs in caller thread only and doesn't return them, so each thread reuses
+     * own instance. Up to {@code maxSize} threads keep their instances, others get new ones.
+     * Slots of dead threads are reused, so pooling survives cached executors.
+     * Instance which is in use (e.g. reentrant call from Gson adapter) shouldn't be returned.</p>
+     */
+    private static final class CodecPool<C> {
+        private static final long RECLAIM_PERIOD = SECONDS.toNanos(1);
+        private final ThreadLocal<C> local = new ThreadLocal<C>();
+        private final WeakReference<?>[] owners; // guarded by this
+        private long nextReclaim; // guarded by this
+
+        private CodecPool(int maxSize) {
+            this.owners = new WeakReference<?>[maxSize];
+        }
+
+        @Nullable
+        C get() {
+            return local.get();
+        }
+
+        void bind(C codec) {
+            long now = System.nanoTime();
+            synchronized (this) {
+                if (nextReclaim != 0 && now - nextReclaim < 0) {
+                    return; // all slots were taken by live threads recently
+                }
+                for (int i = 0; i < owners.length; i++) {
+                    Thread owner = owners[i] != null? (Thread) owners[i].get(): null;
+                    if (owner == null || !owner.isAlive()) {
+                        owners[i] = new WeakReference<Thread>(Thread.currentThread());
+                        local.set(codec);
+                        nextReclaim = 0;
+                        return;
+                    }
+                }
+                nextReclaim = now + RECLAIM_PERIOD;
+            }
+        }
+    }
+
+    /**
+     * Encoding of value class resolved once per class instead of walking {@code instanceof} chain per value.
+     */
+    private enum ValueKind {
+        WRAPPER, ITERABLE, VALUE_OBJECT, SERIALIZER, GSON_OBJECT, BSON_OBJECT, MAP, BYTES, ARRAY, NULLABLE, VALUE;
+
+        static ValueKind of(Class<?> type) {
+            if (GsonWrapper.class.isAssignableFrom(type)) {
+                return WRAPPER;
+            } else if (Iterable.class.isAssignableFrom(type)) {
+                return ITERABLE;
+            } else if (type == ValueDBObject.class) {
+                return VALUE_OBJECT;
+            } else if (DBObjectSerializer.class.isAssignableFrom(type)) {
+                // fields are read directly, subclasses with own keySet() or get() are written by accessors
+                return overrides(type, "keySet") || overrides(type, "get", String.class)? BSON_OBJECT: SERIALIZER;
+            } else if (GsonDBObject.class.isAssignableFrom(type)) {
+                return GSON_OBJECT; // accessors are final
+            } else if (type == BasicDBObject.class || type == BasicBSONObject.class) {
+                return MAP; // subclasses may override get()
+            } else if (BSONObject.class.isAssignableFrom(type)) {
+                return BSON_OBJECT;
+            } else if (Map.class.isAssignableFrom(type)) {
+                return MAP;
+            } else if (type == byte[].class) {
+                return BYTES;
+            } else if (type.isArray()) {
+                return ARRAY;
+            } else if (GsonNullable.class.isAssignableFrom(type)) {
+                return NULLABLE;
+            } else {
+                return VALUE;
+            }
+        }
+
+        private static boolean overrides(Class<?> type, String name, Class<?>... parameterTypes) {
+            try {
+                return type.getMethod(name, parameterTypes).getDeclaringClass() != DBObjectSerializer.class;
+            } catch (NoSuchMethodException e) {
+                throw new IllegalStateException("Can't find DBObjectSerializer." + name, e);
+            }
+        }
+    }
+
+    private static final ClassValue<ValueKind> VALUE_KINDS = new ClassValue<ValueKind>() {
+        @Override
+        protected ValueKind computeValue(Class<?> type) {
+            return ValueKind.of(type);
+        }
+    };
+
     /**
      * {@link DBEncoder} implementation which supports {@link GsonWrapper} serialization.
      * <p>Supports normal {@link DBObject} serialization, but adds special handling
@@ -347,78 +1776,166 @@ public class GsonDBCollection<T> {
     @VisibleForTesting
     class GsonDBEncoder implements DBEncoder {
         private final GsonWriter writer = new GsonWriter();
+        private boolean busy; // detects reentrant use of pooled instance
 
         @Override
         public int writeObject(OutputBuffer outputBuffer, BSONObject document) {
             if (document == null) {
                 throw new NullPointerException("Can't write top-level null document");
             }
+            if (document instanceof RawDBObject) {
+                byte[] bytes = ((RawDBObject) document).getBytes(); // pre-encoded by bulk operation
+                outputBuffer.write(bytes);
+                return bytes.length;
+            }
 
+            long start = System.nanoTime();
+            Object event = FlightRecorderEvents.beginEncoded();
             int startPosition = outputBuffer.getPosition();
+            Object pojo = document instanceof GsonWrapper? ((GsonWrapper) document).getPojo(): document;
+            Class<?> documentClass = pojo != null? pojo.getClass(): document.getClass();
             try {
                 try {
+                    busy = true;
                     writer.reset(outputBuffer);
+                    writer.setAliases(getAliases());
+                    FieldProfiler profiler = getProfiler();
+                    if (profiler != null && profiler.sample()) {
+                        writer.getBsonWriter().profile(profiler, documentClass);
+                    }
                     writeValue(writer, document);
                 } finally {
                     writer.reset(null);
+                    busy = false;
                 }
             } catch (IOException e) {
                 throw new MongoException("Can't serialize DBObject", e);
             }
 
-            return outputBuffer.getPosition() - startPosition;
+            int size = outputBuffer.getPosition() - startPosition;
+            long nanos = System.nanoTime() - start;
+            getMetrics().encoded(name, size, nanos);
+            FlightRecorderEvents.encoded(event, name, documentClass, size);
+            return size;
         }
 
         private void writeValue(GsonWriter writer, Object o) throws IOException {
             BsonWriter bsonWriter = writer.getBsonWriter();
             if (o == null) {
                 bsonWriter.nullValue();
-            } else if (o instanceof GsonWrapper) {
-                Object object = ((GsonWrapper) o).getPojo(); // TODO: may be check type here?
-                gson.toJson(object, object.getClass(), writer);
-            } else if (o instanceof Iterable) {
-                bsonWriter.beginArray();
-                for (Object value : (Iterable<?>) o) {
-                    writeValue(writer, value);
-                }
-                bsonWriter.endArray();
-            } else if (o instanceof BSONObject) {
-                // TODO: does mongo calls custom encoders for queries?
-                BSONObject bson = (BSONObject) o;
-                bsonWriter.beginObject();
-                for (String key : bson.keySet()) {
-                    // TODO: handle $where here
-                    bsonWriter.name(key);
-                    writeValue(writer, bson.get(key));
-                }
-                bsonWriter.endObject();
-            } else if (o instanceof Map) {
-                Map<?, ?> m = (Map<?, ?>) o;
-                bsonWriter.beginObject();
-                for (Map.Entry<?, ?> entry : m.entrySet()) {
-                    bsonWriter.name((String) entry.getKey());
-                    writeValue(writer, entry.getValue());
-                }
-                bsonWriter.endObject();
-            } else if (o instanceof byte[]) {
-                bsonWriter.binaryValue(new Binary((byte[]) o));
-            } else if (o.getClass().isArray()) {
-                bsonWriter.beginArray();
-                int len = Array.getLength(o);
-                for (int i = 0; i < len; i++) {
-                    writeValue(writer, Array.get(o, i));
-                }
-                bsonWriter.endArray();
-            } else if (o instanceof GsonNullable) {
-                GsonNullable<?> nullable = (GsonNullable<?>) o;
-                if (nullable.isPresent()) {
-                    writeValue(writer, nullable.get());
-                } else {
-                    bsonWriter.nullValue();
+                return;
+            }
+            switch (VALUE_KINDS.get(o.getClass())) {
+                case WRAPPER: {
+                    Object object = ((GsonWrapper) o).getPojo(); // TODO: may be check type here?
+                    Class<?> type = object.getClass();
+                    if (type != clazz && clazz.isInstance(object) &&
+                        PolymorphicTypeAdapterFactory.isPolymorphic(gson.getAdapter(clazz))) {
+                        type = clazz; // write discriminator
+                    }
+                    gson.toJson(object, type, writer);
+                    break;
                 }
-            } else {
-                bsonWriter.value(o);
+                case ITERABLE:
+                    bsonWriter.beginArray();
+                    for (Object value : (Iterable<?>) o) {
+                        writeValue(writer, value);
+                    }
+                    bsonWriter.endArray();
+                    break;
+                case VALUE_OBJECT: {
+                    ValueDBObject value = (ValueDBObject) o;
+                    bsonWriter.beginObject();
+                    for (String key : value.keySet()) {
+                        bsonWriter.name(key);
+                        writeValue(writer, value.getValue());
+                    }
+                    bsonWriter.endObject();
+                    break;
+                }
+                case SERIALIZER: {
+                    DBObjectSerializer serializer = (DBObjectSerializer) o;
+                    if (serializer.delegate != null) {
+                        writeObject(writer, serializer.delegate, false);
+                        break;
+                    }
+                    bsonWriter.beginObject();
+                    for (Map.Entry<String, DBObjectSerializer.DBObjectField> entry : serializer.fields.entrySet()) {
+                        Object value = entry.getValue().get(serializer); // getter is called once per field
+                        if (value != null) { // skip null (default) values
+                            bsonWriter.name(writer.stored(entry.getKey()));
+                            writeValue(writer, value != DBObjectSerializer.NULL? value: null);
+                        }
+                    }
+                    bsonWriter.endObject();
+                    break;
+                }
+                case GSON_OBJECT: {
+                    GsonDBObject object = (GsonDBObject) o;
+                    bsonWriter.beginObject();
+                    for (Map.Entry<String, Field> entry : object.getFields().entrySet()) {
+                        Object value;
+                        try {
+                            value = entry.getValue().get(object);
+                        } catch (IllegalAccessException e) {
+                            throw new IllegalArgumentException("Can't access field " + entry.getKey(), e);
+                        }
+                        bsonWriter.name(writer.stored(entry.getKey()));
+                        writeValue(writer, value);
+                    }
+                    bsonWriter.endObject();
+                    break;
+                }
+                case BSON_OBJECT:
+                    // TODO: does mongo calls custom encoders for queries?
+                    writeObject(writer, (BSONObject) o, o instanceof DBObjectSerializer);
+                    break;
+                case MAP: // BasicDBObject is LinkedHashMap, iterate entries instead of get() per key
+                    bsonWriter.beginObject();
+                    for (Map.Entry<?, ?> entry : ((Map<?, ?>) o).entrySet()) {
+                        bsonWriter.name((String) entry.getKey());
+                        writeValue(writer, entry.getValue());
+                    }
+                    bsonWriter.endObject();
+                    break;
+                case BYTES:
+                    bsonWriter.binaryValue(new Binary((byte[]) o));
+                    break;
+                case ARRAY: {
+                    bsonWriter.beginArray();
+                    int len = Array.getLength(o);
+                    for (int i = 0; i < len; i++) {
+                        writeValue(writer, Array.get(o, i));
+                    }
+                    bsonWriter.endArray();
+                    break;
+                }
+                case NULLABLE: {
+                    GsonNullable<?> nullable = (GsonNullable<?>) o;
+                    if (nullable.isPresent()) {
+                        writeValue(writer, nullable.get());
+                    } else {
+                        bsonWriter.nullValue();
+                    }
+                    break;
+                }
+                default:
+                    bsonWriter.value(o);
+            }
+        }
+
+        /**
+         * @param aliased true to alias field names of object which isn't translated by {@link FieldAliases}
+         */
+        private void writeObject(GsonWriter writer, BSONObject bson, boolean aliased) throws IOException {
+            BsonWriter bsonWriter = writer.getBsonWriter();
+            bsonWriter.beginObject();
+            for (String key : bson.keySet()) {
+                // TODO: handle $where here
+                bsonWriter.name(aliased? writer.stored(key): key);
+                writeValue(writer, bson.get(key));
             }
+            bsonWriter.endObject();
         }
 
         @Override
@@ -427,6 +1944,20 @@ public class GsonDBCollection<T> {
         }
     }
 
+    /**
+     * Per-thread encoder which writes documents to reusable buffer.
+     */
+    private class RawEncoder {
+        private final GsonDBEncoder encoder = new GsonDBEncoder();
+        private final BasicOutputBuffer buffer = new BasicOutputBuffer();
+
+        RawDBObject encode(DBObject document) {
+            buffer.truncateToPosition(0);
+            encoder.writeObject(buffer, document);
+            return new RawDBObject(buffer.toByteArray());
+        }
+    }
+
     /**
      * {@link DBDecoder} implementation which supports {@link GsonWrapper} deserialization.
      * <p>Deserializes data using Gson streams and stores them to GsonWrapper.</p>
@@ -436,6 +1967,7 @@ public class GsonDBCollection<T> {
     @VisibleForTesting
     class GsonDBDecoder implements DBDecoder {
         private final GsonReader reader = new GsonReader(new BsonReader());
+        private boolean busy; // detects reentrant use of pooled instance
 
         @Override
         public DBCallback getDBCallback(DBCollection collection) {
@@ -473,12 +2005,25 @@ public class GsonDBCollection<T> {
 
         @Override
         public DBObject readObject(InputStream in) throws IOException {
+            long start = System.nanoTime();
+            Object event = FlightRecorderEvents.beginDecoded();
             try {
+                busy = true;
                 reader.reset(in);
+                reader.setAliases(getAliases());
+                FieldProfiler profiler = getProfiler();
+                if (profiler != null && profiler.sample()) {
+                    reader.getBsonReader().profile(profiler, clazz);
+                }
                 Object pojo = gson.fromJson(reader, clazz);
+                int size = reader.getBsonReader().getPosition();
+                long nanos = System.nanoTime() - start;
+                getMetrics().decoded(name, size, nanos);
+                FlightRecorderEvents.decoded(event, name, clazz, size);
                 return pojo instanceof DBObject? (DBObject) pojo: new GsonWrapper(pojo);
             } finally {
                 reader.reset(null);
+                busy = false;
             }
         }
 
@@ -54,6 +54,13 @@ public class GsonDBObject implements DBObject {
         return fields.keySet();
     }
 
+    /**
+     * @return serializable fields by names
+     */
+    final Map<String, Field> getFields() {
+        return fields;
+    }
+
     @Override
     public final Object get(String key) {
         Field field = fields.get(key);
@@ -151,7 +158,7 @@ public class GsonDBObject implements DBObject {
             if (collector.isEmpty()) {
                 throw new IllegalArgumentException("No serializable fields found for class " + clazz.getName());
             }
-            if (collector.get(0).getKey().equals("_id")) {
+            if (!collector.get(0).getKey().equals("_id")) {
                 throw new IllegalArgumentException("No '_id' field defined for class " + clazz.getName() + ". Use @Id or @SerializedName.");
             }
 
@@ -223,10 +230,10 @@ public class GsonDBObject implements DBObject {
                 return 0; // Unspecified fields is unordered
             }
             if (n2 == null) {
-                return 1; // Ordered before unordered
+                return -1; // Ordered before unordered
             }
             if (n1 == null) {
-                return -1; // Unordered after ordered
+                return 1; // Unordered after ordered
             }
             return n1 - n2;
         }
@@ -243,17 +250,34 @@ public class GsonDBObject implements DBObject {
         }
     }
 
+    /**
+     * Streaming adapter for {@link GsonDBObject} descendants.
+     * <p>Fields are matched positionally: documents usually come back in the same order they were written,
+     * so each incoming name is compared against the slot following the previous one and hash lookup
+     * is used only on mismatch. Values are written directly through slot's {@link Field}.</p>
+     */
     public static class Adapter extends TypeAdapter<GsonDBObject> {
         private final Class<?> clazz;
-        private final LinkedHashMap<String, TypeAdapter<Object>> adapters;
+        private final String[] names;
+        private final Field[] fields;
+        private final TypeAdapter<Object>[] adapters;
+        private final HashMap<String, Integer> slots;
 
+        @SuppressWarnings("unchecked")
         public Adapter(Gson gson, Class<?> clazz) {
             Map<String, Field> fields = collectFields(clazz);
             this.clazz = clazz;
-            this.adapters = new LinkedHashMap<String, TypeAdapter<Object>>(fields.size());
+            this.names = new String[fields.size()];
+            this.fields = new Field[fields.size()];
+            this.adapters = new TypeAdapter[fields.size()];
+            this.slots = new HashMap<String, Integer>(fields.size() * 2);
+            int slot = 0;
             for (Map.Entry<String, Field> entry : fields.entrySet()) {
-                @SuppressWarnings("unchecked") TypeToken<Object> fieldType = (TypeToken<Object>) TypeToken.get(entry.getValue().getGenericType());
-                this.adapters.put(entry.getKey(), gson.getAdapter(fieldType));
+                TypeToken<Object> fieldType = (TypeToken<Object>) TypeToken.get(entry.getValue().getGenericType());
+                this.names[slot] = entry.getKey();
+                this.fields[slot] = entry.getValue();
+                this.adapters[slot] = gson.getAdapter(fieldType);
+                this.slots.put(entry.getKey(), slot++);
             }
         }
 
@@ -265,9 +289,8 @@ public class GsonDBObject implements DBObject {
             }
 
             out.beginObject();
-            for (Map.Entry<String, TypeAdapter<Object>> entry : adapters.entrySet()) {
-                String key = entry.getKey();
-                entry.getValue().write(out.name(key), value.get(key));
+            for (int i = 0; i < names.length; i++) {
+                adapters[i].write(out.name(names[i]), getField(value, i));
             }
             out.endObject();
         }
@@ -288,20 +311,51 @@ public class GsonDBObject implements DBObject {
                 throw new IllegalStateException("Can not create instance of " + clazz.getName(), e.getCause());
             }
 
+            int cursor = 0; // predicted slot
             in.beginObject();
             while (in.hasNext()) {
                 String name = in.nextName();
-                TypeAdapter<Object> adapter = adapters.get(name);
-                if (adapter != null) {
-                    Object value = adapter.read(in);
-                    object.put(name, value);
+                int slot = matchSlot(name, cursor);
+                if (slot >= 0) {
+                    setField(object, slot, adapters[slot].read(in));
+                    cursor = slot + 1;
                 } else {
                     logger.error("Unexpected JSON field {} for class {}", name, clazz.getName());
+                    in.skipValue();
                 }
             }
             in.endObject();
 
             return object;
         }
+
+        /**
+         * Matches field name against predicted slot, falls back to hash lookup on mismatch.
+         *
+         * @return slot index, -1 if field not found
+         */
+        private int matchSlot(String name, int cursor) {
+            if (cursor < names.length && names[cursor].equals(name)) {
+                return cursor;
+            }
+            Integer slot = slots.get(name);
+            return slot != null? slot: -1;
+        }
+
+        private Object getField(GsonDBObject object, int slot) {
+            try {
+                return fields[slot].get(object);
+            } catch (IllegalAccessException e) {
+                throw new IllegalArgumentException("Can't access field " + names[slot], e);
+            }
+        }
+
+        private void setField(GsonDBObject object, int slot, Object value) {
+            try {
+                fields[slot].set(object, value);
+            } catch (IllegalAccessException e) {
+                throw new IllegalArgumentException("Can't access field " + names[slot], e);
+            }
+        }
     }
 }
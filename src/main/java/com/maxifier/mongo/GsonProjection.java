@@ -0,0 +1,150 @@
+/*
+ * Copyright (c) 2008-2015 Maxifier Ltd. All Rights Reserved.
+ */
+package com.maxifier.mongo;
+
+import com.google.gson.Gson;
+import com.google.gson.TypeAdapter;
+import com.google.gson.annotations.JsonAdapter;
+import com.google.gson.annotations.SerializedName;
+import com.google.gson.internal.bind.ArrayTypeAdapter;
+import com.google.gson.internal.bind.CollectionTypeAdapterFactory;
+import com.google.gson.internal.bind.ReflectiveTypeAdapterFactory;
+import com.google.gson.reflect.TypeToken;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+
+import javax.annotation.Nullable;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+/**
+ * Derives query projection from POJO class, so only mapped fields are fetched.
+ * <p>Projection includes non-static non-transient fields named by {@link SerializedName}
+ * or by Java name ({@link Id} fields of {@link GsonDBObject} are named {@code _id}).
+ * Fields of nested POJOs, including elements of arrays and collections, are projected by
+ * dotted paths. Fields which are serialized by custom adapters (including field's {@link JsonAdapter}),
+ * maps and polymorphic fields are fetched whole. {@code _id} is excluded if class doesn't map it.</p>
+ * <p>Projection isn't applied by default, set it by {@link GsonDBCollection#setProjection(DBObject)}.</p>
+ * <p>Gson's field naming strategy and exclusion settings aren't visible through Gson API, so
+ * classes of Gson configured with non-default naming policy should set projection explicitly.</p>
+ *
+ * @author Konstantin Lyamshin (2015-02-19 12:30)
+ */
+public final class GsonProjection {
+    private static final Object NONE = new Object();
+    private static final Map<Gson, Map<Class<?>, Object>> cache = Collections.synchronizedMap(
+        new WeakHashMap<Gson, Map<Class<?>, Object>>()
+    );
+
+    private GsonProjection() { }
+
+    /**
+     * @return projection of class fields, or null if class isn't mapped field-by-field; don't modify it
+     */
+    @Nullable
+    public static DBObject of(Gson gson, Class<?> clazz) {
+        Map<Class<?>, Object> projections;
+        synchronized (cache) {
+            projections = cache.get(gson);
+            if (projections == null) {
+                cache.put(gson, projections = Collections.synchronizedMap(new HashMap<Class<?>, Object>()));
+            }
+        }
+        Object projection = projections.get(clazz);
+        if (projection == null) {
+            BasicDBObject fields = new BasicDBObject();
+            if (collect(gson, clazz, "", fields, new HashSet<Class<?>>()) && !fields.isEmpty()) {
+                if (!fields.containsField("_id")) {
+                    fields.put("_id", 0);
+                }
+                projection = fields;
+            } else {
+                projection = NONE;
+            }
+            projections.put(clazz, projection);
+        }
+        return projection != NONE? (DBObject) projection: null;
+    }
+
+    private static boolean collect(Gson gson, Class<?> clazz, String prefix, BasicDBObject fields, Set<Class<?>> path) {
+        if (!isMapped(gson, clazz) || !path.add(clazz)) {
+            return false;
+        }
+        boolean dbObject = GsonDBObject.class.isAssignableFrom(clazz);
+        for (Class<?> c = clazz; c != Object.class && c != GsonDBObject.class && c != GsonWrapper.class; c = c.getSuperclass()) {
+            for (Field field : c.getDeclaredFields()) {
+                int modifiers = field.getModifiers();
+                if (Modifier.isStatic(modifiers) || Modifier.isTransient(modifiers) || field.isSynthetic()) {
+                    continue;
+                }
+                SerializedName serializedName = field.getAnnotation(SerializedName.class);
+                String name = prefix + (dbObject && field.isAnnotationPresent(Id.class)? "_id":
+                    serializedName != null? serializedName.value(): field.getName());
+
+                Class<?> nested = isStructured(gson, field)? nestedClass(field.getGenericType()): null;
+                int size = fields.size();
+                if (nested == null || !collect(gson, nested, name + ".", fields, path) || fields.size() == size) {
+                    fields.put(name, 1);
+                }
+            }
+        }
+        path.remove(clazz);
+        return true;
+    }
+
+    /**
+     * @return true if field is serialized by Gson's own adapter of its type, so stored shape follows Java type
+     */
+    private static boolean isStructured(Gson gson, Field field) {
+        if (field.isAnnotationPresent(JsonAdapter.class)) {
+            return false; // field adapter may store value in any shape, e.g. compressed binary
+        }
+        TypeAdapter<?> adapter = gson.getAdapter(TypeToken.get(field.getGenericType()));
+        return adapter instanceof ReflectiveTypeAdapterFactory.Adapter || adapter instanceof ArrayTypeAdapter ||
+            adapter instanceof GsonDBObject.Adapter || adapter.getClass().getEnclosingClass() == CollectionTypeAdapterFactory.class;
+    }
+
+    private static boolean isMapped(Gson gson, Class<?> clazz) {
+        if (clazz.isInterface() || Modifier.isAbstract(clazz.getModifiers()) || clazz.isPrimitive() || clazz.isArray()) {
+            return false;
+        }
+        String name = clazz.getName();
+        if (name.startsWith("java.") || name.startsWith("org.bson.") || name.startsWith("com.mongodb.")) {
+            return false; // library types are serialized by custom adapters
+        }
+        if (GsonDBObject.class.isAssignableFrom(clazz)) {
+            return true;
+        }
+        return gson.getAdapter(clazz) instanceof ReflectiveTypeAdapterFactory.Adapter;
+    }
+
+    /**
+     * @return class of field value or of its elements, null for maps and unresolved types
+     */
+    @Nullable
+    static Class<?> nestedClass(Type type) {
+        if (type instanceof Class) {
+            Class<?> clazz = (Class<?>) type;
+            return clazz.isArray()? clazz.getComponentType(): clazz;
+        }
+        if (type instanceof ParameterizedType) {
+            ParameterizedType parameterized = (ParameterizedType) type;
+            Type raw = parameterized.getRawType();
+            if (raw instanceof Class && Collection.class.isAssignableFrom((Class<?>) raw)) {
+                Type element = parameterized.getActualTypeArguments()[0];
+                return element instanceof Class && !((Class<?>) element).isArray()? (Class<?>) element: null;
+            }
+        }
+        return null;
+    }
+}
@@ -28,9 +28,15 @@ import static com.maxifier.mongo.GsonAdapters.*;
  * @author Konstantin Lyamshin (2014-12-19 10:45)
  */
 public class GsonReader extends JsonReader implements GsonBuffer.Prefetchable {
+    /**
+     * Tokens buffered by {@link #peek()} for object start: {@code BEGIN_OBJECT, NAME, "name"}.
+     */
+    private static final int OBJECT_START_TOKENS = 3;
+
     private final BsonReader bson;
     private final GsonBuffer.JsonBufferedReader buffer;
     private JsonToken peeked;
+    private FieldAliases aliases;
 
     public GsonReader(BsonReader bson) {
         super(GsonBuffer.NULL_READER);
@@ -44,6 +50,26 @@ public class GsonReader extends JsonReader implements GsonBuffer.Prefetchable {
         this.peeked = null;
     }
 
+    public BsonReader getBsonReader() {
+        return bson;
+    }
+
+    /**
+     * Sets stored names of read fields, null to read field names as is.
+     */
+    public void setAliases(@Nullable FieldAliases aliases) {
+        this.aliases = aliases;
+    }
+
+    @Nullable
+    FieldAliases getAliases() {
+        return aliases;
+    }
+
+    private String field(String stored) {
+        return aliases != null? aliases.field(stored): stored;
+    }
+
     @Override
     public void close() throws IOException {
         this.bson.close();
@@ -100,7 +126,7 @@ public class GsonReader extends JsonReader implements GsonBuffer.Prefetchable {
                 bson.beginObject();
                 out.beginObject();
                 if (bson.peek() == P_NAME) {
-                    out.name(bson.nextName());
+                    out.name(field(bson.nextName()));
                 }
                 return buffer.peek();
 
@@ -188,6 +214,21 @@ public class GsonReader extends JsonReader implements GsonBuffer.Prefetchable {
         return buffer.peekObjectField();
     }
 
+    @Nullable
+    @Override
+    public String peekObjectString() throws IOException {
+        if (peek() != BEGIN_OBJECT) {
+            return null;
+        }
+        // prefetch string value right after buffered first name; buffer holding more than object start
+        // means the value is prefetched already, or object fields are being read from buffer
+        if (buffer.buffer().size() == OBJECT_START_TOKENS && buffer.peekObjectField() != null
+            && bson.peek() == P_STRING) {
+            buffer.buffer().writer().value(bson.nextString());
+        }
+        return buffer.peekObjectString();
+    }
+
     @Override
     public void beginObject() throws IOException {
         if (peek() != BEGIN_OBJECT) {
@@ -245,7 +286,7 @@ public class GsonReader extends JsonReader implements GsonBuffer.Prefetchable {
             return buffer.nextName();
         }
         peeked = null;
-        return bson.nextName();
+        return field(bson.nextName());
     }
 
     @Override
@@ -304,6 +345,37 @@ public class GsonReader extends JsonReader implements GsonBuffer.Prefetchable {
         throw new IllegalStateException("Expected String but was " + toString());
     }
 
+    /**
+     * Reads array as raw BSON document if it isn't buffered yet.
+     *
+     * @return raw array or null if array is buffered and should be read by tokens
+     */
+    @Nullable
+    byte[] nextRawArray() throws IOException {
+        if (peek() != BEGIN_ARRAY) {
+            throw new IllegalStateException("Expected Array but was " + toString());
+        }
+        if (!buffer.isEmpty()) {
+            return null;
+        }
+        peeked = null;
+        return bson.nextDocument();
+    }
+
+    /**
+     * Reads binary data of system sequence w/o Base64 translation.
+     */
+    byte[] nextBinary() throws IOException {
+        if (peek() != STRING) {
+            throw new IllegalStateException("Expected String but was " + toString());
+        }
+        if (!buffer.isEmpty()) {
+            return buffer.nextBinary();
+        }
+        peeked = null;
+        return Base64Codec.decode(bson.nextString());
+    }
+
     @Override
     public boolean nextBoolean() throws IOException {
         if (peek() != BOOLEAN) {
@@ -26,6 +26,7 @@ public class GsonWriter extends JsonWriter {
     private final BsonWriter bson;
     private final GsonBuffer.JsonBufferedWriter writer;
     private int bufferDepth;
+    private FieldAliases aliases;
 
     public GsonWriter() {
         super(GsonBuffer.NULL_WRITER);
@@ -43,6 +44,20 @@ public class GsonWriter extends JsonWriter {
         return bson;
     }
 
+    /**
+     * Sets stored names of written fields, null to write field names as is.
+     */
+    public void setAliases(@Nullable FieldAliases aliases) {
+        this.aliases = aliases;
+    }
+
+    /**
+     * @return stored name of field, see {@link #setAliases(FieldAliases)}
+     */
+    String stored(String name) {
+        return aliases != null? aliases.stored(name): name;
+    }
+
     // ---- Troubleshooting --------------------------------------------------------------------------------------------
 
     public String getPath() {
@@ -81,12 +96,12 @@ public class GsonWriter extends JsonWriter {
         if (!writer.isEmpty()) {
             if (!name.startsWith("$") && bufferDepth == 1) {
                 writeDefered(); // System sequence not found, stop buffering
-                bson.name(name); // Relay name
+                bson.name(stored(name)); // Relay name
             } else {
                 writer.name(name); // Continue buffering
             }
         } else {
-            bson.name(name);
+            bson.name(stored(name));
         }
         return this;
     }
@@ -104,6 +119,8 @@ public class GsonWriter extends JsonWriter {
         try {
             if (field.equals(F_LONG)) {
                 bson.longValue(LONG_ADAPTER.read(in));
+            } else if (field.equals(F_DOUBLE)) {
+                bson.doubleValue(DOUBLE_ADAPTER.read(in));
             } else if (field.equals(F_DATE)) {
                 bson.dateValue(DATE_ADAPTER.read(in));
             } else if (field.equals(F_OBJECTID)) {
@@ -166,7 +183,7 @@ public class GsonWriter extends JsonWriter {
                     break;
 
                 case NAME:
-                    bson.name(reader.nextName());
+                    bson.name(stored(reader.nextName()));
                     break;
 
                 case NULL:
@@ -248,6 +265,18 @@ public class GsonWriter extends JsonWriter {
         return this;
     }
 
+    /**
+     * Writes binary data of system sequence w/o Base64 encoding.
+     */
+    JsonWriter binaryValue(byte[] value) {
+        if (!writer.isEmpty()) {
+            writer.binaryValue(value);
+        } else {
+            bson.binaryValue(value);
+        }
+        return this;
+    }
+
     @Override
     public JsonWriter value(boolean value) {
         if (!writer.isEmpty()) {
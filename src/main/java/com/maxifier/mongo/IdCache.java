@@ -0,0 +1,129 @@
+/*
+ * Copyright (c) 2008-2015 Maxifier Ltd. All Rights Reserved.
+ */
+package com.maxifier.mongo;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.Weigher;
+import com.mongodb.DBObject;
+
+import javax.annotation.Nullable;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * Bounded read-through cache of {@link GsonDBCollection#findOne(DBObject)} results by {@code _id}.
+ * <p>Documents are stored encoded (as {@link RawDBObject} bytes) and decoded on every hit,
+ * so callers never share mutable POJOs. Eviction is LRU-like, by entry count or by encoded
+ * bytes, with optional expiration after write.</p>
+ * <p>Entries are invalidated by writes through the owning {@link GsonDBCollection}:
+ * writes by {@code {_id: value}} query invalidate single entry, writes by other queries
+ * invalidate whole cache. Writes bypassing {@code GsonDBCollection} (e.g. through
+ * {@link com.mongodb.DBCollection} directly) are visible after expiration only.</p>
+ *
+ * @see GsonDBCollection#setIdCache(IdCache)
+ * @author Konstantin Lyamshin (2015-02-18 11:20)
+ */
+public class IdCache {
+    private final Cache<Object, byte[]> cache;
+    private long generation; // guarded by this
+
+    private IdCache(CacheBuilder<Object, ? super byte[]> builder, long ttl, TimeUnit unit) {
+        if (ttl > 0) {
+            builder.expireAfterWrite(ttl, unit);
+        }
+        this.cache = builder.recordStats().build();
+    }
+
+    /**
+     * @param maxEntries max number of cached documents
+     * @param ttl expiration time after write, or 0 to keep entries until eviction
+     */
+    public static IdCache bySize(long maxEntries, long ttl, TimeUnit unit) {
+        return new IdCache(CacheBuilder.newBuilder().maximumSize(maxEntries), ttl, unit);
+    }
+
+    /**
+     * @param maxBytes max total size of cached encoded documents
+     * @param ttl expiration time after write, or 0 to keep entries until eviction
+     */
+    public static IdCache byBytes(long maxBytes, long ttl, TimeUnit unit) {
+        return new IdCache(CacheBuilder.newBuilder().maximumWeight(maxBytes).weigher(new Weigher<Object, byte[]>() {
+            @Override
+            public int weigh(Object key, byte[] value) {
+                return value.length;
+            }
+        }), ttl, unit);
+    }
+
+    /**
+     * @return {@code _id} value if query matches single document by {@code _id}, null otherwise
+     */
+    @Nullable
+    static Object idOf(DBObject query) {
+        if (query.keySet().size() != 1) {
+            return null;
+        }
+        Object id = query.get("_id");
+        if (id instanceof DBObject || id instanceof Pattern) { // operators, embedded document or regex
+            return null;
+        }
+        return id;
+    }
+
+    @Nullable
+    byte[] get(Object id) {
+        return cache.getIfPresent(id);
+    }
+
+    /**
+     * @return current generation to pass to {@link #put(Object, byte[], long)} after fetching document
+     */
+    synchronized long generation() {
+        return generation;
+    }
+
+    /**
+     * Caches fetched document unless cache was invalidated since fetch started.
+     */
+    synchronized void put(Object id, byte[] document, long generation) {
+        if (this.generation == generation) {
+            cache.put(id, document);
+        }
+    }
+
+    /**
+     * Invalidates documents which could be matched by query, or whole cache if query is null.
+     */
+    synchronized void invalidate(@Nullable DBObject query) {
+        generation++;
+        Object id = query != null? idOf(query): null;
+        if (id != null) {
+            cache.invalidate(id);
+        } else {
+            cache.invalidateAll();
+        }
+    }
+
+    public long size() {
+        return cache.size();
+    }
+
+    /**
+     * @return hit, miss and eviction counters
+     */
+    public CacheStats getStats() {
+        return cache.stats();
+    }
+
+    public void invalidateAll() {
+        invalidate(null);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("IdCache{size=%d, %s}", cache.size(), cache.stats());
+    }
+}
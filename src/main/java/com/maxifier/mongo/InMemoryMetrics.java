@@ -0,0 +1,227 @@
+/*
+ * Copyright (c) 2008-2015 Maxifier Ltd. All Rights Reserved.
+ */
+package com.maxifier.mongo;
+
+import javax.annotation.Nullable;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * {@link BsonBridgeMetrics} implementation which aggregates metrics in memory per collection.
+ * <p>Counters are striped ({@link LongAdder}) and distributions are recorded to log-linear
+ * {@link Histogram}s of fixed size, so recording is cheap enough to stay on in production.</p>
+ *
+ * @author Konstantin Lyamshin (2015-02-20 11:40)
+ */
+public class InMemoryMetrics implements BsonBridgeMetrics {
+    private final ConcurrentMap<String, CollectionMetrics> collections = new ConcurrentHashMap<String, CollectionMetrics>();
+
+    private CollectionMetrics collection(@Nullable String name) {
+        String key = name != null? name: "";
+        CollectionMetrics metrics = collections.get(key);
+        if (metrics == null) {
+            CollectionMetrics existing = collections.putIfAbsent(key, metrics = new CollectionMetrics());
+            if (existing != null) {
+                metrics = existing;
+            }
+        }
+        return metrics;
+    }
+
+    @Override
+    public void operation(@Nullable String collection, String operation) {
+        CollectionMetrics metrics = collection(collection);
+        LongAdder counter = metrics.operations.get(operation);
+        if (counter == null) {
+            LongAdder existing = metrics.operations.putIfAbsent(operation, counter = new LongAdder());
+            if (existing != null) {
+                counter = existing;
+            }
+        }
+        counter.increment();
+    }
+
+    @Override
+    public void encoded(@Nullable String collection, int bytes, long nanos) {
+        CollectionMetrics metrics = collection(collection);
+        metrics.encodeBytes.record(bytes);
+        metrics.encodeNanos.record(nanos);
+    }
+
+    @Override
+    public void decoded(@Nullable String collection, int bytes, long nanos) {
+        CollectionMetrics metrics = collection(collection);
+        metrics.decodeBytes.record(bytes);
+        metrics.decodeNanos.record(nanos);
+    }
+
+    @Override
+    public void batch(@Nullable String collection, int documents) {
+        collection(collection).batchDocuments.record(documents);
+    }
+
+    @Override
+    public void cursorWait(@Nullable String collection, long nanos) {
+        collection(collection).cursorWaitNanos.record(nanos);
+    }
+
+    /**
+     * @return metrics by collection name, unknown collection is named {@code ""}
+     */
+    public Map<String, CollectionMetrics> getCollections() {
+        return Collections.unmodifiableMap(new TreeMap<String, CollectionMetrics>(collections));
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("InMemoryMetrics{");
+        for (Map.Entry<String, CollectionMetrics> entry : getCollections().entrySet()) {
+            sb.append("\n  ").append(entry.getKey()).append(": ").append(entry.getValue());
+        }
+        return sb.append("\n}").toString();
+    }
+
+    /**
+     * Metrics of one collection.
+     */
+    public static class CollectionMetrics {
+        private final ConcurrentMap<String, LongAdder> operations = new ConcurrentHashMap<String, LongAdder>();
+        private final Histogram encodeBytes = new Histogram();
+        private final Histogram encodeNanos = new Histogram();
+        private final Histogram decodeBytes = new Histogram();
+        private final Histogram decodeNanos = new Histogram();
+        private final Histogram batchDocuments = new Histogram();
+        private final Histogram cursorWaitNanos = new Histogram();
+
+        /**
+         * @return operation counts by operation name
+         */
+        public Map<String, Long> getOperations() {
+            Map<String, Long> counts = new TreeMap<String, Long>();
+            for (Map.Entry<String, LongAdder> entry : operations.entrySet()) {
+                counts.put(entry.getKey(), entry.getValue().sum());
+            }
+            return counts;
+        }
+
+        public Histogram getEncodeBytes() {
+            return encodeBytes;
+        }
+
+        public Histogram getEncodeNanos() {
+            return encodeNanos;
+        }
+
+        public Histogram getDecodeBytes() {
+            return decodeBytes;
+        }
+
+        public Histogram getDecodeNanos() {
+            return decodeNanos;
+        }
+
+        public Histogram getBatchDocuments() {
+            return batchDocuments;
+        }
+
+        public Histogram getCursorWaitNanos() {
+            return cursorWaitNanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("{operations=%s, encodeBytes=%s, encodeNanos=%s, decodeBytes=%s, decodeNanos=%s, " +
+                    "batchDocuments=%s, cursorWaitNanos=%s}", getOperations(), encodeBytes, encodeNanos,
+                decodeBytes, decodeNanos, batchDocuments, cursorWaitNanos);
+        }
+    }
+
+    /**
+     * Log-linear histogram of non-negative values.
+     * <p>Each power of two range is split into {@code 2^SUB_BITS} linear buckets,
+     * so reported percentiles are within 12.5% of real values. Negative values are recorded as 0.</p>
+     */
+    public static class Histogram {
+        private static final int SUB_BITS = 3;
+        private static final int SUB_BUCKETS = 1 << SUB_BITS;
+        private static final int BUCKETS = (64 - SUB_BITS) * SUB_BUCKETS;
+
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+
+        public void record(long value) {
+            value = Math.max(value, 0);
+            buckets.incrementAndGet(bucket(value));
+            count.increment();
+            sum.add(value);
+        }
+
+        static int bucket(long value) {
+            if (value < SUB_BUCKETS) {
+                return (int) value;
+            }
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+            return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+        }
+
+        /**
+         * @return min value of bucket
+         */
+        static long lowerBound(int bucket) {
+            if (bucket < SUB_BUCKETS) {
+                return bucket;
+            }
+            int exponent = bucket / SUB_BUCKETS + SUB_BITS - 1;
+            long sub = bucket % SUB_BUCKETS;
+            return (SUB_BUCKETS + sub) << (exponent - SUB_BITS);
+        }
+
+        public long getCount() {
+            return count.sum();
+        }
+
+        public long getSum() {
+            return sum.sum();
+        }
+
+        public double getMean() {
+            long count = getCount();
+            return count > 0? (double) getSum() / count: 0;
+        }
+
+        /**
+         * @param quantile quantile in range [0, 1], e.g. 0.99
+         * @return upper bound of bucket which contains quantile, 0 if histogram is empty
+         */
+        public long getQuantile(double quantile) {
+            long total = 0;
+            long[] counts = new long[BUCKETS];
+            for (int i = 0; i < BUCKETS; i++) {
+                total += counts[i] = buckets.get(i);
+            }
+            long rank = (long) Math.ceil(quantile * total);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += counts[i];
+                if (seen >= rank && counts[i] > 0) {
+                    return i + 1 < BUCKETS? lowerBound(i + 1) - 1: Long.MAX_VALUE;
+                }
+            }
+            return 0;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("{count=%d, mean=%.1f, p50=%d, p99=%d}",
+                getCount(), getMean(), getQuantile(0.5), getQuantile(0.99));
+        }
+    }
+}
@@ -0,0 +1,337 @@
+/*
+ * Copyright (c) 2008-2015 Maxifier Ltd. All Rights Reserved.
+ */
+package com.maxifier.mongo;
+
+import com.google.gson.stream.JsonWriter;
+import org.bson.io.Bits;
+import org.bson.types.MaxKey;
+import org.bson.types.MinKey;
+
+import javax.annotation.Nullable;
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import static com.maxifier.mongo.BsonReader.*;
+
+/**
+ * Streaming BSON to extended JSON exporter.
+ * <p>Transcodes encoded documents token by token from {@link BsonReader} into {@link JsonWriter}
+ * w/o building intermediate objects. System types are written in the same {@code $oid/$date/$binary/$numberLong}
+ * forms {@link GsonAdapters} use, so exported JSON could be read back by Gson configured with them.
+ * {@code NaN} and infinite doubles are written as {@code $numberDouble} to keep output valid JSON.</p>
+ * <p>Output is newline-delimited JSON, one document per line. If executor is supplied documents are
+ * transcoded in parallel batches, but written strictly in the source order. At most {@code window}
+ * batches are kept in-flight to bound memory usage.</p>
+ *
+ * @see RawDBObject
+ * @see GsonDBCollection.QueryBuilder#export(Writer, JsonExporter)
+ * @author Konstantin Lyamshin (2015-02-12 14:05)
+ */
+public class JsonExporter {
+    private static final int BATCH_SIZE = 64; // documents transcoded in one task
+
+    private final ExecutorService executor;
+    private final int window;
+
+    /**
+     * Creates exporter which transcodes documents in caller thread.
+     */
+    public JsonExporter() {
+        this(null, 0);
+    }
+
+    /**
+     * @param executor executor to transcode batches of documents, null to transcode in caller thread
+     * @param window max number of in-flight batches
+     */
+    public JsonExporter(@Nullable ExecutorService executor, int window) {
+        if (executor != null && window <= 0) {
+            throw new IllegalArgumentException("Invalid window " + window);
+        }
+        this.executor = executor;
+        this.window = window;
+    }
+
+    /**
+     * Exports concatenated BSON documents (e.g. mongodump output).
+     *
+     * @return number of exported documents
+     */
+    public long export(InputStream in, Writer out) throws IOException {
+        StreamIterator documents = new StreamIterator(in);
+        long count = export(documents, out);
+        if (documents.exception != null) {
+            throw documents.exception;
+        }
+        return count;
+    }
+
+    /**
+     * Exports encoded BSON documents.
+     *
+     * @return number of exported documents
+     */
+    public long export(Iterator<byte[]> documents, Writer out) throws IOException {
+        if (executor == null) {
+            BsonReader bson = new BsonReader();
+            JsonWriter json = jsonWriter(out);
+            long count = 0;
+            while (documents.hasNext()) {
+                bson.reset(new ByteArrayInputStream(documents.next()));
+                writeDocument(bson, json);
+                out.write('\n');
+                count++;
+            }
+            out.flush();
+            return count;
+        }
+
+        ArrayDeque<Future<String>> pending = new ArrayDeque<Future<String>>(window);
+        long count = 0;
+        try {
+            while (documents.hasNext()) {
+                byte[][] batch = new byte[BATCH_SIZE][];
+                int size = 0;
+                while (size < batch.length && documents.hasNext()) {
+                    batch[size++] = documents.next();
+                }
+                count += size;
+
+                if (pending.size() >= window) {
+                    out.write(await(pending.removeFirst()));
+                }
+                pending.addLast(executor.submit(new Batch(batch, size)));
+            }
+            while (!pending.isEmpty()) {
+                out.write(await(pending.removeFirst()));
+            }
+            out.flush();
+            return count;
+        } finally {
+            for (Future<String> future : pending) {
+                future.cancel(false);
+            }
+        }
+    }
+
+    private static String await(Future<String> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Export interrupted", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException("Can't export document", cause);
+        }
+    }
+
+    /**
+     * Creates writer shared by all documents of the stream. Lenient writer accepts many top-level documents.
+     * Binaries are streamed as Base64 chunks right into the output.
+     */
+    private static JsonWriter jsonWriter(Writer out) {
+        JsonWriter json = new GsonAdapters.Base64JsonWriter(out);
+        json.setLenient(true);
+        return json;
+    }
+
+    /**
+     * Transcodes one document from reader to writer. Reader should be positioned at the document beginning.
+     */
+    public static void writeDocument(BsonReader in, JsonWriter out) throws IOException {
+        int depth = 0;
+        do {
+            switch (in.peek()) {
+                case P_BEGIN_OBJECT:
+                    in.beginObject();
+                    out.beginObject();
+                    depth++;
+                    break;
+                case P_END_OBJECT:
+                    in.endObject();
+                    out.endObject();
+                    depth--;
+                    break;
+                case P_BEGIN_ARRAY:
+                    in.beginArray();
+                    out.beginArray();
+                    depth++;
+                    break;
+                case P_END_ARRAY:
+                    in.endArray();
+                    out.endArray();
+                    depth--;
+                    break;
+                case P_NAME:
+                    out.name(in.nextName());
+                    break;
+                case P_NULL:
+                    in.nextNull();
+                    out.nullValue();
+                    break;
+                case P_STRING:
+                    out.value(in.nextString());
+                    break;
+                case P_BOOLEAN:
+                    out.value(in.nextBoolean());
+                    break;
+                case P_INT:
+                    out.value(in.nextInt());
+                    break;
+                case P_DOUBLE:
+                    GsonAdapters.DOUBLE_ADAPTER.write(out, in.nextDouble());
+                    break;
+                case P_LONG:
+                    GsonAdapters.LONG_ADAPTER.write(out, in.nextLong());
+                    break;
+                case P_OID:
+                    GsonAdapters.OBJECTID_ADAPTER.write(out, in.nextObjectId());
+                    break;
+                case P_DATE:
+                    GsonAdapters.DATE_ADAPTER.write(out, in.nextDate());
+                    break;
+                case P_BINARY:
+                    GsonAdapters.BINARY_ADAPTER.write(out, in.nextBinary());
+                    break;
+                case P_REGEX:
+                    GsonAdapters.REGEX_ADAPTER.write(out, in.nextRegex());
+                    break;
+                case P_CODE:
+                    GsonAdapters.CODE_ADAPTER.write(out, in.nextCode());
+                    break;
+                case P_TIMESTAMP:
+                    GsonAdapters.TIMESTAMP_ADAPTER.write(out, in.nextTimestamp());
+                    break;
+                case P_MINKEY:
+                    in.nextMinKey();
+                    GsonAdapters.MINKEY_ADAPTER.write(out, new MinKey());
+                    break;
+                case P_MAXKEY:
+                    in.nextMaxKey();
+                    GsonAdapters.MAXKEY_ADAPTER.write(out, new MaxKey());
+                    break;
+                default:
+                    throw new IllegalStateException("Unexpected token " + in.toString());
+            }
+        } while (depth > 0);
+    }
+
+    @Override
+    public String toString() {
+        return "JsonExporter{" + "executor=" + executor + ", window=" + window + '}';
+    }
+
+    private static class Batch implements Callable<String> {
+        private static final ThreadLocal<BsonReader> READERS = new ThreadLocal<BsonReader>() {
+            @Override
+            protected BsonReader initialValue() {
+                return new BsonReader();
+            }
+        };
+
+        private final byte[][] documents;
+        private final int size;
+
+        Batch(byte[][] documents, int size) {
+            this.documents = documents;
+            this.size = size;
+        }
+
+        @Override
+        public String call() throws Exception {
+            BsonReader bson = READERS.get();
+            StringWriter out = new StringWriter(size * 256);
+            JsonWriter json = jsonWriter(out);
+            try {
+                for (int i = 0; i < size; i++) {
+                    bson.reset(new ByteArrayInputStream(documents[i]));
+                    writeDocument(bson, json);
+                    out.write('\n');
+                }
+            } finally {
+                bson.reset(null);
+            }
+            return out.toString();
+        }
+    }
+
+    /**
+     * Splits stream of concatenated BSON documents. IO errors are stored to be rethrown by caller.
+     */
+    private static class StreamIterator implements Iterator<byte[]> {
+        private final InputStream in;
+        private final byte[] size = new byte[4];
+        private byte[] next;
+        private boolean done;
+        private IOException exception;
+
+        StreamIterator(InputStream in) {
+            this.in = in;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (next == null && !done) {
+                try {
+                    next = readDocument();
+                } catch (IOException e) {
+                    exception = e;
+                }
+                done = next == null;
+            }
+            return next != null;
+        }
+
+        private byte[] readDocument() throws IOException {
+            int read = in.read(size);
+            if (read < 0) {
+                return null; // EOF
+            }
+            if (read < size.length) {
+                Bits.readFully(in, size, read, size.length - read);
+            }
+            int length = Bits.readInt(size);
+            if (length < 5) {
+                throw new EOFException("Invalid BSON document size " + length);
+            }
+            byte[] document = new byte[length];
+            System.arraycopy(size, 0, document, 0, size.length);
+            Bits.readFully(in, document, size.length, length - size.length);
+            return document;
+        }
+
+        @Override
+        public byte[] next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            byte[] document = next;
+            next = null;
+            return document;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
@@ -0,0 +1,287 @@
+/*
+ * Copyright (c) 2008-2015 Maxifier Ltd. All Rights Reserved.
+ */
+package com.maxifier.mongo;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.InsertOptions;
+import com.mongodb.WriteConcern;
+import org.bson.io.BasicOutputBuffer;
+
+import javax.annotation.Nullable;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import static java.lang.String.format;
+
+/**
+ * Extended JSON to BSON importer, reverse of {@link JsonExporter}.
+ * <p>Reads newline-delimited JSON, one document per line, and transcodes it token by token into
+ * {@link GsonWriter} w/o building POJOs or JSON trees. GsonWriter recognizes {@link GsonAdapters}
+ * system sequences, so {@code $oid/$date/$binary/$numberLong} forms become native BSON types.
+ * Null fields are skipped like GsonWriter always does.</p>
+ * <p>Lines are split into batches, each batch is transcoded and inserted as one unordered bulk insert
+ * by executor thread. At most {@code window} batches are kept in-flight. Encoding buffers are
+ * reused by executor threads.</p>
+ *
+ * @author Konstantin Lyamshin (2015-02-13 11:30)
+ */
+public class JsonImporter {
+    private static final int DEFAULT_BATCH_SIZE = 1000;
+
+    private final ExecutorService executor;
+    private final int window;
+    private final int batchSize;
+
+    /**
+     * Creates importer which transcodes and inserts documents in caller thread.
+     */
+    public JsonImporter() {
+        this(null, 0, DEFAULT_BATCH_SIZE);
+    }
+
+    /**
+     * @param executor executor to transcode and insert batches of documents, null to do it in caller thread
+     * @param window max number of in-flight batches
+     */
+    public JsonImporter(@Nullable ExecutorService executor, int window) {
+        this(executor, window, DEFAULT_BATCH_SIZE);
+    }
+
+    /**
+     * @param executor executor to transcode and insert batches of documents, null to do it in caller thread
+     * @param window max number of in-flight batches
+     * @param batchSize number of documents inserted at once
+     */
+    public JsonImporter(@Nullable ExecutorService executor, int window, int batchSize) {
+        if (executor != null && window <= 0) {
+            throw new IllegalArgumentException("Invalid window " + window);
+        }
+        if (batchSize <= 0) {
+            throw new IllegalArgumentException("Invalid batch size " + batchSize);
+        }
+        this.executor = executor;
+        this.window = window;
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Imports newline-delimited JSON into collection. Blank lines are skipped.
+     *
+     * @return number of imported documents
+     */
+    public long load(BufferedReader in, DBCollection dbc, WriteConcern concern) throws IOException {
+        InsertOptions options = new InsertOptions()
+            .writeConcern(concern)
+            .continueOnError(true)
+            .dbEncoder(RawDBObject.ENCODER);
+
+        ArrayDeque<Future<Integer>> pending = new ArrayDeque<Future<Integer>>(Math.max(window, 1));
+        long count = 0;
+        int lineNumber = 0;
+        try {
+            while (true) {
+                Batch batch = new Batch(dbc, options, lineNumber + 1, batchSize);
+                String line;
+                while (batch.size < batchSize && (line = in.readLine()) != null) {
+                    lineNumber++;
+                    batch.lines[batch.size++] = line;
+                }
+                if (batch.size == 0) {
+                    break; // EOF
+                }
+
+                if (executor == null) {
+                    count += batch.call();
+                    continue;
+                }
+                if (pending.size() >= window) {
+                    count += await(pending.removeFirst());
+                }
+                pending.addLast(executor.submit(batch));
+            }
+            while (!pending.isEmpty()) {
+                count += await(pending.removeFirst());
+            }
+            return count;
+        } finally {
+            for (Future<Integer> future : pending) {
+                future.cancel(false);
+            }
+        }
+    }
+
+    private static int await(Future<Integer> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Import interrupted", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException("Can't import documents", cause);
+        }
+    }
+
+    /**
+     * Transcodes one document from reader to writer.
+     */
+    public static void readDocument(JsonReader in, JsonWriter out) throws IOException {
+        int depth = 0;
+        do {
+            switch (in.peek()) {
+                case BEGIN_OBJECT:
+                    in.beginObject();
+                    out.beginObject();
+                    depth++;
+                    break;
+                case END_OBJECT:
+                    in.endObject();
+                    out.endObject();
+                    depth--;
+                    break;
+                case BEGIN_ARRAY:
+                    in.beginArray();
+                    out.beginArray();
+                    depth++;
+                    break;
+                case END_ARRAY:
+                    in.endArray();
+                    out.endArray();
+                    depth--;
+                    break;
+                case NAME:
+                    out.name(in.nextName());
+                    break;
+                case NULL:
+                    in.nextNull();
+                    out.nullValue();
+                    break;
+                case STRING:
+                    out.value(in.nextString());
+                    break;
+                case BOOLEAN:
+                    out.value(in.nextBoolean());
+                    break;
+                case NUMBER:
+                    writeNumber(out, in.nextString());
+                    break;
+                default:
+                    throw new IllegalStateException("Unexpected token " + in.peek() + " at " + in.getPath());
+            }
+        } while (depth > 0);
+    }
+
+    /**
+     * Writes number literal as smallest fitting type: int, long or double.
+     */
+    private static void writeNumber(JsonWriter out, String literal) throws IOException {
+        for (int i = 0; i < literal.length(); i++) {
+            char c = literal.charAt(i);
+            if (c == '.' || c == 'e' || c == 'E') {
+                out.value(Double.parseDouble(literal));
+                return;
+            }
+        }
+        try {
+            out.value(Long.parseLong(literal)); // GsonWriter writes int if possible
+        } catch (NumberFormatException e) {
+            out.value(Double.parseDouble(literal)); // integer overflow
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "JsonImporter{" + "executor=" + executor + ", window=" + window + ", batchSize=" + batchSize + '}';
+    }
+
+    private static class Batch implements Callable<Integer> {
+        private static final ThreadLocal<Encoder> ENCODERS = new ThreadLocal<Encoder>() {
+            @Override
+            protected Encoder initialValue() {
+                return new Encoder();
+            }
+        };
+
+        private final DBCollection dbc;
+        private final InsertOptions options;
+        private final int firstLine;
+        private final String[] lines;
+        private int size;
+
+        Batch(DBCollection dbc, InsertOptions options, int firstLine, int batchSize) {
+            this.dbc = dbc;
+            this.options = options;
+            this.firstLine = firstLine;
+            this.lines = new String[batchSize];
+        }
+
+        @Override
+        public Integer call() throws IOException {
+            Encoder encoder = ENCODERS.get();
+            List<DBObject> documents = new ArrayList<DBObject>(size);
+            for (int i = 0; i < size; i++) {
+                String line = lines[i];
+                lines[i] = null; // free memory early
+                if (line.trim().isEmpty()) {
+                    continue;
+                }
+                try {
+                    documents.add(encoder.encode(line));
+                } catch (RuntimeException e) {
+                    throw new MongoSerializationException(format("Can't import document at line %d", firstLine + i), e);
+                } catch (IOException e) {
+                    throw new MongoSerializationException(format("Can't import document at line %d", firstLine + i), e);
+                }
+            }
+            if (!documents.isEmpty()) {
+                dbc.insert(documents, options);
+            }
+            return documents.size();
+        }
+    }
+
+    /**
+     * Per-thread transcoding state, buffer is reused between documents.
+     */
+    private static class Encoder {
+        private final GsonWriter writer = new GsonWriter();
+        private final BasicOutputBuffer buffer = new BasicOutputBuffer();
+
+        RawDBObject encode(String line) throws IOException {
+            buffer.truncateToPosition(0);
+            try {
+                writer.reset(buffer);
+                JsonReader in = new JsonReader(new StringReader(line));
+                if (in.peek() != JsonToken.BEGIN_OBJECT) {
+                    throw new IllegalStateException("Expected BEGIN_OBJECT but was " + in.peek());
+                }
+                readDocument(in, writer);
+                if (in.peek() != JsonToken.END_DOCUMENT) {
+                    throw new IllegalStateException("Expected END_DOCUMENT but was " + in.peek());
+                }
+            } finally {
+                writer.reset(null);
+            }
+            return new RawDBObject(buffer.toByteArray());
+        }
+    }
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright (c) 2008-2015 Maxifier Ltd. All Rights Reserved.
+ */
+package com.maxifier.mongo;
+
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Times {@link GsonDBCollection} operations by query shape and logs slow ones.
+ * <p>Query shape is the query with values replaced by {@code ?}, e.g. {@code {n: ?, s: {$in: ?}}},
+ * so latencies of similar queries are recorded to the same {@link InMemoryMetrics.Histogram}.
+ * Queries are tagged with {@link #tag(String, String, DBObject)} comment to find them in server
+ * profiler. Operations slower than threshold are logged with shape, call site and, for sampled
+ * queries, {@code explain()} output.</p>
+ *
+ * @see GsonDBCollection#setTracer(OperationTracer)
+ * @author Konstantin Lyamshin (2015-02-20 16:30)
+ */
+public class OperationTracer {
+    private static final Logger logger = LoggerFactory.getLogger(OperationTracer.class);
+    /**
+     * Key of latencies of shapes which don't fit {@link #MAX_SHAPES}.
+     */
+    public static final String OTHER_SHAPES = "*";
+    /**
+     * Max number of tracked query shapes, queries built from data (e.g. keys as values) may have unbounded shapes.
+     */
+    public static final int MAX_SHAPES = 1000;
+
+    private final ConcurrentMap<String, InMemoryMetrics.Histogram> latencies =
+        new ConcurrentHashMap<String, InMemoryMetrics.Histogram>();
+    private final long thresholdNanos;
+    private final double explainRate;
+
+    /**
+     * @param threshold min duration of logged operations
+     * @param explainRate fraction of slow queries to explain, 0 to never call explain
+     */
+    public OperationTracer(long threshold, TimeUnit unit, double explainRate) {
+        if (explainRate < 0 || explainRate > 1) {
+            throw new IllegalArgumentException("Invalid explain rate " + explainRate);
+        }
+        this.thresholdNanos = unit.toNanos(threshold);
+        this.explainRate = explainRate;
+    }
+
+    /**
+     * Records completed operation.
+     *
+     * @param query operation query, null if operation has no query
+     * @param cursor cursor to explain slow query, null if operation isn't a query
+     */
+    void traced(@Nullable String collection, String operation, @Nullable DBObject query, long nanos,
+                @Nullable DBCursor cursor) {
+        String key = key(collection, operation, query);
+        String shapeKey = latencies.size() < MAX_SHAPES || latencies.containsKey(key)? key: OTHER_SHAPES;
+        InMemoryMetrics.Histogram histogram = latencies.get(shapeKey);
+        if (histogram == null) { // limit isn't exact, racing threads could add few more shapes
+            InMemoryMetrics.Histogram existing = latencies.putIfAbsent(shapeKey, histogram = new InMemoryMetrics.Histogram());
+            if (existing != null) {
+                histogram = existing;
+            }
+        }
+        histogram.record(nanos);
+
+        if (nanos >= thresholdNanos) {
+            DBObject explain = null;
+            if (cursor != null && explainRate > 0 && ThreadLocalRandom.current().nextDouble() < explainRate) {
+                try {
+                    explain = cursor.explain();
+                } catch (RuntimeException e) {
+                    logger.debug("Can't explain " + key, e);
+                }
+            }
+            slow(key, tag(collection, operation, query), nanos, callSite(), explain);
+        }
+    }
+
+    /**
+     * Reports slow operation, logs it by default.
+     *
+     * @param operation collection, operation and query shape
+     * @param tag query comment
+     * @param callSite first caller frame outside of this library
+     * @param explain sampled query plan
+     */
+    protected void slow(String operation, String tag, long nanos, @Nullable StackTraceElement callSite,
+                        @Nullable DBObject explain) {
+        if (explain != null) {
+            logger.warn("Slow {} [{}] took {} ms at {}, explain: {}", operation, tag, TimeUnit.NANOSECONDS.toMillis(nanos),
+                callSite, explain);
+        } else {
+            logger.warn("Slow {} [{}] took {} ms at {}", operation, tag, TimeUnit.NANOSECONDS.toMillis(nanos), callSite);
+        }
+    }
+
+    /**
+     * @return latencies in nanoseconds by collection, operation and query shape, shapes over
+     * {@link #MAX_SHAPES} are recorded under {@link #OTHER_SHAPES} key
+     */
+    public Map<String, InMemoryMetrics.Histogram> getLatencies() {
+        return Collections.unmodifiableMap(new TreeMap<String, InMemoryMetrics.Histogram>(latencies));
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("OperationTracer{");
+        for (Map.Entry<String, InMemoryMetrics.Histogram> entry : getLatencies().entrySet()) {
+            sb.append("\n  ").append(entry.getKey()).append(": ").append(entry.getValue());
+        }
+        return sb.append("\n}").toString();
+    }
+
+    /**
+     * @return query comment which is the same for queries of the same shape, e.g. {@code items.find#1c2f3a4b}
+     */
+    public static String tag(@Nullable String collection, String operation, @Nullable DBObject query) {
+        return collection + "." + operation + "#" + Integer.toHexString(shape(query).hashCode());
+    }
+
+    /**
+     * @return query with values replaced by {@code ?}, {@code {}} for null query
+     */
+    public static String shape(@Nullable DBObject query) {
+        StringBuilder sb = new StringBuilder();
+        shape(sb, query);
+        return sb.toString();
+    }
+
+    private static void shape(StringBuilder sb, @Nullable Object value) {
+        if (value == null) {
+            sb.append("{}");
+        } else if (value instanceof List) {
+            List<?> list = (List<?>) value;
+            if (list.isEmpty() || !(list.get(0) instanceof DBObject) || list.get(0) instanceof List) {
+                sb.append('?'); // list of values, e.g. $in operand
+                return;
+            }
+            sb.append('[');
+            for (int i = 0; i < list.size(); i++) {
+                if (i > 0) {
+                    sb.append(", ");
+                }
+                shape(sb, list.get(i));
+            }
+            sb.append(']');
+        } else if (value instanceof DBObject) {
+            DBObject object = (DBObject) value;
+            sb.append('{');
+            boolean first = true;
+            for (String key : object.keySet()) {
+                if (!first) {
+                    sb.append(", ");
+                }
+                first = false;
+                sb.append(key).append(": ");
+                Object field = object.get(key);
+                if (field instanceof DBObject || field instanceof List) {
+                    shape(sb, field);
+                } else {
+                    sb.append('?');
+                }
+            }
+            sb.append('}');
+        } else {
+            sb.append('?');
+        }
+    }
+
+    private static String key(@Nullable String collection, String operation, @Nullable DBObject query) {
+        return collection + "." + operation + " " + shape(query);
+    }
+
+    @Nullable
+    private static StackTraceElement callSite() {
+        for (StackTraceElement element : new Throwable().getStackTrace()) {
+            String className = element.getClassName();
+            if (!isClassOf(className, OperationTracer.class) && !isClassOf(className, GsonDBCollection.class)) {
+                return element;
+            }
+        }
+        return null;
+    }
+
+    private static boolean isClassOf(String className, Class<?> clazz) {
+        String name = clazz.getName();
+        return className.startsWith(name) && (className.length() == name.length() || className.charAt(name.length()) == '$');
+    }
+}
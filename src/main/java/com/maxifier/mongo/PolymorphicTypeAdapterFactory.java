@@ -0,0 +1,271 @@
+/*
+ * Copyright (c) 2008-2015 Maxifier Ltd. All Rights Reserved.
+ */
+package com.maxifier.mongo;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonSyntaxException;
+import com.google.gson.TypeAdapter;
+import com.google.gson.TypeAdapterFactory;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static java.lang.String.format;
+
+/**
+ * Serializes class hierarchy with type discriminator stored as first field of documents.
+ * <p>Reader peeks discriminator using {@link GsonBuffer.Prefetchable#peekObjectString()} and passes the
+ * stream to adapter of concrete subtype, so documents are parsed once w/o building {@code JsonElement}
+ * tree. Discriminators are looked up by {@link GsonAdapters.FieldMatcher}, so lookup cost doesn't depend
+ * on the number of subtypes. Discriminator isn't a field of subtypes, their adapters skip it.</p>
+ * <p>{@link GsonDBCollection} of base type writes documents of subtypes as base type, so
+ * discriminator is written for top-level documents too.</p>
+ * <p>Usage example:
+ * <pre>
+ * GsonAdapters.configure(new GsonBuilder())
+ *     .registerTypeAdapterFactory(PolymorphicTypeAdapterFactory.of(Event.class, "_t")
+ *         .subtype(Created.class, "created")
+ *         .subtype(Deleted.class, "deleted"))
+ *     .create();
+ * </pre>
+ * </p>
+ *
+ * @author Konstantin Lyamshin (2015-02-26 10:30)
+ */
+public final class PolymorphicTypeAdapterFactory<B> implements TypeAdapterFactory {
+    private final Class<B> baseType;
+    private final String discriminator;
+    private final List<Class<? extends B>> subtypes = new ArrayList<Class<? extends B>>();
+    private final List<String> labels = new ArrayList<String>();
+
+    private PolymorphicTypeAdapterFactory(Class<B> baseType, String discriminator) {
+        this.baseType = baseType;
+        this.discriminator = discriminator;
+    }
+
+    /**
+     * @param discriminator name of field which holds subtype label
+     */
+    public static <B> PolymorphicTypeAdapterFactory<B> of(Class<B> baseType, String discriminator) {
+        if (baseType == null || discriminator == null) {
+            throw new NullPointerException("Base type and discriminator required");
+        }
+        return new PolymorphicTypeAdapterFactory<B>(baseType, discriminator);
+    }
+
+    /**
+     * Registers concrete subtype stored with specified label.
+     */
+    public PolymorphicTypeAdapterFactory<B> subtype(Class<? extends B> type, String label) {
+        if (type == null || label == null) {
+            throw new NullPointerException("Subtype and label required");
+        }
+        if (subtypes.contains(type) || labels.contains(label)) {
+            throw new IllegalArgumentException(format("Subtype %s or label %s is already registered", type.getName(), label));
+        }
+        subtypes.add(type);
+        labels.add(label);
+        return this;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked") // checked by reflection
+    public <T> TypeAdapter<T> create(Gson gson, TypeToken<T> type) {
+        if (type.getRawType() != baseType) {
+            return null;
+        }
+        TypeAdapter<?>[] adapters = new TypeAdapter<?>[subtypes.size()];
+        Map<Class<?>, Integer> indexes = new HashMap<Class<?>, Integer>(subtypes.size() * 2);
+        for (int i = 0; i < adapters.length; i++) {
+            Class<? extends B> subtype = subtypes.get(i);
+            adapters[i] = subtype != baseType? gson.getAdapter(subtype): gson.getDelegateAdapter(this, type);
+            indexes.put(subtype, i);
+        }
+        String[] names = labels.toArray(new String[labels.size()]);
+        return (TypeAdapter<T>) new PolymorphicTypeAdapter(adapters, indexes, new GsonAdapters.FieldMatcher(names), names);
+    }
+
+    /**
+     * @return true if adapter writes discriminator, so documents should be written as base type
+     */
+    static boolean isPolymorphic(TypeAdapter<?> adapter) {
+        return adapter instanceof PolymorphicTypeAdapterFactory.PolymorphicTypeAdapter;
+    }
+
+    @Override
+    public String toString() {
+        return format("PolymorphicTypeAdapterFactory{%s(%s)}", baseType.getName(), discriminator);
+    }
+
+    private class PolymorphicTypeAdapter extends TypeAdapter<B> {
+        private final TypeAdapter<?>[] adapters;
+        private final Map<Class<?>, Integer> indexes;
+        private final GsonAdapters.FieldMatcher matcher;
+        private final String[] labels;
+
+        PolymorphicTypeAdapter(TypeAdapter<?>[] adapters, Map<Class<?>, Integer> indexes,
+                               GsonAdapters.FieldMatcher matcher, String[] labels) {
+            this.adapters = adapters;
+            this.indexes = indexes;
+            this.matcher = matcher;
+            this.labels = labels;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked") // adapter matches value class
+        public void write(JsonWriter out, B value) throws IOException {
+            if (value == null) {
+                out.nullValue();
+                return;
+            }
+            Integer index = indexes.get(value.getClass());
+            if (index == null) {
+                throw new IllegalArgumentException(format("Subtype %s of %s isn't registered",
+                    value.getClass().getName(), baseType.getName()));
+            }
+            ((TypeAdapter<B>) adapters[index]).write(new DiscriminatorWriter(out, labels[index]), value);
+        }
+
+        @Override
+        public B read(JsonReader in) throws IOException {
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                return null;
+            }
+
+            JsonReader reader = in instanceof GsonBuffer.Prefetchable? in: new GsonBuffer.PrefetchableReader(in);
+            GsonBuffer.Prefetchable prefetcher = (GsonBuffer.Prefetchable) reader;
+            String label = prefetcher.peekObjectString();
+            if (label == null || !discriminator.equals(prefetcher.peekObjectField())) {
+                throw new JsonSyntaxException(format("Discriminator %s expected as first field of %s at %s",
+                    discriminator, baseType.getName(), in.getPath()));
+            }
+            int index = matcher.match(label);
+            if (index < 0) {
+                throw new JsonSyntaxException(format("Unknown %s subtype %s at %s", baseType.getName(), label, in.getPath()));
+            }
+            return baseType.cast(adapters[index].read(reader)); // discriminator is skipped by subtype adapter
+        }
+
+        @Override
+        public String toString() {
+            return format("Polymorphic{%s(%s)}", baseType.getName(), discriminator);
+        }
+    }
+
+    /**
+     * Writes discriminator as first field of the object written by subtype adapter.
+     */
+    private class DiscriminatorWriter extends JsonWriter {
+        private final JsonWriter out;
+        private final String label;
+        private int depth;
+        private boolean discriminated;
+
+        DiscriminatorWriter(JsonWriter out, String label) {
+            super(GsonBuffer.NULL_WRITER);
+            this.out = out;
+            this.label = label;
+        }
+
+        @Override
+        public boolean isLenient() {
+            return out.isLenient();
+        }
+
+        @Override
+        public JsonWriter beginObject() throws IOException {
+            out.beginObject();
+            if (depth++ == 0 && !discriminated) {
+                out.name(discriminator).value(label);
+                discriminated = true;
+            }
+            return this;
+        }
+
+        @Override
+        public JsonWriter endObject() throws IOException {
+            depth--;
+            out.endObject();
+            return this;
+        }
+
+        @Override
+        public JsonWriter beginArray() throws IOException {
+            depth++;
+            out.beginArray();
+            return this;
+        }
+
+        @Override
+        public JsonWriter endArray() throws IOException {
+            depth--;
+            out.endArray();
+            return this;
+        }
+
+        @Override
+        public JsonWriter name(String name) throws IOException {
+            if (depth == 1 && name.equals(discriminator)) {
+                throw new IllegalStateException(format("Field %s of %s conflicts with discriminator, make it transient",
+                    name, baseType.getName()));
+            }
+            out.name(name);
+            return this;
+        }
+
+        @Override
+        public JsonWriter value(String value) throws IOException {
+            out.value(value);
+            return this;
+        }
+
+        @Override
+        public JsonWriter nullValue() throws IOException {
+            out.nullValue();
+            return this;
+        }
+
+        @Override
+        public JsonWriter value(boolean value) throws IOException {
+            out.value(value);
+            return this;
+        }
+
+        @Override
+        public JsonWriter value(double value) throws IOException {
+            out.value(value);
+            return this;
+        }
+
+        @Override
+        public JsonWriter value(long value) throws IOException {
+            out.value(value);
+            return this;
+        }
+
+        @Override
+        public JsonWriter value(Number value) throws IOException {
+            out.value(value);
+            return this;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        public void close() {
+            // owned by caller
+        }
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright (c) 2008-2015 Maxifier Ltd. All Rights Reserved.
+ */
+package com.maxifier.mongo;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.Weigher;
+import com.google.common.util.concurrent.ExecutionError;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import com.mongodb.MongoException;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounded cache of query results for {@link GsonDBCollection.QueryBuilder#cached()} queries.
+ * <p>Results are keyed by encoded query, projection, sort and query parameters, and stored
+ * as lists of encoded documents, so every hit builds fresh POJOs. Eviction is LRU-like by total
+ * size of encoded documents, with optional expiration after write. Concurrent identical misses
+ * wait for single fetch.</p>
+ * <p>Any write through the owning {@link GsonDBCollection} invalidates whole cache.
+ * Writes bypassing {@code GsonDBCollection} are visible after expiration only.</p>
+ *
+ * @see GsonDBCollection#setQueryCache(QueryCache)
+ * @author Konstantin Lyamshin (2015-02-18 15:40)
+ */
+public class QueryCache {
+    private final Cache<Key, List<byte[]>> cache;
+    private long generation; // guarded by this
+
+    /**
+     * @param maxBytes max total size of cached encoded documents
+     * @param ttl expiration time after write, or 0 to keep results until eviction
+     */
+    public QueryCache(long maxBytes, long ttl, TimeUnit unit) {
+        CacheBuilder<Key, List<byte[]>> builder = CacheBuilder.newBuilder()
+            .maximumWeight(maxBytes)
+            .weigher(new Weigher<Key, List<byte[]>>() {
+                @Override
+                public int weigh(Key key, List<byte[]> value) {
+                    long weight = key.bytes.length;
+                    for (byte[] document : value) {
+                        weight += document.length;
+                    }
+                    return (int) Math.min(weight, Integer.MAX_VALUE);
+                }
+            });
+        if (ttl > 0) {
+            builder.expireAfterWrite(ttl, unit);
+        }
+        this.cache = builder.recordStats().build();
+    }
+
+    /**
+     * Returns cached results or fetches them by loader. Results fetched concurrently with
+     * invalidation are returned but not cached.
+     */
+    List<byte[]> get(byte[] key, Callable<List<byte[]>> loader) {
+        Key k = new Key(key);
+        long generation;
+        synchronized (this) {
+            generation = this.generation;
+        }
+        List<byte[]> documents;
+        try {
+            documents = cache.get(k, loader);
+        } catch (UncheckedExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        } catch (ExecutionError e) {
+            throw (Error) e.getCause();
+        } catch (ExecutionException e) {
+            throw new MongoException("Can't fetch query results", e.getCause());
+        }
+        synchronized (this) {
+            if (this.generation != generation) {
+                cache.invalidate(k);
+            }
+        }
+        return documents;
+    }
+
+    public synchronized void invalidateAll() {
+        generation++;
+        cache.invalidateAll();
+    }
+
+    public long size() {
+        return cache.size();
+    }
+
+    /**
+     * @return hit, miss and eviction counters
+     */
+    public CacheStats getStats() {
+        return cache.stats();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("QueryCache{size=%d, %s}", cache.size(), cache.stats());
+    }
+
+    private static final class Key {
+        private final byte[] bytes;
+        private final int hash;
+
+        Key(byte[] bytes) {
+            this.bytes = bytes;
+            this.hash = Arrays.hashCode(bytes);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return this == o || o instanceof Key && Arrays.equals(bytes, ((Key) o).bytes);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
@@ -0,0 +1,196 @@
+/*
+ * Copyright (c) 2008-2015 Maxifier Ltd. All Rights Reserved.
+ */
+package com.maxifier.mongo;
+
+import com.mongodb.*;
+import org.bson.BSONCallback;
+import org.bson.BSONObject;
+import org.bson.io.Bits;
+import org.bson.io.OutputBuffer;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Read-only {@link DBObject} which holds encoded BSON document as is.
+ * <p>Use {@link #DECODER_FACTORY} to make {@link DBCursor} return raw documents.
+ * Such documents can be decoded later (or in another thread) by {@link BsonReader}
+ * or transcoded w/o decoding at all.</p>
+ * <p>Use {@link #ENCODER} to write raw documents back as is, e.g. pass it to
+ * {@link DBCollection#insert(java.util.List, InsertOptions)}.</p>
+ *
+ * @see JsonExporter
+ * @author Konstantin Lyamshin (2015-02-12 13:40)
+ */
+public final class RawDBObject implements DBObject {
+    public static final DBDecoderFactory DECODER_FACTORY = new DBDecoderFactory() {
+        @Override
+        public DBDecoder create() {
+            return new Decoder();
+        }
+
+        @Override
+        public String toString() {
+            return "RawDBObject.DECODER_FACTORY";
+        }
+    };
+
+    public static final DBEncoder ENCODER = new DBEncoder() {
+        @Override
+        public int writeObject(OutputBuffer outputBuffer, BSONObject document) {
+            byte[] bytes = ((RawDBObject) document).bytes;
+            outputBuffer.write(bytes);
+            return bytes.length;
+        }
+
+        @Override
+        public String toString() {
+            return "RawDBObject.ENCODER";
+        }
+    };
+
+    // Ugly hack for DBCollection implementation which requires presence of _id field
+    private static final Map<String, Object> FAKEID = Collections.singletonMap("_id", new Object());
+    private final byte[] bytes;
+    private boolean partial;
+
+    public RawDBObject(byte[] bytes) {
+        this.bytes = bytes;
+    }
+
+    /**
+     * @return encoded document, don't modify it
+     */
+    public byte[] getBytes() {
+        return bytes;
+    }
+
+    public int getSize() {
+        return bytes.length;
+    }
+
+    public InputStream getInputStream() {
+        return new ByteArrayInputStream(bytes);
+    }
+
+    @Override
+    public void markAsPartialObject() {
+        partial = true;
+    }
+
+    @Override
+    public boolean isPartialObject() {
+        return partial;
+    }
+
+    @Override
+    public Object put(String key, Object v) {
+        throw new UnsupportedOperationException("Can't change raw object");
+    }
+
+    @Override
+    public void putAll(BSONObject o) {
+        throw new UnsupportedOperationException("Can't change raw object");
+    }
+
+    @Override
+    public void putAll(Map m) {
+        throw new UnsupportedOperationException("Can't change raw object");
+    }
+
+    @Override
+    public Object get(String key) {
+        return FAKEID.get(key);
+    }
+
+    @Override
+    public Map toMap() {
+        return FAKEID;
+    }
+
+    @Override
+    public Object removeField(String key) {
+        throw new UnsupportedOperationException("Can't change raw object");
+    }
+
+    @Override
+    public boolean containsKey(String s) {
+        return containsField(s);
+    }
+
+    @Override
+    public boolean containsField(String s) {
+        return FAKEID.containsKey(s);
+    }
+
+    @Override
+    public Set<String> keySet() {
+        return FAKEID.keySet();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("RawDBObject{%d bytes}", bytes.length);
+    }
+
+    /**
+     * {@link DBDecoder} implementation which reads documents as {@link RawDBObject}.
+     * <p>Decoding using callback is unsupported so callback-related methods throws UOE.</p>
+     */
+    static final class Decoder implements DBDecoder {
+        private final byte[] size = new byte[4];
+
+        @Override
+        public DBCallback getDBCallback(DBCollection collection) {
+            throw new UnsupportedOperationException("Parsing stream through callback is unsupported");
+        }
+
+        @Override
+        public int decode(byte[] bytes, BSONCallback callback) {
+            throw new UnsupportedOperationException("Parsing stream through callback is unsupported");
+        }
+
+        @Override
+        public int decode(InputStream in, BSONCallback callback) throws IOException {
+            throw new UnsupportedOperationException("Parsing stream through callback is unsupported");
+        }
+
+        @Override
+        public DBObject decode(InputStream is, DBCollection collection) throws IOException {
+            return readObject(is);
+        }
+
+        @Override
+        public DBObject decode(byte[] bytes, DBCollection collection) {
+            return readObject(bytes);
+        }
+
+        @Override
+        public DBObject readObject(byte[] bytes) {
+            return new RawDBObject(bytes);
+        }
+
+        @Override
+        public DBObject readObject(InputStream in) throws IOException {
+            Bits.readFully(in, size);
+            int length = Bits.readInt(size);
+            if (length < 5) {
+                throw new IllegalStateException("Invalid BSON document size " + length);
+            }
+            byte[] bytes = new byte[length];
+            System.arraycopy(size, 0, bytes, 0, size.length);
+            Bits.readFully(in, bytes, size.length, length - size.length);
+            return new RawDBObject(bytes);
+        }
+
+        @Override
+        public String toString() {
+            return "RawDBObject.Decoder";
+        }
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright (c) 2008-2015 Maxifier Ltd. All Rights Reserved.
+ */
+package com.maxifier.mongo;
+
+import com.google.common.collect.AbstractIterator;
+import com.google.gson.JsonSyntaxException;
+import com.google.gson.TypeAdapter;
+import org.bson.BSON;
+
+import javax.annotation.Nullable;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.SequenceInputStream;
+import java.util.Iterator;
+
+/**
+ * Array field which elements are read one by one while iterating.
+ * <p>Declare large array field as {@code StreamedArray<E>} instead of {@code List<E>}. When document
+ * is read, the array is kept in its encoded BSON form and the rest of document is populated as usual.
+ * Each {@link #iterator()} parses elements lazily, so only one element is materialized at a time and
+ * peak heap is bounded by encoded array size.</p>
+ * <p>Arrays are written element by element too, so {@link #of(Iterable)} accepts any lazy iterable.
+ * Array read from JSON or from buffered object falls back to an ordinary list.</p>
+ * <p>Use {@link GsonAdapters#configure(com.google.gson.GsonBuilder)} to install adapter.</p>
+ *
+ * @see GsonAdapters#STREAMED_ARRAY_ADAPTER_FACTORY
+ * @author Konstantin Lyamshin (2015-02-25 16:40)
+ */
+public final class StreamedArray<E> implements Iterable<E> {
+    private final Iterable<E> elements;
+    private final byte[] stored;
+    private final TypeAdapter<E> adapter;
+    private final FieldAliases aliases;
+
+    private StreamedArray(@Nullable Iterable<E> elements, @Nullable byte[] stored,
+                          @Nullable TypeAdapter<E> adapter, @Nullable FieldAliases aliases) {
+        this.elements = elements;
+        this.stored = stored;
+        this.adapter = adapter;
+        this.aliases = aliases;
+    }
+
+    public static <E> StreamedArray<E> of(Iterable<E> elements) {
+        if (elements == null) {
+            throw new NullPointerException("Elements required");
+        }
+        return new StreamedArray<E>(elements, null, null, null);
+    }
+
+    /**
+     * @param stored array as BSON document
+     * @param aliases stored field names of elements
+     */
+    static <E> StreamedArray<E> stored(byte[] stored, TypeAdapter<E> adapter, @Nullable FieldAliases aliases) {
+        return new StreamedArray<E>(null, stored, adapter, aliases);
+    }
+
+    /**
+     * @return size of encoded array, 0 if array isn't read from BSON
+     */
+    public int getStoredSize() {
+        return stored != null? stored.length: 0;
+    }
+
+    @Override
+    public Iterator<E> iterator() {
+        if (stored == null) {
+            return elements.iterator();
+        }
+
+        // wrap array into {"": [...]} document so it's parsed as array
+        int length = 4 + 2 + stored.length + 1;
+        byte[] header = {(byte) length, (byte) (length >>> 8), (byte) (length >>> 16), (byte) (length >>> 24), BSON.ARRAY, 0};
+        final GsonReader reader = new GsonReader(new BsonReader());
+        reader.reset(new SequenceInputStream(new SequenceInputStream(
+            new ByteArrayInputStream(header), new ByteArrayInputStream(stored)), new ByteArrayInputStream(new byte[1])));
+        reader.setAliases(aliases);
+        return new AbstractIterator<E>() {
+            private boolean started;
+
+            @Override
+            protected E computeNext() {
+                try {
+                    if (!started) {
+                        reader.beginObject();
+                        reader.nextName();
+                        reader.beginArray();
+                        started = true;
+                    }
+                    if (!reader.hasNext()) {
+                        reader.endArray();
+                        reader.endObject();
+                        return endOfData();
+                    }
+                    return adapter.read(reader);
+                } catch (IOException e) {
+                    throw new JsonSyntaxException("Can't read array element at " + reader.getPath(), e);
+                }
+            }
+        };
+    }
+
+    @Override
+    public String toString() {
+        return stored != null? "StreamedArray{" + stored.length + " bytes}": "StreamedArray{" + elements + "}";
+    }
+}
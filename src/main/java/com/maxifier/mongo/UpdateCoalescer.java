@@ -0,0 +1,310 @@
+/*
+ * Copyright (c) 2008-2015 Maxifier Ltd. All Rights Reserved.
+ */
+package com.maxifier.mongo;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Write-combining buffer for frequent {@code $inc/$set} updates of the same documents.
+ * <p>Updates are accepted for {@code {_id: value}} queries only and may contain {@code $inc} and
+ * {@code $set} operators only (see {@link ValueDBObject#inc(String, Object)} and
+ * {@link ValueDBObject#set(String, Object)}). Pending updates of the same {@code _id} are merged:
+ * increments are summed, the latest {@code $set} value wins, increment of a pending {@code $set}
+ * field is applied to the value. Merged updates are flushed as one unordered bulk operation every
+ * {@code maxDelay} or when {@code maxPending} documents have pending updates, so update may be
+ * delayed by {@code maxDelay} at most. Update whose field paths overlap pending ones, e.g.
+ * {@code "a"} and {@code "a.b"}, can't be merged into one update, so pending updates are flushed
+ * before it.</p>
+ * <p>{@link #close()} flushes pending updates in caller thread, call it on shutdown.
+ * Flushes are serialized, so batches are written in the order they are taken.
+ * Failed flushes are logged and their updates are lost.</p>
+ *
+ * @author Konstantin Lyamshin (2015-02-17 11:05)
+ */
+public class UpdateCoalescer implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(UpdateCoalescer.class);
+
+    private final GsonDBCollection<?> collection;
+    private final ScheduledExecutorService executor;
+    private final int maxPending;
+    private final boolean upsert;
+    private final ScheduledFuture<?> timer;
+    private final Object flushLock = new Object(); // serializes flushes
+    private Map<Object, Pending> pending = new HashMap<Object, Pending>(); // guarded by this
+    private boolean flushScheduled; // flush of full batch is queued, guarded by this
+    private boolean closed; // guarded by this
+
+    /**
+     * @param collection target collection
+     * @param executor executor to run flushes
+     * @param maxPending max number of documents with pending updates
+     * @param maxDelay flush period
+     * @param unit flush period time unit
+     * @param upsert whether to upsert merged updates
+     */
+    public UpdateCoalescer(GsonDBCollection<?> collection, ScheduledExecutorService executor,
+                           int maxPending, long maxDelay, TimeUnit unit, boolean upsert) {
+        if (maxPending <= 0) {
+            throw new IllegalArgumentException("Invalid pending limit " + maxPending);
+        }
+        this.collection = collection;
+        this.executor = executor;
+        this.maxPending = maxPending;
+        this.upsert = upsert;
+        this.timer = executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                flushQuietly();
+            }
+        }, maxDelay, maxDelay, unit);
+    }
+
+    /**
+     * Merges update into pending ones.
+     *
+     * @throws IllegalArgumentException if query or update can't be merged
+     */
+    public void updateOne(DBObject query, DBObject update) {
+        if (query.keySet().size() != 1 || !query.containsField("_id")) {
+            throw new IllegalArgumentException("Can't coalesce update by query " + query);
+        }
+        Object id = query.get("_id");
+        if (id == null || id instanceof DBObject) {
+            throw new IllegalArgumentException("Can't coalesce update by query " + query);
+        }
+        for (String operator : update.keySet()) {
+            if (!operator.equals("$inc") && !operator.equals("$set")) {
+                throw new IllegalArgumentException("Can't coalesce update operator " + operator + " in " + update);
+            }
+        }
+        DBObject inc = (DBObject) update.get("$inc");
+        if (inc != null) {
+            for (String field : inc.keySet()) {
+                if (!(inc.get(field) instanceof Number)) {
+                    throw new IllegalArgumentException("Can't increment " + field + " by " + inc.get(field));
+                }
+            }
+        }
+
+        boolean full;
+        while (true) {
+            synchronized (this) {
+                if (closed) {
+                    throw new IllegalStateException("Coalescer is closed " + toString());
+                }
+                Pending p = pending.get(id);
+                if (p == null) {
+                    p = new Pending();
+                }
+                if (!p.overlaps(update)) {
+                    p.check(update); // pending updates are kept intact if update is rejected
+                    p.merge(update);
+                    pending.put(id, p);
+                    full = pending.size() >= maxPending && !flushScheduled;
+                    if (full) {
+                        flushScheduled = true;
+                    }
+                    break;
+                }
+            }
+            flushQuietly(); // overlapping update goes to the next batch
+        }
+        if (full) {
+            try {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        flushQuietly();
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                synchronized (this) {
+                    flushScheduled = false; // next update retries, merged updates stay pending
+                }
+                logger.warn("Can't schedule flush of coalesced updates", e);
+            }
+        }
+    }
+
+    /**
+     * @return number of documents with pending updates
+     */
+    public synchronized int getPendingCount() {
+        return pending.size();
+    }
+
+    /**
+     * Writes merged pending updates in caller thread.
+     */
+    public void flush() {
+        synchronized (flushLock) { // older batch of the same _id must be written first
+            Map<Object, Pending> batch;
+            synchronized (this) {
+                flushScheduled = false;
+                if (pending.isEmpty()) {
+                    return;
+                }
+                batch = pending;
+                pending = new HashMap<Object, Pending>();
+            }
+
+            GsonDBCollection.BulkOperation<?> op = collection.bulk(false);
+            for (Map.Entry<Object, Pending> entry : batch.entrySet()) {
+                GsonDBCollection.BulkOperation.Builder request = op.find(new BasicDBObject("_id", entry.getKey()));
+                if (upsert) {
+                    request.upsertOne(entry.getValue().toUpdate());
+                } else {
+                    request.updateOne(entry.getValue().toUpdate());
+                }
+            }
+            op.execute();
+        }
+    }
+
+    private void flushQuietly() {
+        try {
+            flush();
+        } catch (RuntimeException e) {
+            logger.error("Can't flush coalesced updates", e);
+        }
+    }
+
+    /**
+     * Stops timer and flushes pending updates in caller thread.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            closed = true;
+        }
+        timer.cancel(false);
+        flush();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("UpdateCoalescer{pending=%d, maxPending=%d}", pending.size(), maxPending);
+    }
+
+    static Number add(Number a, Number b) {
+        if (a instanceof Double || a instanceof Float || b instanceof Double || b instanceof Float) {
+            return a.doubleValue() + b.doubleValue();
+        }
+        long sum = a.longValue() + b.longValue();
+        if (a instanceof Long || b instanceof Long || (int) sum != sum) {
+            return sum;
+        }
+        return (int) sum;
+    }
+
+    /**
+     * Merged updates of one document.
+     */
+    private static class Pending {
+        private final Map<String, Number> inc = new LinkedHashMap<String, Number>();
+        private final Map<String, Object> set = new LinkedHashMap<String, Object>();
+
+        /**
+         * @return true if field path of update is a prefix of pending path or vice versa
+         */
+        boolean overlaps(DBObject update) {
+            for (String operator : update.keySet()) {
+                for (String field : ((DBObject) update.get(operator)).keySet()) {
+                    if (overlaps(field, inc.keySet()) || overlaps(field, set.keySet())) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+
+        private static boolean overlaps(String field, Set<String> paths) {
+            for (String path : paths) {
+                if (isParent(field, path) || isParent(path, field)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private static boolean isParent(String parent, String path) {
+            return path.length() > parent.length() && path.charAt(parent.length()) == '.' && path.startsWith(parent);
+        }
+
+        /**
+         * Checks that update could be merged, so {@link #merge(DBObject)} doesn't fail halfway.
+         *
+         * @throws IllegalArgumentException if incremented field is set to non-number
+         */
+        void check(DBObject update) {
+            DBObject inc = (DBObject) update.get("$inc");
+            if (inc == null) {
+                return;
+            }
+            DBObject set = (DBObject) update.get("$set");
+            for (String field : inc.keySet()) {
+                Object value;
+                if (set != null && set.containsField(field)) {
+                    value = set.get(field);
+                } else if (this.set.containsKey(field)) {
+                    value = this.set.get(field);
+                } else {
+                    continue;
+                }
+                if (!(value instanceof Number)) {
+                    throw new IllegalArgumentException("Can't increment " + field + " value " + value);
+                }
+            }
+        }
+
+        /**
+         * Merges checked update.
+         */
+        void merge(DBObject update) {
+            DBObject set = (DBObject) update.get("$set");
+            if (set != null) {
+                for (String field : set.keySet()) {
+                    this.inc.remove(field);
+                    this.set.put(field, set.get(field));
+                }
+            }
+            DBObject inc = (DBObject) update.get("$inc");
+            if (inc != null) {
+                for (String field : inc.keySet()) {
+                    Number delta = (Number) inc.get(field);
+                    if (this.set.containsKey(field)) {
+                        this.set.put(field, add((Number) this.set.get(field), delta));
+                    } else {
+                        Number sum = this.inc.get(field);
+                        this.inc.put(field, sum != null? add(sum, delta): delta);
+                    }
+                }
+            }
+        }
+
+        DBObject toUpdate() {
+            BasicDBObject update = new BasicDBObject();
+            if (!inc.isEmpty()) {
+                update.put("$inc", new BasicDBObject(inc));
+            }
+            if (!set.isEmpty()) {
+                update.put("$set", new BasicDBObject(set));
+            }
+            return update;
+        }
+    }
+}
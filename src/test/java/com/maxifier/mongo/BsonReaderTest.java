@@ -122,6 +122,28 @@ public class BsonReaderTest extends org.testng.Assert {
         assertEquals(reader.getPath(), path);
     }
 
+    @Test
+    public void testMatchName() throws Exception {
+        BasicDBObjectBuilder db = new BasicDBObjectBuilder();
+        db.add("_id", 1);
+        db.add("unknown", 2);
+        db.add("field\ud83d\ude21", 3);
+
+        GsonAdapters.FieldMatcher matcher = new GsonAdapters.FieldMatcher("field\ud83d\ude21", "_id");
+        BsonReader reader = getReader(db.get());
+        reader.beginObject();
+        assertEquals(reader.nextName(matcher), 1);
+        assertEquals(reader.getPath(), "$._id");
+        assertEquals(reader.nextInt(), 1);
+        assertEquals(reader.nextName(matcher), -1);
+        assertEquals(reader.getPath(), "$.unknown");
+        reader.skipValue();
+        assertEquals(reader.nextName(matcher), 0);
+        assertEquals(reader.getPath(), "$.field\ud83d\ude21");
+        assertEquals(reader.nextInt(), 3);
+        reader.endObject();
+    }
+
     @Test
     public void testReadNested() throws Exception {
         BasicDBObjectBuilder db = new BasicDBObjectBuilder();
@@ -263,6 +285,33 @@ public class BsonReaderTest extends org.testng.Assert {
         assertEquals(reader.peek(), P_NONE);
     }
 
+    @Test
+    public void testReadDocument() throws Exception {
+        BasicDBObjectBuilder db = new BasicDBObjectBuilder()
+            .add("_id", 1)
+            .add("arr", Arrays.asList(1, "2"))
+            .push("obj").add("a", 1).pop()
+            .add("n", 2);
+        BsonReader reader = getReader(db.get());
+        reader.beginObject();
+        assertEquals(reader.nextName(), "_id");
+        try {
+            reader.nextDocument();
+            fail("Primitive read as document");
+        } catch (IllegalStateException ignored) {
+        }
+        assertEquals(reader.nextInt(), 1);
+        assertEquals(reader.nextName(), "arr");
+        DBObject arr = new DefaultDBDecoder().decode(reader.nextDocument(), (DBCollection) null);
+        assertEquals(arr, new BasicDBObject("0", 1).append("1", "2"));
+        assertEquals(reader.nextName(), "obj");
+        DBObject obj = new DefaultDBDecoder().decode(reader.nextDocument(), (DBCollection) null);
+        assertEquals(obj, new BasicDBObject("a", 1));
+        assertEquals(reader.nextName(), "n");
+        assertEquals(reader.nextInt(), 2);
+        reader.endObject();
+    }
+
     @Test
     public void testReadWrong() throws Exception {
         BasicDBObjectBuilder db = new BasicDBObjectBuilder()
@@ -653,4 +702,41 @@ public class BsonReaderTest extends org.testng.Assert {
         }
         return new ByteArrayInputStream(b);
     }
+
+    @Test
+    public void testReuseAfterLargeDocument() throws Exception {
+        char[] chars = new char[MAX_RETAINED_BYTES * 2];
+        Arrays.fill(chars, 'x');
+        DBObject deep = new BasicDBObject("s", new String(chars));
+        for (int i = 0; i < MAX_RETAINED_DEPTH * 2; i++) {
+            deep = new BasicDBObject("o", deep);
+        }
+        OutputBuffer buffer = new BasicOutputBuffer();
+        new DefaultDBEncoder().writeObject(buffer, deep);
+
+        BsonReader reader = new BsonReader();
+        reader.reset(new ByteArrayInputStream(buffer.toByteArray()));
+        for (int i = 0; i < MAX_RETAINED_DEPTH * 2; i++) {
+            reader.beginObject();
+            assertEquals(reader.nextName(), "o");
+        }
+        reader.beginObject();
+        assertEquals(reader.nextName(), "s");
+        assertEquals(reader.nextString().length(), chars.length);
+        reader.reset(null);
+
+        buffer = new BasicOutputBuffer();
+        new DefaultDBEncoder().writeObject(buffer, new BasicDBObject("s", "str").append("o", new BasicDBObject("n", 1)));
+        reader.reset(new ByteArrayInputStream(buffer.toByteArray()));
+        reader.beginObject();
+        assertEquals(reader.nextName(), "s");
+        assertEquals(reader.nextString(), "str");
+        assertEquals(reader.nextName(), "o");
+        reader.beginObject();
+        assertEquals(reader.nextName(), "n");
+        assertEquals(reader.nextInt(), 1);
+        reader.endObject();
+        reader.endObject();
+    }
+
 }
\ No newline at end of file
@@ -13,9 +13,12 @@ import org.bson.types.*;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
+import java.math.BigDecimal;
+import java.math.BigInteger;
 import java.util.Date;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Pattern;
 
 /**
@@ -243,6 +246,24 @@ public class BsonWriterTest extends org.testng.Assert {
         try { writer.endObject(); fail("Write should fail"); } catch (IllegalStateException ignored) {}
     }
 
+    @Test
+    public void testWriteUnknown() throws Exception {
+        writer.beginObject();
+        writer.name("vals");
+        writer.beginArray();
+        writer.value('c');
+        writer.value(new AtomicInteger(3));
+        writer.value(new Symbol("sym"));
+        try { writer.value(BigDecimal.ONE); fail("Write should fail"); } catch (IllegalArgumentException ignored) {}
+        try { writer.value(new Object()); fail("Write should fail"); } catch (IllegalArgumentException ignored) {}
+        try { writer.numberValue(BigInteger.TEN); fail("Write should fail"); } catch (IllegalArgumentException ignored) {}
+        writer.endArray();
+        writer.endObject();
+
+        DBObject o = new DefaultDBDecoder().decode(buffer.toByteArray(), (DBCollection) null);
+        assertEquals(o.get("vals").toString(), "[ \"c\" , 3 , \"sym\"]");
+    }
+
     @Test
     public void testBadName() throws Exception {
         writer.beginObject();
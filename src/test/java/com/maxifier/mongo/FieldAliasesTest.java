@@ -0,0 +1,174 @@
+/*
+ * Copyright (c) 2008-2015 Maxifier Ltd. All Rights Reserved.
+ */
+package com.maxifier.mongo;
+
+import com.google.gson.GsonBuilder;
+import com.google.gson.annotations.SerializedName;
+import com.mongodb.BasicDBObject;
+import com.mongodb.BasicDBObjectBuilder;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.DefaultDBDecoder;
+import org.testng.annotations.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static com.maxifier.mongo.ValueDBObject.*;
+import static org.mockito.Mockito.mock;
+
+/**
+ * @author Konstantin Lyamshin (2015-02-24 14:50)
+ */
+public class FieldAliasesTest extends org.testng.Assert {
+    @Test
+    public void testInitials() throws Exception {
+        assertEquals(FieldAliases.initials("customerName"), "cn");
+        assertEquals(FieldAliases.initials("created"), "c");
+        assertEquals(FieldAliases.initials("unitPrice2"), "up");
+        assertEquals(FieldAliases.initials("total_amount"), "ta");
+        assertEquals(FieldAliases.initials("HTTPStatus"), "h");
+    }
+
+    @Test
+    public void testRegister() throws Exception {
+        FieldAliases aliases = FieldAliases.builder()
+            .alias("quantity", "q")
+            .register(Order.class)
+            .build();
+        assertEquals(aliases.getAliases().toString(),
+            "{city=c, customerName=cn, lineItems=li, quantity=q, shippingAddress=sa, sku=s, unitPrice=up}");
+        assertEquals(aliases.stored("customerName"), "cn");
+        assertEquals(aliases.stored("unknown"), "unknown");
+        assertEquals(aliases.field("cn"), "customerName");
+        assertEquals(aliases.field("sku"), "sku");
+    }
+
+    @Test
+    public void testCollisions() throws Exception {
+        try {
+            FieldAliases.builder().register(Order.class).register(Clash.class).build();
+            fail("Collision expected");
+        } catch (IllegalStateException e) {
+            assertTrue(e.getMessage().contains("c: [city, cn]"), e.getMessage());
+            assertTrue(e.getMessage().contains("q: [q, quantity]"), e.getMessage());
+        }
+        try {
+            FieldAliases.builder().alias("customerName", "c").alias("created", "c").build();
+            fail("Collision expected");
+        } catch (IllegalStateException e) {
+            assertTrue(e.getMessage().contains("c: [created, customerName]"), e.getMessage());
+        }
+        FieldAliases.builder().register(Order.class).register(Clash.class)
+            .alias("cn", "cn2").alias("q", "q2").build();
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testInvalidAlias() throws Exception {
+        FieldAliases.builder().alias("customerName", "c.n");
+    }
+
+    @Test
+    public void testTranslate() throws Exception {
+        FieldAliases aliases = FieldAliases.builder().register(Order.class).build();
+        assertEquals(aliases.translate(v("customerName", "x")), new BasicDBObject("cn", "x"));
+        assertEquals(aliases.translate(new BasicDBObjectBuilder()
+            .add("_id", 1)
+            .add("lineItems.0.unitPrice", gt(10))
+            .add("lineItems", elemMatch("quantity", in(1, 2)))
+            .add("$or", Arrays.asList(v("customerName", "x"), v("shippingAddress.city", "y")))
+            .get()), new BasicDBObjectBuilder()
+            .add("_id", 1)
+            .add("li.0.up", new BasicDBObject("$gt", 10))
+            .add("li", new BasicDBObject("$elemMatch", new BasicDBObject("q", new BasicDBObject("$in", Arrays.asList(1, 2)))))
+            .add("$or", Arrays.asList(new BasicDBObject("cn", "x"), new BasicDBObject("sa.c", "y")))
+            .get());
+        assertEquals(aliases.translate(set("lineItems.$.quantity", 3)),
+            new BasicDBObject("$set", new BasicDBObject("li.$.q", 3)));
+        GsonWrapper pojo = new GsonWrapper(new Order());
+        assertSame(aliases.translate(pojo), pojo);
+        assertNull(aliases.translate(null));
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        GsonDBCollection<Order> orders = new GsonDBCollection<Order>(mock(DBCollection.class), Order.class,
+            GsonAdapters.configure(new GsonBuilder()).create());
+        orders.setAliases(FieldAliases.builder().register(Order.class).build());
+
+        Order order = new Order();
+        order.customerName = "John";
+        order.shippingAddress = new Address();
+        order.shippingAddress.city = "Paris";
+        LineItem item = new LineItem();
+        item.sku = "a";
+        item.quantity = 2;
+        item.price = 1.5;
+        order.lineItems = Arrays.asList(item);
+
+        byte[] bytes = GsonDBCollectionTest.encode(orders, order);
+        DBObject stored = new DefaultDBDecoder().decode(bytes, (DBCollection) null);
+        assertEquals(stored.keySet().toString(), "[cn, sa, li]");
+        assertEquals(((DBObject) stored.get("sa")).get("c"), "Paris");
+
+        Order decoded = GsonDBCollectionTest.decode(orders, bytes);
+        assertEquals(decoded.customerName, "John");
+        assertEquals(decoded.shippingAddress.city, "Paris");
+        assertEquals(decoded.lineItems.get(0).quantity, 2);
+        assertEquals(decoded.lineItems.get(0).price, 1.5);
+
+        assertEquals(orders.stored(new BasicDBObject("customerName", "John")), new BasicDBObject("cn", "John"));
+        orders.setAliases(null);
+        assertEquals(orders.stored(new BasicDBObject("customerName", "John")), new BasicDBObject("customerName", "John"));
+    }
+
+    @Test
+    public void testEncodedObjects() throws Exception {
+        GsonDBCollection<Place> places = new GsonDBCollection<Place>(mock(DBCollection.class), Place.class,
+            GsonAdapters.configure(new GsonBuilder()).registerTypeAdapterFactory(new GsonDBObject.AdapterFactory()).create());
+        places.setAliases(FieldAliases.builder().register(Place.class).build());
+        Place place = new Place();
+        place.id = 1;
+        place.streetName = "Main";
+
+        // replacement document
+        byte[] bytes = GsonDBCollectionTest.encode(places, places.stored(place));
+        assertEquals(new DefaultDBDecoder().decode(bytes, (DBCollection) null).keySet().toString(), "[_id, sn]");
+        assertEquals(GsonDBCollectionTest.decode(places, bytes).streetName, "Main");
+
+        // $set value is stored with the same names as translated query uses
+        bytes = GsonDBCollectionTest.encode(places, places.stored(set("place", place)));
+        DBObject stored = new DefaultDBDecoder().decode(bytes, (DBCollection) null);
+        assertEquals(((DBObject) ((DBObject) stored.get("$set")).get("place")).get("sn"), "Main");
+        assertEquals(places.stored(new BasicDBObject("place.streetName", "Main")), new BasicDBObject("place.sn", "Main"));
+    }
+
+    public static class Order {
+        String customerName;
+        Address shippingAddress;
+        List<LineItem> lineItems;
+    }
+
+    public static class Address {
+        String city;
+    }
+
+    public static class LineItem {
+        String sku;
+        int quantity;
+        @SerializedName("unitPrice")
+        double price;
+    }
+
+    public static class Clash {
+        String cn;
+        int q;
+    }
+
+    public static class Place extends GsonDBObject {
+        @Id
+        public int id;
+        public String streetName;
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright (c) 2008-2015 Maxifier Ltd. All Rights Reserved.
+ */
+package com.maxifier.mongo;
+
+import com.google.gson.GsonBuilder;
+import com.mongodb.DBCollection;
+import org.testng.annotations.Test;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import static org.mockito.Mockito.mock;
+
+/**
+ * @author Konstantin Lyamshin (2015-02-23 17:05)
+ */
+public class FieldProfilerTest extends org.testng.Assert {
+    @Test
+    public void testFieldPath() throws Exception {
+        String[] path = {".", "items", "#", "12", ".", "attributes", ".", "value"};
+        assertEquals(FieldProfiler.fieldPath(path, 7, ".", "#"), "items[].attributes.value");
+        assertEquals(FieldProfiler.fieldPath(path, 3, ".", "#"), "items[]");
+        assertEquals(FieldProfiler.fieldPath(path, 1, ".", "#"), "items");
+        assertEquals(FieldProfiler.fieldPath(path, 0, ".", "#"), "");
+    }
+
+    @Test
+    public void testProfile() throws Exception {
+        GsonDBCollection<Order> orders = new GsonDBCollection<Order>(mock(DBCollection.class), Order.class,
+            GsonAdapters.configure(new GsonBuilder()).create());
+        FieldProfiler profiler = new FieldProfiler(1);
+        orders.setProfiler(profiler);
+
+        Order order = new Order();
+        order.note = "note";
+        order.items = Arrays.asList(new Item("a", "red"), new Item("b", "green"), new Item("c", "blue"));
+        byte[] bytes = GsonDBCollectionTest.encode(orders, order);
+        Order decoded = GsonDBCollectionTest.decode(orders, bytes);
+        assertEquals(decoded.items.size(), 3);
+
+        Map<String, FieldProfiler.FieldStats> fields = profiler.getFields(Order.class);
+        assertEquals(fields.keySet(), new HashSet<String>(Arrays.asList("", "note", "items", "items[]",
+            "items[].sku", "items[].attributes", "items[].attributes.color")));
+        assertEquals(fields.get("").getBytes(), bytes.length);
+        assertEquals(fields.get("note").getBytes(), 1 + 5 + 4 + 5); // type, name, length, value
+        assertEquals(fields.get("items[]").getEncoded(), 3);
+        assertEquals(fields.get("items[]").getDecoded(), 3);
+        assertEquals(fields.get("items[].sku").getBytes(), 3 * (1 + 4 + 4 + 2));
+        assertEquals(fields.get("").getDecoded(), 1);
+        assertTrue(fields.get("").getNanos() >= fields.get("items").getNanos());
+        assertTrue(fields.get("items").getBytes() > fields.get("items[].attributes").getBytes());
+
+        String report = profiler.report(3);
+        assertTrue(report.startsWith(Order.class.getName() + ": 1 encoded, avg " + bytes.length + " bytes"), report);
+        assertTrue(report.contains("items[]\n"), report);
+        assertFalse(report.contains("items[].attributes.color"), report); // out of limit
+
+        orders.setProfiler(null);
+        profiler.clear();
+        orders.encode(new GsonWrapper(order));
+        assertTrue(profiler.getFields(Order.class).isEmpty());
+    }
+
+    public static class Order {
+        String note;
+        List<Item> items;
+    }
+
+    public static class Item {
+        String sku;
+        Attributes attributes;
+
+        public Item(String sku, String color) {
+            this.sku = sku;
+            this.attributes = new Attributes();
+            this.attributes.color = color;
+        }
+    }
+
+    public static class Attributes {
+        String color;
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright (c) 2008-2015 Maxifier Ltd. All Rights Reserved.
+ */
+package com.maxifier.mongo;
+
+import com.google.gson.Gson;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * @author Konstantin Lyamshin (2015-02-23 12:15)
+ */
+public class FlightRecorderEventsTest extends org.testng.Assert {
+    @Test
+    public void testEvents() throws Exception {
+        DBCollection collection = mock(DBCollection.class);
+        when(collection.getName()).thenReturn("items");
+        GsonDBCollection<GsonDBCollectionTest.TestItem> items = new GsonDBCollection<GsonDBCollectionTest.TestItem>(
+            collection, GsonDBCollectionTest.TestItem.class, new Gson());
+        GsonDBCollectionTest.TestItem item = new GsonDBCollectionTest.TestItem();
+        item.n = 42;
+        byte[] bytes;
+
+        File file = File.createTempFile("bson-bridge", ".jfr");
+        try {
+            Recording recording = new Recording();
+            try {
+                recording.enable("com.maxifier.mongo.DocumentEncoded");
+                recording.enable("com.maxifier.mongo.DocumentDecoded");
+                recording.enable("com.maxifier.mongo.CacheLookup");
+                recording.start();
+
+                bytes = items.encode(new GsonWrapper(item)).getBytes();
+                new DBObjectDecoder().decode(bytes, collection);
+                FlightRecorderEvents.cacheLookup("items", "id", true);
+
+                recording.stop();
+                recording.dump(file.toPath());
+            } finally {
+                recording.close();
+            }
+
+            Map<String, RecordedEvent> events = new HashMap<String, RecordedEvent>();
+            List<RecordedEvent> recorded = RecordingFile.readAllEvents(file.toPath());
+            for (RecordedEvent event : recorded) {
+                events.put(event.getEventType().getName(), event);
+            }
+            RecordedEvent encoded = events.get("com.maxifier.mongo.DocumentEncoded");
+            assertNotNull(encoded);
+            assertEquals(encoded.getString("collection"), "items");
+            assertEquals(encoded.getClass("documentClass").getName(), GsonDBCollectionTest.TestItem.class.getName());
+            assertEquals(encoded.getInt("bytes"), bytes.length);
+            assertFalse(encoded.getDuration().isNegative());
+            assertFalse(encoded.hasField("elapsed"), "Duration should be recorded by begin() and commit()");
+            RecordedEvent decoded = events.get("com.maxifier.mongo.DocumentDecoded");
+            assertNotNull(decoded);
+            assertEquals(decoded.getInt("bytes"), bytes.length);
+            assertEquals(decoded.getClass("documentClass").getName(), BasicDBObject.class.getName());
+            assertTrue(events.get("com.maxifier.mongo.CacheLookup").getBoolean("hit"));
+        } finally {
+            assertTrue(file.delete());
+        }
+    }
+
+    @Test
+    public void testDisabled() throws Exception {
+        assertNull(FlightRecorderEvents.beginCursorBatch());
+        assertNull(FlightRecorderEvents.beginEncoded());
+        FlightRecorderEvents.encoded(null, "items", BasicDBObject.class, 1); // no recording
+        FlightRecorderEvents.cacheLookup("items", "id", true); // disabled type
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright (c) 2008-2015 Maxifier Ltd. All Rights Reserved.
+ */
+package com.maxifier.mongo;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.gson.Gson;
+import com.mongodb.*;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * @author Konstantin Lyamshin (2015-02-16 16:40)
+ */
+public class GroupCommitWriterTest extends org.testng.Assert {
+    private ScheduledExecutorService executor;
+    private final AtomicInteger inserted = new AtomicInteger();
+    private final AtomicInteger executed = new AtomicInteger();
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        executor = new ScheduledThreadPoolExecutor(1); // mocks are called from one thread
+        inserted.set(0);
+        executed.set(0);
+    }
+
+    @AfterMethod
+    public void tearDown() throws Exception {
+        executor.shutdown();
+    }
+
+    private GsonDBCollection<String> collection(final BulkWriteResult result, final RuntimeException failure) {
+        DBCollection dbc = mock(DBCollection.class);
+        when(dbc.initializeUnorderedBulkOperation()).thenAnswer(new Answer<BulkWriteOperation>() {
+            @Override
+            public BulkWriteOperation answer(InvocationOnMock invocation) throws Throwable {
+                BulkWriteRequestBuilder request = mock(BulkWriteRequestBuilder.class);
+                when(request.upsert()).thenReturn(mock(BulkUpdateRequestBuilder.class));
+                BulkWriteOperation op = mock(BulkWriteOperation.class);
+                when(op.find(any(DBObject.class))).thenReturn(request);
+                when(op.execute(any(WriteConcern.class))).thenAnswer(new Answer<BulkWriteResult>() {
+                    @Override
+                    public BulkWriteResult answer(InvocationOnMock invocation) throws Throwable {
+                        executed.incrementAndGet();
+                        if (failure != null) {
+                            throw failure;
+                        }
+                        return result;
+                    }
+                });
+                return op;
+            }
+        });
+        return new GsonDBCollection<String>(dbc, String.class, new Gson());
+    }
+
+    private GsonDBCollection<String> countingCollection() {
+        DBCollection dbc = mock(DBCollection.class);
+        final BulkWriteResult result = mock(BulkWriteResult.class);
+        when(dbc.initializeUnorderedBulkOperation()).thenAnswer(new Answer<BulkWriteOperation>() {
+            @Override
+            public BulkWriteOperation answer(InvocationOnMock invocation) throws Throwable {
+                final AtomicInteger size = new AtomicInteger();
+                BulkWriteOperation op = mock(BulkWriteOperation.class, new Answer<Object>() {
+                    @Override
+                    public Object answer(InvocationOnMock invocation) throws Throwable {
+                        String method = invocation.getMethod().getName();
+                        if (method.equals("insert")) {
+                            size.incrementAndGet();
+                        } else if (method.equals("execute")) {
+                            assertTrue(size.get() <= 100, "Batch is too big " + size.get());
+                            inserted.addAndGet(size.get());
+                            executed.incrementAndGet();
+                            return result;
+                        }
+                        return null;
+                    }
+                });
+                return op;
+            }
+        });
+        return new GsonDBCollection<String>(dbc, String.class, new Gson());
+    }
+
+    @Test
+    public void testConcurrentInserts() throws Exception {
+        final GroupCommitWriter<String> writer = new GroupCommitWriter<String>(
+            countingCollection(), executor, 100, 1, TimeUnit.HOURS, WriteConcern.ACKNOWLEDGED);
+        final List<ListenableFuture<Void>> futures = Collections.synchronizedList(new ArrayList<ListenableFuture<Void>>());
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < 4; t++) {
+            threads.add(new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 250; i++) {
+                        futures.add(writer.insert("doc" + i));
+                    }
+                }
+            });
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        writer.close();
+
+        for (ListenableFuture<Void> future : futures) {
+            assertNull(future.get(10, TimeUnit.SECONDS));
+        }
+        assertEquals(inserted.get(), 1000);
+        assertEquals(executed.get(), 10);
+
+        try {
+            writer.insert("closed");
+            fail();
+        } catch (IllegalStateException ignored) {
+        }
+    }
+
+    @Test
+    public void testDeadline() throws Exception {
+        GroupCommitWriter<String> writer = new GroupCommitWriter<String>(
+            countingCollection(), executor, 100, 10, TimeUnit.MILLISECONDS, WriteConcern.ACKNOWLEDGED);
+        ListenableFuture<Void> future = writer.insert("doc");
+        assertNull(future.get(10, TimeUnit.SECONDS));
+        assertEquals(inserted.get(), 1);
+    }
+
+    @Test
+    public void testErrors() throws Exception {
+        BulkWriteResult result = mock(BulkWriteResult.class);
+        when(result.isAcknowledged()).thenReturn(true);
+        when(result.getUpserts()).thenReturn(Arrays.asList(new BulkWriteUpsert(2, "upserted")));
+        BulkWriteException failure = mock(BulkWriteException.class);
+        when(failure.getWriteResult()).thenReturn(result);
+        when(failure.getWriteErrors()).thenReturn(Arrays.asList(new BulkWriteError(11000, "duplicate key", new BasicDBObject(), 1)));
+
+        GroupCommitWriter<String> writer = new GroupCommitWriter<String>(
+            collection(result, failure), executor, 3, 1, TimeUnit.HOURS, WriteConcern.ACKNOWLEDGED);
+        ListenableFuture<Void> f0 = writer.updateOne(new BasicDBObject("_id", 0), new BasicDBObject("$set", new BasicDBObject("a", 1)));
+        ListenableFuture<Void> f1 = writer.updateOne(new BasicDBObject("_id", 1), new BasicDBObject("$set", new BasicDBObject("a", 1)));
+        ListenableFuture<Object> f2 = writer.upsertOne(new BasicDBObject("_id", 2), new BasicDBObject("$set", new BasicDBObject("a", 1)));
+
+        assertNull(f0.get(10, TimeUnit.SECONDS));
+        assertEquals(f2.get(10, TimeUnit.SECONDS), "upserted");
+        try {
+            f1.get(10, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertEquals(((MongoException) e.getCause()).getCode(), 11000);
+        }
+        assertEquals(executed.get(), 1);
+    }
+}
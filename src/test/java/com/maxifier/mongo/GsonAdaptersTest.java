@@ -3,11 +3,16 @@
  */
 package com.maxifier.mongo;
 
+import com.google.common.collect.Lists;
 import com.google.gson.*;
+import com.google.gson.annotations.JsonAdapter;
 import com.google.gson.internal.bind.TypeAdapters;
 import com.google.gson.reflect.TypeToken;
 import com.google.gson.stream.JsonReader;
 import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.DefaultDBDecoder;
 import org.bson.types.*;
 import org.testng.annotations.BeforeClass;
 import org.testng.annotations.Test;
@@ -17,10 +22,13 @@ import java.io.Writer;
 import java.lang.reflect.ParameterizedType;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
+import java.time.Instant;
+import java.time.LocalDateTime;
 import java.util.*;
 import java.util.regex.Pattern;
 
 import static com.maxifier.mongo.GsonAdapters.*;
+import static org.mockito.Mockito.mock;
 
 /**
  * @author Konstantin Lyamshin (2014-12-08 21:48)
@@ -111,6 +119,95 @@ public class GsonAdaptersTest extends org.testng.Assert {
         assertEquals(gson.fromJson(treeN, Date.class), dt);
     }
 
+    @Test
+    public void testDateCodec() throws Exception {
+        DateFormat format = new SimpleDateFormat(DATE_FORMAT, Locale.US);
+        DateCodec codec = DateCodec.get();
+        JsonReader in = new JsonReader(new StringReader("{}"));
+
+        // canonical values should be the same as SimpleDateFormat ones
+        Random random = new Random(42);
+        long[] millis = new long[1000];
+        for (int i = 0; i < millis.length; i++) {
+            millis[i] = (long) ((random.nextDouble() - 0.5) * 2 * 300000000000000L); // about +/-9500 years
+        }
+        millis[0] = 0;
+        millis[1] = -1;
+        millis[2] = Long.MIN_VALUE / 1000;
+        millis[3] = Long.MAX_VALUE / 1000;
+        millis[4] = -12219292800000L; // Gregorian cutover
+        for (long m : millis) {
+            String s = format.format(new Date(m));
+            assertEquals(codec.format(m), s, "millis " + m);
+            assertEquals(codec.parse(s, in), format.parse(s).getTime(), "date " + s);
+        }
+
+        // non canonical values should be parsed leniently
+        String[] values = {
+            "2014-12-09T11:30:17.028-0000",
+            "2014-1-9T1:3:7.28+0300",
+            "2014-02-29T11:30:17.028+0300",
+            "2014-13-40T25:61:61.999-2359",
+            "12014-12-09T11:30:17.028+0300",
+            "0014-12-09T11:30:17.028+0300",
+        };
+        for (String s : values) {
+            assertEquals(codec.parse(s, in), format.parse(s).getTime(), "date " + s);
+        }
+
+        // invalid values should be rejected
+        for (String s : new String[] {"2014-12-09 11:30:17.028+0300", "2014-12-09T11:30:17.028+03xx"}) {
+            try {
+                codec.parse(s, in);
+                fail("Invalid value accepted " + s);
+            } catch (JsonSyntaxException ignored) {
+            }
+        }
+    }
+
+    @Test
+    public void testInstant() throws Exception {
+        TypeAdapter<Instant> adpt = INSTANT_ADAPTER;
+        Instant instant = Instant.ofEpochMilli(1418113817028L);
+
+        // serializing
+        JsonObject tree = adpt.toJsonTree(instant).getAsJsonObject();
+        assertEquals(tree.entrySet().size(), 1);
+        assertEquals(tree.getAsJsonPrimitive("$date").getAsString(), DateCodec.get().format(instant.toEpochMilli()));
+        assertTrue(adpt.toJsonTree(null).isJsonNull());
+
+        // deserializing
+        assertEquals(adpt.fromJsonTree(tree), instant);
+        assertEquals(adpt.fromJsonTree(JsonNull.INSTANCE), null);
+
+        // test gson configuration
+        assertEquals(gson.toJsonTree(instant, Instant.class), tree);
+        assertEquals(gson.fromJson(tree, Instant.class), instant);
+    }
+
+    @Test
+    public void testLocalDateTime() throws Exception {
+        TypeAdapter<LocalDateTime> adpt = LOCAL_DATE_TIME_ADAPTER;
+        LocalDateTime dt = LocalDateTime.of(2014, 12, 9, 11, 30, 17, 28000000);
+
+        // serializing (stored as UTC time)
+        GsonBuffer buffer = new GsonBuffer();
+        adpt.write(buffer.writer(), dt);
+        JsonObject treeN = new JsonParser().parse(buffer.reader()).getAsJsonObject();
+        assertEquals(treeN.getAsJsonPrimitive("$date").getAsLong(), 1418124617028L);
+        JsonObject treeS = adpt.toJsonTree(dt).getAsJsonObject();
+        assertTrue(adpt.toJsonTree(null).isJsonNull());
+
+        // deserializing
+        assertEquals(adpt.fromJsonTree(treeN), dt);
+        assertEquals(adpt.fromJsonTree(treeS), dt);
+        assertEquals(adpt.fromJsonTree(JsonNull.INSTANCE), null);
+
+        // test gson configuration
+        assertEquals(gson.toJsonTree(dt, LocalDateTime.class), treeS);
+        assertEquals(gson.fromJson(treeS, LocalDateTime.class), dt);
+    }
+
     @Test
     public void testUUID() throws Exception {
         TypeAdapter<UUID> adpt = UUID_ADAPTER;
@@ -213,6 +310,45 @@ public class GsonAdaptersTest extends org.testng.Assert {
         assertEquals(gson.fromJson(tree, byte[].class), buf);
     }
 
+    @Test
+    public void testBase64() throws Exception {
+        Random random = new Random(42);
+        for (int length = 0; length < 10000; length += 1 + length / 8) {
+            byte[] data = new byte[length];
+            random.nextBytes(data);
+            String expected = java.util.Base64.getEncoder().encodeToString(data);
+
+            assertEquals(Base64Codec.encode(data), expected);
+
+            assertEquals(Base64Codec.decode(expected), data);
+            assertEquals(Base64Codec.decode(expected.replace("=", "")), data); // padding is optional
+        }
+
+        for (String s : new String[]{"Z", "Z3Nvb=4=", "Z3N\b24=", "Z3Nvb\u0444=="}) {
+            try {
+                Base64Codec.decode(s);
+                fail("Invalid value accepted " + s);
+            } catch (IllegalArgumentException ignored) {
+            }
+        }
+    }
+
+    @Test
+    public void testBinaryBuffered() throws Exception {
+        byte[] buf = "gson2mongo".getBytes();
+
+        // binary data passed internally as is
+        GsonBuffer buffer = new GsonBuffer();
+        BYTES_ADAPTER.write(buffer.writer(), buf);
+        assertEquals(buffer.toString(), "{$binary: <BINARY>, $type: 0}");
+        assertSame(BYTES_ADAPTER.read(buffer.reader()), buf);
+
+        // but could be read as regular string
+        BINARY_ADAPTER.write(buffer.writer(), new Binary(buf));
+        JsonObject tree = new JsonParser().parse(buffer.reader()).getAsJsonObject();
+        assertEquals(tree.getAsJsonPrimitive("$binary").getAsString(), "Z3NvbjJtb25nbw==");
+    }
+
     @Test
     public void testPattern() throws Exception {
         TypeAdapter<Pattern> adpt = REGEX_ADAPTER;
@@ -407,4 +543,206 @@ public class GsonAdaptersTest extends org.testng.Assert {
         assertEquals(field2, null);
         assertEquals(field3, -7.7);
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testFieldMatcherLarge() throws Exception {
+        String[] fields = new String[100];
+        for (int i = 0; i < fields.length; i++) {
+            fields[i] = (i % 2 == 0? "field": "\u043f\u043e\u043b\u0435") + i;
+        }
+        FieldMatcher m = new FieldMatcher(fields);
+        for (int i = 0; i < fields.length; i++) {
+            assertEquals(m.match(fields[i]), i);
+            assertEquals(m.match(new String(fields[i])), i);
+            byte[] bytes = ("xx" + fields[i] + "xx").getBytes("UTF-8");
+            assertEquals(m.match(bytes, 2, bytes.length - 4), i);
+        }
+        for (String field : new String[]{"", "field", "field100", "\u043f\u043e\u043b\u04350", "Field0"}) {
+            assertEquals(m.match(field), -1);
+            byte[] bytes = field.getBytes("UTF-8");
+            assertEquals(m.match(bytes, 0, bytes.length), -1);
+        }
+
+        assertEquals(new FieldMatcher().match("field"), -1);
+        try {
+            new FieldMatcher("field", "field");
+            fail("Duplicates accepted");
+        } catch (IllegalArgumentException ignored) {
+        }
+    }
+
+    @Test
+    public void testLzCodec() throws Exception {
+        Random random = new Random(42);
+        byte[] noise = new byte[3000];
+        random.nextBytes(noise);
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 500; i++) {
+            sb.append("{\"name\": \"item").append(random.nextInt(100)).append("\", \"tags\": [\"a\", \"b\"]}, ");
+        }
+        byte[] text = sb.toString().getBytes("UTF-8");
+        byte[] run = new byte[70000]; // long matches and overlapped copy
+
+        for (byte[] data : new byte[][]{new byte[0], {1, 2, 3}, noise, text, run}) {
+            byte[] compressed = LzCodec.compress(data, 2);
+            assertEquals(LzCodec.decompress(compressed, 2), data);
+        }
+        assertTrue(LzCodec.compress(text, 0).length * 5 < text.length);
+        assertTrue(LzCodec.compress(run, 0).length < 300);
+
+        byte[] compressed = LzCodec.compress(text, 0);
+        for (int length : new int[]{1, 10, compressed.length - 1}) {
+            try {
+                LzCodec.decompress(Arrays.copyOf(compressed, length), 0);
+                fail("Corrupted data accepted");
+            } catch (IllegalArgumentException ignored) {
+            }
+        }
+    }
+
+    @Test
+    public void testCompressed() throws Exception {
+        GsonDBCollection<Blobs> blobs = new GsonDBCollection<Blobs>(mock(DBCollection.class), Blobs.class, gson);
+
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            sb.append("line ").append(i % 10).append(" of verbose text\n");
+        }
+        Blobs value = new Blobs();
+        value.small = "small";
+        value.text = sb.toString();
+        value.bytes = value.text.getBytes("UTF-8");
+        value.report = Compressed.of(new Report(value.text, 42));
+
+        byte[] bytes = GsonDBCollectionTest.encode(blobs, value);
+        assertTrue(bytes.length * 2 < value.text.length());
+        DBObject stored = new DefaultDBDecoder().decode(bytes, (DBCollection) null);
+        assertEquals(stored.get("small"), "small"); // below threshold
+        assertEquals(((Binary) stored.get("text")).getType(), B_COMPRESSED);
+        assertEquals(((Binary) stored.get("bytes")).getType(), B_COMPRESSED);
+        assertEquals(((Binary) stored.get("report")).getType(), B_COMPRESSED);
+
+        Blobs decoded = GsonDBCollectionTest.decode(blobs, bytes);
+        assertEquals(decoded.small, "small");
+        assertEquals(decoded.text, value.text);
+        assertEquals(decoded.bytes, value.bytes);
+        assertFalse(decoded.report.isLoaded());
+        assertEquals(GsonDBCollectionTest.encode(blobs, decoded), bytes); // written back as is
+        assertEquals(decoded.report.get().text, value.text);
+        assertEquals(decoded.report.get().count, 42);
+        assertTrue(decoded.report.isLoaded());
+        assertEquals(decoded.report, value.report);
+
+        // uncompressed values are read too
+        byte[] plain = GsonDBCollectionTest.encode(blobs, new BasicDBObject("text", "plain")
+            .append("bytes", new byte[]{1, 2})
+            .append("report", new BasicDBObject("text", "plain").append("count", 1)));
+        decoded = GsonDBCollectionTest.decode(blobs, plain);
+        assertEquals(decoded.text, "plain");
+        assertEquals(decoded.bytes, new byte[]{1, 2});
+        assertEquals(decoded.report.get().text, "plain");
+        assertNull(decoded.small);
+
+        // incompressible value is stored as is
+        Random random = new Random(42);
+        value.bytes = new byte[2000];
+        random.nextBytes(value.bytes);
+        stored = new DefaultDBDecoder().decode(GsonDBCollectionTest.encode(blobs, value), (DBCollection) null);
+        assertEquals(stored.get("bytes"), value.bytes);
+    }
+
+    @Test
+    public void testStreamedArray() throws Exception {
+        GsonDBCollection<Track> tracks = new GsonDBCollection<Track>(mock(DBCollection.class), Track.class, gson);
+        tracks.setAliases(FieldAliases.builder().register(Track.class).build());
+
+        List<Point> points = new ArrayList<Point>();
+        for (int i = 0; i < 1000; i++) {
+            points.add(i == 500? null: new Point(i, -i));
+        }
+        Track track = new Track();
+        track.name = "track";
+        track.points = StreamedArray.of(points);
+        track.count = points.size();
+
+        byte[] bytes = GsonDBCollectionTest.encode(tracks, track);
+        DBObject stored = new DefaultDBDecoder().decode(bytes, (DBCollection) null);
+        assertEquals(((List<?>) stored.get("p")).size(), 1000);
+        assertEquals(((DBObject) ((List<?>) stored.get("p")).get(1)).get("x"), 1L);
+
+        Track decoded = GsonDBCollectionTest.decode(tracks, bytes);
+        assertEquals(decoded.name, "track");
+        assertEquals(decoded.count, 1000); // read after streamed array
+        assertTrue(decoded.points.getStoredSize() > 0);
+        for (int pass = 0; pass < 2; pass++) {
+            Iterator<Point> iterator = decoded.points.iterator();
+            for (Point point : points) {
+                assertEquals(iterator.next(), point);
+            }
+            assertFalse(iterator.hasNext());
+        }
+        assertEquals(GsonDBCollectionTest.encode(tracks, decoded), bytes);
+
+        // JSON falls back to list
+        Track json = gson.fromJson("{name: 'json', points: [{x: {$numberLong: 1}, y: {$numberLong: 2}}, null]}", Track.class);
+        assertEquals(json.points.getStoredSize(), 0);
+        assertEquals(Lists.newArrayList(json.points), Arrays.asList(new Point(1, 2), null));
+        assertTrue(gson.toJson(json).contains("\"points\":[{\"x\":{\"$numberLong\":1},\"y\":{\"$numberLong\":2}},null]"));
+    }
+
+    public static class Track {
+        String name;
+        StreamedArray<Point> points;
+        int count;
+    }
+
+    public static class Point {
+        long x;
+        long y;
+
+        public Point(long x, long y) {
+            this.x = x;
+            this.y = y;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Point && x == ((Point) o).x && y == ((Point) o).y;
+        }
+
+        @Override
+        public int hashCode() {
+            return (int) (x * 31 + y);
+        }
+    }
+
+    public static class Blobs {
+        @JsonAdapter(CompressedAdapterFactory.class)
+        String small;
+        @JsonAdapter(CompressedAdapterFactory.class)
+        String text;
+        @JsonAdapter(CompressedAdapterFactory.class)
+        byte[] bytes;
+        Compressed<Report> report;
+    }
+
+    public static class Report {
+        String text;
+        int count;
+
+        public Report(String text, int count) {
+            this.text = text;
+            this.count = count;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Report && text.equals(((Report) o).text) && count == ((Report) o).count;
+        }
+
+        @Override
+        public int hashCode() {
+            return text.hashCode() * 31 + count;
+        }
+    }
+}
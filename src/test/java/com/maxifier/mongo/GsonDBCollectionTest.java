@@ -5,16 +5,54 @@ package com.maxifier.mongo;
 
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
+import com.google.gson.TypeAdapter;
+import com.google.gson.annotations.SerializedName;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
 import com.mongodb.*;
 import org.bson.io.BasicOutputBuffer;
 import org.bson.io.OutputBuffer;
+import org.bson.types.ObjectId;
+import org.mockito.ArgumentCaptor;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.testng.annotations.AfterClass;
 import org.testng.annotations.BeforeClass;
 import org.testng.annotations.DataProvider;
 import org.testng.annotations.Test;
 
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Mockito.RETURNS_DEFAULTS;
+import static org.mockito.Mockito.RETURNS_MOCKS;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
 
 /**
  * @author Konstantin Lyamshin (2014-12-29 17:39)
@@ -22,6 +60,7 @@ import static org.mockito.Mockito.mock;
 @SuppressWarnings("AssertEqualsBetweenInconvertibleTypesTestNG")
 public class GsonDBCollectionTest extends org.testng.Assert {
     private GsonDBCollection<TestGsonVO> dbc;
+    private ExecutorService executor;
 
     @BeforeClass
     public void setUp() throws Exception {
@@ -30,6 +69,12 @@ public class GsonDBCollectionTest extends org.testng.Assert {
             .registerTypeAdapter(TestGsonVO.TestGsonSerialized.class, new TestGsonVO.TestGsonSerializer())
             .create();
         dbc = new GsonDBCollection<TestGsonVO>(mock(DBCollection.class), TestGsonVO.class, gson);
+        executor = Executors.newCachedThreadPool();
+    }
+
+    @AfterClass
+    public void tearDown() throws Exception {
+        executor.shutdown();
     }
 
     @DataProvider
@@ -47,10 +92,7 @@ public class GsonDBCollectionTest extends org.testng.Assert {
         DBEncoder encoder = new DefaultDBEncoder();
         encoder.writeObject(buffer, vo.toBson());
 
-        DBDecoder decoder = dbc.new GsonDBDecoder();
-        DBObject bson = decoder.decode(buffer.toByteArray(), (DBCollection) null);
-        TestGsonVO o = (TestGsonVO) ((GsonWrapper) bson).getPojo();
-        vo.assertGson(o);
+        vo.assertGson(decode(dbc, buffer.toByteArray()));
     }
 
     @Test(dataProvider = "provideVOs")
@@ -96,6 +138,772 @@ public class GsonDBCollectionTest extends org.testng.Assert {
         vo.assertBson((DBObject) o.get("$set"));
     }
 
+    @Test
+    public void testEncodeDBObjects() throws Exception {
+        DBObjectSerializerTest.TestCollection1 serializer = new DBObjectSerializerTest.TestCollection1();
+        serializer.setTfld(new Date(1424880000000L));
+        serializer.setSfld("str");
+        serializer.setIfld(7);
+        serializer.setNfld(DBObjectSerializer.NULL);
+        Map<String, Object> map = new LinkedHashMap<String, Object>();
+        map.put("b", 1L);
+        map.put("a", Arrays.asList(1.5, "x"));
+        DBObject bson = new BasicDBObject("n", ValueDBObject.gt(1))
+            .append("s", ValueDBObject.in("a", "b"))
+            .append("ser", serializer)
+            .append("gson", new GsonDBObjectTest.TestObject().init())
+            .append("map", map)
+            .append("list", new BasicDBList());
+
+        OutputBuffer expected = new BasicOutputBuffer();
+        new DefaultDBEncoder().writeObject(expected, bson);
+
+        OutputBuffer buffer = new BasicOutputBuffer();
+        dbc.new GsonDBEncoder().writeObject(buffer, bson);
+        assertBytes(buffer.toByteArray(), expected.toByteArray());
+
+        buffer = new BasicOutputBuffer();
+        dbc.new GsonDBEncoder().writeObject(buffer, ValueDBObject.set("n", 2));
+        expected = new BasicOutputBuffer();
+        new DefaultDBEncoder().writeObject(expected, ValueDBObject.set("n", 2));
+        assertBytes(buffer.toByteArray(), expected.toByteArray());
+    }
+
+    @Test
+    public void testEncodeOverriddenSerializer() throws Exception {
+        DBVariantSerializerTest.Variant variant = new DBVariantSerializerTest.Variant();
+        variant.put("name", "variant");
+        variant.put("comment", "not a declared field"); // returned by overridden keySet() and get()
+        DBObject bson = new BasicDBObject("variant", variant);
+
+        OutputBuffer expected = new BasicOutputBuffer();
+        new DefaultDBEncoder().writeObject(expected, bson);
+        OutputBuffer buffer = new BasicOutputBuffer();
+        dbc.new GsonDBEncoder().writeObject(buffer, bson);
+        assertBytes(buffer.toByteArray(), expected.toByteArray());
+    }
+
+    @Test
+    public void testPrefetch() throws Exception {
+        DBCursor cursor = mockCursor(0, 1000, -1);
+        GsonDBCollection<TestItem>.Cursor it = items(cursor).prefetch(executor, 2, 1000).iterator();
+        assertTrue(it instanceof GsonDBCollection.PrefetchCursor);
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(it.hasNext());
+            assertEquals(it.next().n, i);
+        }
+        assertFalse(it.hasNext());
+        it.close();
+        verify(cursor).close();
+    }
+
+    @Test
+    public void testPrefetchClose() throws Exception {
+        DBCursor cursor = mockCursor(0, 1000, -1);
+        GsonDBCollection<TestItem>.Cursor it = items(cursor).prefetch(executor, 1, Long.MAX_VALUE).iterator();
+        for (int i = 0; i < 5; i++) {
+            assertEquals(it.next().n, i);
+        }
+        it.close();
+        assertFalse(it.hasNext());
+        verify(cursor).close();
+    }
+
+    @Test
+    public void testPrefetchCloseWhileFetching() throws Exception {
+        final CountDownLatch blocked = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger fetching = new AtomicInteger();
+        final AtomicInteger closedWhileFetching = new AtomicInteger();
+        final FakeCursor fake = new FakeCursor(0, 1000, -1);
+        DBCursor cursor = mock(DBCursor.class, new Answer<Object>() {
+            private int count;
+
+            @Override
+            public Object answer(InvocationOnMock invocation) throws Throwable {
+                String method = invocation.getMethod().getName();
+                if (method.equals("next")) {
+                    fetching.incrementAndGet();
+                    try {
+                        if (++count == 150) { // in the middle of second chunk
+                            blocked.countDown();
+                            release.await();
+                        }
+                        return fake.answer(invocation);
+                    } finally {
+                        fetching.decrementAndGet();
+                    }
+                } else if (method.equals("close")) {
+                    closedWhileFetching.set(fetching.get());
+                }
+                return fake.answer(invocation);
+            }
+        });
+        final GsonDBCollection<TestItem>.Cursor it = items(cursor).prefetch(executor, 1, Long.MAX_VALUE).iterator();
+        assertEquals(it.next().n, 0);
+        assertTrue(blocked.await(5, TimeUnit.SECONDS));
+
+        Future<?> closing = executor.submit(new Runnable() {
+            @Override
+            public void run() {
+                it.close();
+            }
+        });
+        try {
+            closing.get(200, TimeUnit.MILLISECONDS);
+            fail("Close should wait for running fetcher");
+        } catch (TimeoutException ignored) {
+        }
+        release.countDown();
+        closing.get(5, TimeUnit.SECONDS);
+        verify(cursor).close();
+        assertEquals(closedWhileFetching.get(), 0);
+        assertFalse(it.hasNext());
+    }
+
+    @Test
+    public void testPrefetchFailure() throws Exception {
+        DBCursor cursor = mockCursor(0, 1000, 150);
+        GsonDBCollection<TestItem>.Cursor it = items(cursor).prefetch(executor, 4, Long.MAX_VALUE).iterator();
+        int count = 0;
+        try {
+            while (it.hasNext()) {
+                assertEquals(it.next().n, count++);
+            }
+            fail();
+        } catch (MongoException e) {
+            assertEquals(e.getMessage(), "Test failure");
+            assertEquals(count, 100); // first chunk only
+        } finally {
+            it.close();
+        }
+    }
+
+    @Test
+    public void testSplitObjectIds() throws Exception {
+        ObjectId min = new ObjectId(new Date(1000000000000L));
+        ObjectId max = new ObjectId(new Date(1000000399000L));
+        List<Object> points = GsonDBCollection.splitObjectIds(min, max, 4);
+        assertEquals(points, Arrays.asList(
+            new ObjectId("3b9aca640000000000000000"),
+            new ObjectId("3b9acac80000000000000000"),
+            new ObjectId("3b9acb2c0000000000000000")
+        ));
+        assertEquals(((ObjectId) points.get(0)).getDate(), new Date(1000000100000L));
+        assertTrue(min.compareTo((ObjectId) points.get(0)) < 0);
+
+        // too narrow range
+        assertEquals(GsonDBCollection.splitObjectIds(min, min, 4).size(), 0);
+    }
+
+    @Test
+    public void testSplitNumbers() throws Exception {
+        assertEquals(GsonDBCollection.splitNumbers(0, 999, 4), Arrays.<Object>asList(250, 500, 750));
+        assertEquals(GsonDBCollection.splitNumbers(5, 6, 4), Arrays.<Object>asList(6));
+        assertEquals(GsonDBCollection.splitNumbers(0, 1L << 40, 2), Arrays.<Object>asList(1L << 39));
+        assertEquals(GsonDBCollection.splitNumbers(Long.MIN_VALUE, Long.MAX_VALUE, 2), Arrays.<Object>asList(0L));
+    }
+
+    @Test
+    public void testSplitVector() throws Exception {
+        DBCollection collection = mock(DBCollection.class);
+        DBCursor cursor = mock(DBCursor.class, RETURNS_MOCKS);
+        when(collection.find(any(DBObject.class), any(DBObject.class))).thenReturn(cursor);
+        when(cursor.sort(any(DBObject.class))).thenReturn(cursor);
+        when(cursor.limit(-1)).thenReturn(cursor);
+        when(cursor.hasNext()).thenReturn(true);
+        when(cursor.next()).thenReturn(new BasicDBObject("_id", "a"), new BasicDBObject("_id", "z"));
+        CommandResult stats = mock(CommandResult.class);
+        when(stats.ok()).thenReturn(true);
+        when(stats.get("size")).thenReturn(4000);
+        when(collection.getStats()).thenReturn(stats);
+        when(collection.getFullName()).thenReturn("test.items");
+        DB db = mock(DB.class);
+        when(collection.getDB()).thenReturn(db);
+        CommandResult split = mock(CommandResult.class);
+        when(split.ok()).thenReturn(true);
+        when(split.get("splitKeys")).thenReturn(Arrays.asList(new BasicDBObject("_id", "h"), new BasicDBObject("_id", "p")));
+        ArgumentCaptor<DBObject> command = ArgumentCaptor.forClass(DBObject.class);
+        when(db.command(command.capture())).thenReturn(split);
+
+        GsonDBCollection<TestItem> items = new GsonDBCollection<TestItem>(collection, TestItem.class, new Gson());
+        GsonDBCollection<TestItem>.ParallelScan scan = items.parallelScan(new BasicDBObject(), 3);
+        assertEquals(scan.getPartitions().size(), 3);
+        assertEquals(command.getValue(), new BasicDBObject("splitVector", "test.items")
+            .append("keyPattern", new BasicDBObject("_id", 1))
+            .append("min", new BasicDBObject("_id", "a"))
+            .append("max", new BasicDBObject("_id", "z"))
+            .append("maxChunkSizeBytes", 2666L)
+            .append("maxSplitPoints", 2));
+        verify(cursor, never()).skip(anyInt());
+
+        when(split.ok()).thenReturn(false); // e.g. not permitted
+        assertEquals(items.parallelScan(new BasicDBObject(), 3).getPartitions().size(), 1);
+    }
+
+    @Test
+    public void testRangeQuery() throws Exception {
+        DBObject all = new BasicDBObject();
+        DBObject query = new BasicDBObject("a", 1);
+        assertSame(GsonDBCollection.rangeQuery(query, null, null), query);
+        assertEquals(GsonDBCollection.rangeQuery(all, 1, null), new BasicDBObject("_id", new BasicDBObject("$gte", 1)));
+        assertEquals(GsonDBCollection.rangeQuery(query, 1, 5), new BasicDBObject("$and", Arrays.asList(
+            query, new BasicDBObject("_id", new BasicDBObject("$gte", 1).append("$lt", 5))
+        )));
+    }
+
+    @Test
+    public void testParallelScan() throws Exception {
+        GsonDBCollection<TestItem>.ParallelScan scan = rangeItems().parallelScan(new BasicDBObject(), Arrays.asList(250, 500, 750));
+        assertEquals(scan.getPartitions().size(), 4);
+
+        boolean[] seen = new boolean[1000];
+        GsonDBCollection<TestItem>.Cursor it = scan.iterator(executor, 4, Long.MAX_VALUE);
+        try {
+            while (it.hasNext()) {
+                int n = it.next().n;
+                assertFalse(seen[n]);
+                seen[n] = true;
+            }
+        } finally {
+            it.close();
+        }
+        for (boolean b : seen) {
+            assertTrue(b);
+        }
+
+        final AtomicInteger count = new AtomicInteger();
+        scan.forEach(executor, new GsonDBCollection.PartitionCallback<TestItem>() {
+            @Override
+            public void process(int partition, Iterator<TestItem> documents) throws Exception {
+                int n = partition * 250;
+                while (documents.hasNext()) {
+                    assertEquals(documents.next().n, n++);
+                    count.incrementAndGet();
+                }
+                assertEquals(n, partition * 250 + 250);
+            }
+        });
+        assertEquals(count.get(), 1000);
+    }
+
+    @Test
+    public void testStream() throws Exception {
+        DBCursor cursor = mockCursor(0, 1000, -1);
+        Stream<TestItem> stream = items(cursor).stream();
+        List<TestItem> items = stream.collect(Collectors.<TestItem>toList());
+        assertEquals(items.size(), 1000);
+        for (int i = 0; i < items.size(); i++) {
+            assertEquals(items.get(i).n, i);
+        }
+        stream.close();
+        verify(cursor).close();
+
+        // null documents are returned as nulls
+        assertFalse(items(mockCursor(0, 1, -1)).stream().spliterator().hasCharacteristics(Spliterator.NONNULL));
+    }
+
+    @Test
+    public void testParallelStream() throws Exception {
+        Stream<TestItem> stream = rangeItems().find(new BasicDBObject()).parallelStream();
+        assertTrue(stream.isParallel());
+        List<TestItem> items = stream.collect(Collectors.<TestItem>toList());
+        assertEquals(items.size(), 1000);
+        for (int i = 0; i < items.size(); i++) {
+            assertEquals(items.get(i).n, i); // encounter order is kept
+        }
+        stream.close();
+    }
+
+    @Test
+    public void testBulkParallel() throws Exception {
+        final List<DBObject> written = new ArrayList<DBObject>();
+        final BulkWriteRequestBuilder request = mock(BulkWriteRequestBuilder.class, new Answer<Object>() {
+            @Override
+            public Object answer(InvocationOnMock invocation) throws Throwable {
+                written.add((DBObject) invocation.getArguments()[0]);
+                return null;
+            }
+        });
+        BulkWriteOperation op = mock(BulkWriteOperation.class);
+        doAnswer(new Answer<Object>() {
+            @Override
+            public Object answer(InvocationOnMock invocation) throws Throwable {
+                written.add((DBObject) invocation.getArguments()[0]);
+                return null;
+            }
+        }).when(op).insert(any(DBObject.class));
+        when(op.find(any(DBObject.class))).thenReturn(request);
+        DBCollection collection = mock(DBCollection.class);
+        when(collection.initializeOrderedBulkOperation()).thenReturn(op);
+
+        GsonDBCollection.BulkOperation<TestItem> bulk =
+            new GsonDBCollection<TestItem>(collection, TestItem.class, new Gson()).bulk(true);
+        for (int i = 0; i < 500; i++) {
+            TestItem item = new TestItem();
+            item.n = i;
+            if (i % 5 == 0) {
+                bulk.find(new BasicDBObject("_id", i)).updateOne(new BasicDBObject("$set", new GsonWrapper(item)));
+            } else {
+                bulk.insert(item);
+            }
+        }
+        bulk.execute(executor, WriteConcern.ACKNOWLEDGED);
+        verify(op).execute(WriteConcern.ACKNOWLEDGED);
+
+        assertEquals(written.size(), 500);
+        DBDecoder decoder = new DefaultDBDecoder();
+        for (int i = 0; i < 500; i++) {
+            DBObject o = written.get(i);
+            if (i % 5 == 0) {
+                assertFalse(o instanceof RawDBObject, "Driver checks update keys before encoding");
+                for (String key : o.keySet()) {
+                    assertTrue(key.startsWith("$"), key);
+                }
+                assertEquals(((TestItem) ((GsonWrapper) o.get("$set")).getPojo()).n, i);
+            } else {
+                o = decoder.decode(((RawDBObject) o).getBytes(), (DBCollection) null);
+                assertEquals(o.get("n"), i);
+            }
+        }
+
+        OutputBuffer buffer = new BasicOutputBuffer();
+        dbc.new GsonDBEncoder().writeObject(buffer, written.get(1));
+        assertBytes(buffer.toByteArray(), ((RawDBObject) written.get(1)).getBytes());
+    }
+
+    @Test
+    public void testIdCache() throws Exception {
+        final AtomicInteger fetched = new AtomicInteger();
+        DBCollection collection = mock(DBCollection.class);
+        when(collection.find(any(DBObject.class), any(DBObject.class))).thenAnswer(new Answer<DBCursor>() {
+            @Override
+            public DBCursor answer(InvocationOnMock invocation) throws Throwable {
+                fetched.incrementAndGet();
+                int id = (Integer) ((DBObject) invocation.getArguments()[0]).get("_id");
+                return mockCursor(id, id < 100? id + 1: id, -1);
+            }
+        });
+        when(collection.initializeUnorderedBulkOperation()).thenReturn(mock(BulkWriteOperation.class, RETURNS_MOCKS));
+        GsonDBCollection<TestItem> items = new GsonDBCollection<TestItem>(collection, TestItem.class, new Gson());
+        items.setIdCache(IdCache.bySize(2, 0, TimeUnit.SECONDS));
+
+        TestItem item = items.findOne(new BasicDBObject("_id", 1));
+        assertEquals(item.n, 1);
+        item.n = -1;
+        assertEquals(items.findOne(new BasicDBObject("_id", 1)).n, 1);
+        assertNotSame(items.findOne(new BasicDBObject("_id", 1)), item);
+        assertEquals(fetched.get(), 1);
+        assertNull(items.findOne(new BasicDBObject("_id", 100)));
+        assertNull(items.findOne(new BasicDBObject("_id", 100)));
+        assertEquals(fetched.get(), 3);
+
+        items.updateOne(new BasicDBObject("_id", 1), new BasicDBObject("$inc", new BasicDBObject("n", 1)));
+        assertEquals(items.findOne(new BasicDBObject("_id", 1)).n, 1);
+        assertEquals(fetched.get(), 4);
+        items.findOne(new BasicDBObject("_id", 2));
+        items.removeAll(new BasicDBObject("n", 2));
+        assertEquals(items.getIdCache().size(), 0);
+
+        items.findOne(new BasicDBObject("_id", 1));
+        items.findOne(new BasicDBObject("_id", 2));
+        items.findOne(new BasicDBObject("_id", 3));
+        assertEquals(items.getIdCache().size(), 2);
+        assertEquals(items.getIdCache().getStats().hitCount(), 2);
+        assertEquals(items.getIdCache().getStats().evictionCount(), 1);
+
+        GsonDBCollection.BulkOperation<TestItem> bulk = items.bulk(false);
+        bulk.find(new BasicDBObject("_id", 3)).removeOne();
+        assertEquals(items.getIdCache().size(), 2); // not executed yet
+        bulk.execute();
+        assertEquals(items.getIdCache().size(), 1);
+    }
+
+    @Test
+    public void testIdOf() throws Exception {
+        assertEquals(IdCache.idOf(new BasicDBObject("_id", 1)), 1);
+        assertNull(IdCache.idOf(new BasicDBObject("_id", new BasicDBObject("$gt", 1))));
+        assertNull(IdCache.idOf(new BasicDBObject("_id", 1).append("n", 1)));
+        assertNull(IdCache.idOf(new BasicDBObject("n", 1)));
+        assertNull(IdCache.idOf(new BasicDBObject("_id", Pattern.compile("^a"))));
+
+        IdCache cache = IdCache.bySize(10, 0, TimeUnit.SECONDS);
+        cache.put("a1", new byte[0], cache.generation());
+        cache.invalidate(new BasicDBObject("_id", Pattern.compile("^a"))); // regex may match any entry
+        assertEquals(cache.size(), 0);
+    }
+
+    @Test
+    public void testQueryCache() throws Exception {
+        final AtomicInteger fetched = new AtomicInteger();
+        DBCollection collection = mock(DBCollection.class);
+        when(collection.find(any(DBObject.class), any(DBObject.class))).thenAnswer(new Answer<DBCursor>() {
+            @Override
+            public DBCursor answer(InvocationOnMock invocation) throws Throwable {
+                fetched.incrementAndGet();
+                Thread.sleep(50); // let concurrent misses meet
+                return mockCursor(0, 10, -1);
+            }
+        });
+        final GsonDBCollection<TestItem> items = new GsonDBCollection<TestItem>(collection, TestItem.class, new Gson());
+        items.setQueryCache(new QueryCache(1 << 20, 0, TimeUnit.SECONDS));
+
+        List<Future<List<TestItem>>> results = new ArrayList<Future<List<TestItem>>>();
+        for (int i = 0; i < 4; i++) {
+            results.add(executor.submit(new Callable<List<TestItem>>() {
+                @Override
+                public List<TestItem> call() throws Exception {
+                    return items.find(new BasicDBObject("n", new BasicDBObject("$lt", 10))).limit(10).cached().stream()
+                        .collect(Collectors.toList());
+                }
+            }));
+        }
+        for (Future<List<TestItem>> result : results) {
+            assertEquals(result.get().size(), 10);
+        }
+        assertEquals(fetched.get(), 1);
+        assertNotSame(results.get(0).get().get(0), results.get(1).get().get(0));
+
+        assertEquals(count(items.find(new BasicDBObject("n", new BasicDBObject("$lt", 10))).limit(10).cached()), 10);
+        assertEquals(fetched.get(), 1);
+        assertEquals(count(items.find(new BasicDBObject("n", new BasicDBObject("$lt", 10))).limit(5).cached()), 10);
+        assertEquals(fetched.get(), 2);
+        assertEquals(count(items.find(new BasicDBObject("n", new BasicDBObject("$lt", 10))).limit(10)), 10);
+        assertEquals(fetched.get(), 3);
+        assertEquals(items.getQueryCache().size(), 2);
+
+        items.insert(new TestItem());
+        assertEquals(items.getQueryCache().size(), 0);
+        assertEquals(count(items.find(new BasicDBObject("n", new BasicDBObject("$lt", 10))).limit(10).cached()), 10);
+        assertEquals(fetched.get(), 4);
+    }
+
+    @Test
+    public void testView() throws Exception {
+        final List<DBObject> projections = new ArrayList<DBObject>();
+        DBCollection collection = mock(DBCollection.class);
+        when(collection.find(any(DBObject.class), any(DBObject.class))).thenAnswer(new Answer<DBCursor>() {
+            @Override
+            public DBCursor answer(InvocationOnMock invocation) throws Throwable {
+                projections.add((DBObject) invocation.getArguments()[1]);
+                return mockCursor(0, 3, -1);
+            }
+        });
+        GsonDBCollection<TestItem> items = new GsonDBCollection<TestItem>(collection, TestItem.class, new Gson());
+        GsonDBCollection<TestView> views = items.view(TestView.class);
+        assertSame(items.view(TestView.class), views);
+        assertSame(views.view(TestItem.class), items);
+        assertSame(views.getDBCollection(), collection);
+
+        count(items.find(new BasicDBObject()));
+        assertNull(projections.get(0)); // whole documents by default
+        items.setProjection(GsonProjection.of(new Gson(), TestItem.class));
+        views.setProjection(GsonProjection.of(new Gson(), TestView.class));
+
+        TestView view = views.find(new BasicDBObject()).iterator().next();
+        assertEquals(view.id, 0);
+        assertEquals(projections.get(1), new BasicDBObject("_id", 1));
+        assertEquals(count(items.find(new BasicDBObject())), 3);
+        assertEquals(projections.get(2), new BasicDBObject("n", 1).append("_id", 0));
+        count(items.find(new BasicDBObject()).fields(new BasicDBObject()));
+        assertEquals(projections.get(3), new BasicDBObject());
+
+        views.setQueryCache(new QueryCache(1 << 20, 0, TimeUnit.SECONDS));
+        count(views.find(new BasicDBObject()).cached());
+        assertEquals(views.getQueryCache().size(), 1);
+        items.insert(new TestItem());
+        assertEquals(views.getQueryCache().size(), 0);
+    }
+
+    private static int count(Iterable<?> iterable) {
+        int count = 0;
+        for (Object ignored : iterable) {
+            count++;
+        }
+        return count;
+    }
+
+    @Test
+    public void testCodecPool() throws Exception {
+        final DBEncoder[] nested = new DBEncoder[1];
+        final ArgumentCaptor<DBEncoderFactory> encoders = ArgumentCaptor.forClass(DBEncoderFactory.class);
+        ArgumentCaptor<DBDecoderFactory> decoders = ArgumentCaptor.forClass(DBDecoderFactory.class);
+        DBCollection collection = mock(DBCollection.class);
+        Gson gson = new GsonBuilder().registerTypeAdapter(TestItem.class, new TypeAdapter<TestItem>() {
+            @Override
+            public void write(JsonWriter out, TestItem value) throws IOException {
+                nested[0] = encoders.getValue().create(); // reentrant call
+                out.beginObject().name("n").value(value.n).endObject();
+            }
+
+            @Override
+            public TestItem read(JsonReader in) throws IOException {
+                throw new UnsupportedOperationException();
+            }
+        }).create();
+        new GsonDBCollection<TestItem>(collection, TestItem.class, gson);
+        verify(collection).setDBEncoderFactory(encoders.capture());
+        verify(collection).setDBDecoderFactory(decoders.capture());
+
+        final DBEncoder encoder = encoders.getValue().create();
+        assertSame(encoders.getValue().create(), encoder);
+        assertSame(decoders.getValue().create(), decoders.getValue().create());
+        Future<DBEncoder> other = executor.submit(new Callable<DBEncoder>() {
+            @Override
+            public DBEncoder call() throws Exception {
+                return encoders.getValue().create();
+            }
+        });
+        assertNotSame(other.get(), encoder);
+
+        encoder.writeObject(new BasicOutputBuffer(), new GsonWrapper(new TestItem()));
+        assertNotNull(nested[0]);
+        assertNotSame(nested[0], encoder);
+        assertSame(encoders.getValue().create(), encoder);
+    }
+
+    @Test
+    public void testCodecPoolDeadThreads() throws Exception {
+        ArgumentCaptor<DBDecoderFactory> decoders = ArgumentCaptor.forClass(DBDecoderFactory.class);
+        DBCollection collection = mock(DBCollection.class);
+        new GsonDBCollection<TestItem>(collection, TestItem.class, new Gson());
+        verify(collection).setDBDecoderFactory(decoders.capture());
+        final DBDecoderFactory factory = decoders.getValue();
+
+        for (int i = 0; i < 100; i++) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    factory.create();
+                }
+            });
+            thread.start();
+            thread.join();
+        }
+        final DBDecoder[] reused = new DBDecoder[2];
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                reused[0] = factory.create();
+                reused[1] = factory.create();
+            }
+        });
+        thread.start();
+        thread.join();
+        assertSame(reused[0], reused[1], "Slots of dead threads should be reused");
+    }
+
+    @Test
+    public void testMetrics() throws Exception {
+        ArgumentCaptor<DBEncoderFactory> encoders = ArgumentCaptor.forClass(DBEncoderFactory.class);
+        DBCollection collection = mock(DBCollection.class);
+        when(collection.getName()).thenReturn("items");
+        when(collection.find(any(DBObject.class), any(DBObject.class))).thenAnswer(new Answer<DBCursor>() {
+            @Override
+            public DBCursor answer(InvocationOnMock invocation) throws Throwable {
+                return mockCursor(0, 3, -1);
+            }
+        });
+        GsonDBCollection<TestItem> items = new GsonDBCollection<TestItem>(collection, TestItem.class, new Gson());
+        verify(collection).setDBEncoderFactory(encoders.capture());
+        InMemoryMetrics metrics = new InMemoryMetrics();
+        items.view(TestView.class).setMetrics(metrics);
+        assertSame(items.getMetrics(), metrics);
+
+        GsonDBCollection<TestItem>.Cursor cursor = items.find(new BasicDBObject()).iterator();
+        assertEquals(count(new Iterable<TestItem>() {
+            @Override
+            public Iterator<TestItem> iterator() {
+                return cursor;
+            }
+        }), 3);
+        cursor.close();
+        cursor.close();
+        items.findOne(new BasicDBObject("n", 1));
+        items.insert(new TestItem());
+        OutputBuffer buffer = new BasicOutputBuffer();
+        int size = encoders.getValue().create().writeObject(buffer, new GsonWrapper(new TestItem()));
+
+        InMemoryMetrics.CollectionMetrics stats = metrics.getCollections().get("items");
+        assertEquals(stats.getOperations().get("find"), Long.valueOf(1));
+        assertEquals(stats.getOperations().get("findOne"), Long.valueOf(1));
+        assertEquals(stats.getOperations().get("insert"), Long.valueOf(1));
+        assertEquals(stats.getCursorWaitNanos().getCount(), 2);
+        assertEquals(stats.getEncodeBytes().getCount(), 1);
+        assertEquals(stats.getEncodeBytes().getSum(), size);
+        assertEquals(stats.getDecodeBytes().getCount(), 0); // fake cursor skips decoding
+    }
+
+    @Test
+    public void testTracer() throws Exception {
+        final List<String> slow = new ArrayList<String>();
+        OperationTracer tracer = new OperationTracer(0, TimeUnit.MILLISECONDS, 1) {
+            @Override
+            protected void slow(String operation, String tag, long nanos, StackTraceElement callSite, DBObject explain) {
+                assertEquals(callSite.getClassName(), GsonDBCollectionTest.class.getName());
+                slow.add(operation);
+            }
+        };
+        DBCursor cursor = mockCursor(0, 3, -1);
+        DBCollection collection = mock(DBCollection.class);
+        when(collection.getName()).thenReturn("items");
+        when(collection.find(any(DBObject.class), any(DBObject.class))).thenReturn(cursor);
+        GsonDBCollection<TestItem> items = new GsonDBCollection<TestItem>(collection, TestItem.class, new Gson());
+        items.setTracer(tracer);
+
+        GsonDBCollection<TestItem>.Cursor iterator = items.find(new BasicDBObject("n", 1)).iterator();
+        iterator.next();
+        iterator.close();
+        verify(cursor).comment(OperationTracer.tag("items", "find", new BasicDBObject("n", 1)));
+        verify(cursor).explain();
+        items.find(new BasicDBObject("n", 2)).comment("mine").iterator().close();
+        verify(cursor).comment("mine");
+        items.updateOne(new BasicDBObject("n", 3), new BasicDBObject("$set", new BasicDBObject("n", 4)));
+        items.removeAll(new BasicDBObject("s", new BasicDBObject("$in", Arrays.asList(1, 2))));
+
+        assertEquals(slow, Arrays.asList("items.find {n: ?}", "items.find {n: ?}", "items.update {n: ?}",
+            "items.remove {s: {$in: ?}}"));
+        assertEquals(tracer.getLatencies().keySet(), new TreeSet<String>(slow));
+        assertEquals(tracer.getLatencies().get("items.find {n: ?}").getCount(), 2);
+    }
+
+    @Test
+    public void testTracerExhausted() throws Exception {
+        final List<String> slow = new ArrayList<String>();
+        OperationTracer tracer = new OperationTracer(0, TimeUnit.MILLISECONDS, 0) {
+            @Override
+            protected void slow(String operation, String tag, long nanos, StackTraceElement callSite, DBObject explain) {
+                slow.add(operation);
+            }
+        };
+        DBCursor cursor = mockCursor(0, 2, -1);
+        DBCollection collection = mock(DBCollection.class);
+        when(collection.getName()).thenReturn("items");
+        when(collection.find(any(DBObject.class), any(DBObject.class))).thenReturn(cursor);
+        when(cursor.getQuery()).thenReturn(new BasicDBObject("stored", 1));
+        GsonDBCollection<TestItem> items = new GsonDBCollection<TestItem>(collection, TestItem.class, new Gson());
+        items.setTracer(tracer);
+
+        GsonDBCollection<TestItem>.Cursor iterator = items.find(new BasicDBObject("n", 1)).iterator();
+        while (iterator.hasNext()) {
+            iterator.next();
+        }
+        assertEquals(slow, Collections.singletonList("items.find {n: ?}"), "Exhausted cursor should be reported");
+        iterator.close();
+        assertEquals(slow.size(), 1, "Cursor should be reported once");
+    }
+
+    private GsonDBCollection<TestItem> rangeItems() {
+        DBCollection collection = mock(DBCollection.class);
+        when(collection.find(any(DBObject.class), any(DBObject.class))).thenAnswer(new Answer<DBCursor>() {
+            @Override
+            public DBCursor answer(InvocationOnMock invocation) throws Throwable {
+                DBObject range = (DBObject) ((DBObject) invocation.getArguments()[0]).get("_id");
+                Integer from = range != null? (Integer) range.get("$gte"): null;
+                Integer to = range != null? (Integer) range.get("$lt"): null;
+                return mockCursor(from != null? from: 0, to != null? to: 1000, -1);
+            }
+        });
+        return new GsonDBCollection<TestItem>(collection, TestItem.class, new Gson());
+    }
+
+    private GsonDBCollection<TestItem>.QueryBuilder items(DBCursor cursor) {
+        DBCollection collection = mock(DBCollection.class);
+        when(collection.find(any(DBObject.class), any(DBObject.class))).thenReturn(cursor);
+        return new GsonDBCollection<TestItem>(collection, TestItem.class, new Gson()).find(new BasicDBObject());
+    }
+
+    private static DBCursor mockCursor(int from, int to, int failAt) {
+        return mock(DBCursor.class, new FakeCursor(from, to, failAt));
+    }
+
+    /**
+     * Cursor over documents {_id: n, n: n} which supports _id sort and skip.
+     */
+    private static class FakeCursor implements Answer<Object> {
+        private final int failAt;
+        private int from;
+        private int to;
+        private boolean descending;
+        private DBDecoderFactory decoder;
+
+        private FakeCursor(int from, int to, int failAt) {
+            this.from = from;
+            this.to = to;
+            this.failAt = failAt;
+        }
+
+        @Override
+        public Object answer(InvocationOnMock invocation) throws Throwable {
+            String method = invocation.getMethod().getName();
+            Object[] args = invocation.getArguments();
+            if (method.equals("hasNext")) {
+                return from < to;
+            } else if (method.equals("next")) {
+                return next(descending? --to: from++);
+            } else if (method.equals("sort")) {
+                descending = ((Number) ((DBObject) args[0]).get("_id")).intValue() < 0;
+            } else if (method.equals("skip")) {
+                if (descending) {
+                    to -= (Integer) args[0];
+                } else {
+                    from += (Integer) args[0];
+                }
+            } else if (method.equals("setDecoderFactory")) {
+                decoder = (DBDecoderFactory) args[0];
+            } else if (invocation.getMethod().getReturnType() != DBCursor.class) {
+                return RETURNS_DEFAULTS.answer(invocation);
+            }
+            return invocation.getMock();
+        }
+
+        private DBObject next(int n) {
+            if (n == failAt) {
+                throw new MongoException("Test failure");
+            }
+            if (decoder == null) {
+                TestItem item = new TestItem();
+                item.n = n;
+                return new GsonWrapper(item); // collection default decoder
+            }
+            OutputBuffer buffer = new BasicOutputBuffer();
+            new DefaultDBEncoder().writeObject(buffer, new BasicDBObject("_id", n).append("n", n));
+            return decoder.create().decode(buffer.toByteArray(), (DBCollection) null);
+        }
+    }
+
+    public static class TestItem {
+        public int n;
+    }
+
+    public static class TestView {
+        @SerializedName("_id")
+        public int id;
+    }
+
+    /**
+     * @return document written by collection encoder and read back by collection decoder
+     */
+    public static <T> T roundTrip(GsonDBCollection<T> collection, T document) {
+        return decode(collection, encode(collection, document));
+    }
+
+    /**
+     * @return BSON of document written by collection encoder, with aliases and adapters applied
+     */
+    public static byte[] encode(GsonDBCollection<?> collection, Object document) {
+        return collection.encode(document instanceof DBObject? (DBObject) document: new GsonWrapper(document)).getBytes();
+    }
+
+    /**
+     * @return document read by collection decoder as it reads query results
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> T decode(GsonDBCollection<T> collection, byte[] bytes) {
+        DBObject decoded = collection.new GsonDBDecoder().decode(bytes, collection.getDBCollection());
+        return (T) (decoded instanceof GsonWrapper? ((GsonWrapper) decoded).getPojo(): decoded);
+    }
+
     public static void assertBytes(byte[] actual, byte[] expected) {
         if (!Arrays.equals(actual, expected)) {
 
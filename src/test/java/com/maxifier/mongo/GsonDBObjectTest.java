@@ -0,0 +1,86 @@
+/*
+ * Copyright (c) 2008-2015 Maxifier Ltd. All Rights Reserved.
+ */
+package com.maxifier.mongo;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.annotations.SerializedName;
+import org.bson.types.ObjectId;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * @author Konstantin Lyamshin (2015-02-10 14:21)
+ */
+public class GsonDBObjectTest extends org.testng.Assert {
+    private Gson gson;
+
+    @BeforeClass
+    public void setUp() throws Exception {
+        gson = GsonAdapters.configure(new GsonBuilder())
+            .registerTypeAdapterFactory(new GsonDBObject.AdapterFactory())
+            .create();
+    }
+
+    @Test
+    public void testKeyOrder() throws Exception {
+        TestObject o = new TestObject();
+        assertEquals(o.keySet().toArray(), new String[]{"_id", "n", "s", "list"});
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        TestObject o = new TestObject().init();
+        String json = gson.toJson(o);
+        assertEquals(json, "{\"_id\":{\"$oid\":\"cafebabe0000000000000000\"},\"n\":7,\"s\":\"str\",\"list\":[\"a\",\"b\"]}");
+
+        TestObject r = gson.fromJson(json, TestObject.class);
+        assertEquals(r.id, o.id);
+        assertEquals(r.n, o.n);
+        assertEquals(r.s, o.s);
+        assertEquals(r.values, o.values);
+    }
+
+    @Test
+    public void testReadUnordered() throws Exception {
+        TestObject r = gson.fromJson(
+            "{\"list\":[\"a\"],\"unknown\":{\"x\":[1,2]},\"s\":\"str\",\"_id\":{\"$oid\":\"cafebabe0000000000000000\"},\"n\":7}",
+            TestObject.class
+        );
+        assertEquals(r.id, new ObjectId("CAFEBABE0000000000000000"));
+        assertEquals(r.n, 7);
+        assertEquals(r.s, "str");
+        assertEquals(r.values, Arrays.asList("a"));
+    }
+
+    @Test
+    public void testReadPartial() throws Exception {
+        TestObject r = gson.fromJson("{\"s\":\"str\"}", TestObject.class);
+        assertNull(r.id);
+        assertEquals(r.n, 0);
+        assertEquals(r.s, "str");
+        assertNull(r.values);
+    }
+
+    @DBObjectFieldOrder({"n", "s"})
+    public static class TestObject extends GsonDBObject {
+        @Id
+        public ObjectId id;
+        @SerializedName("list")
+        public List<String> values;
+        public String s;
+        public int n;
+
+        public TestObject init() {
+            id = new ObjectId("CAFEBABE0000000000000000");
+            n = 7;
+            s = "str";
+            values = Arrays.asList("a", "b");
+            return this;
+        }
+    }
+}
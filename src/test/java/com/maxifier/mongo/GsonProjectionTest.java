@@ -0,0 +1,151 @@
+/*
+ * Copyright (c) 2008-2015 Maxifier Ltd. All Rights Reserved.
+ */
+package com.maxifier.mongo;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.TypeAdapter;
+import com.google.gson.annotations.JsonAdapter;
+import com.google.gson.annotations.SerializedName;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+import com.mongodb.BasicDBObject;
+import com.mongodb.BasicDBObjectBuilder;
+import com.mongodb.DBCollection;
+import org.bson.types.ObjectId;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+import static org.mockito.Mockito.mock;
+
+/**
+ * @author Konstantin Lyamshin (2015-02-19 15:10)
+ */
+public class GsonProjectionTest extends org.testng.Assert {
+    private Gson gson;
+
+    @BeforeClass
+    public void setUp() throws Exception {
+        gson = GsonAdapters.configure(new GsonBuilder()).create();
+    }
+
+    @Test
+    public void testPojo() throws Exception {
+        assertEquals(GsonProjection.of(gson, Order.class), new BasicDBObjectBuilder()
+            .add("_id", 1)
+            .add("c", 1)
+            .add("created", 1)
+            .add("items.sku", 1)
+            .add("items.qty", 1)
+            .add("tags", 1)
+            .add("attributes", 1)
+            .add("parent.created", 1)
+            .add("parent.items.sku", 1)
+            .add("parent.items.qty", 1)
+            .add("parent.tags", 1)
+            .add("parent.attributes", 1)
+            .add("parent.parent", 1)
+            .get());
+        assertSame(GsonProjection.of(gson, Order.class), GsonProjection.of(gson, Order.class));
+    }
+
+    @Test
+    public void testView() throws Exception {
+        assertEquals(GsonProjection.of(gson, OrderView.class), new BasicDBObject("c", 1).append("_id", 0));
+    }
+
+    @Test
+    public void testDBObject() throws Exception {
+        assertEquals(GsonProjection.of(gson, GsonDBObjectTest.TestObject.class), new BasicDBObjectBuilder()
+            .add("_id", 1)
+            .add("list", 1)
+            .add("s", 1)
+            .add("n", 1)
+            .get());
+    }
+
+    @Test
+    public void testCustomAdapter() throws Exception {
+        assertNull(GsonProjection.of(gson, ObjectId.class));
+        Gson custom = new GsonBuilder().registerTypeAdapter(Item.class, new TypeAdapter<Item>() {
+            @Override
+            public void write(JsonWriter out, Item value) throws IOException {
+                out.value(value.sku);
+            }
+
+            @Override
+            public Item read(JsonReader in) throws IOException {
+                Item item = new Item();
+                item.sku = in.nextString();
+                return item;
+            }
+        }).create();
+        assertNull(GsonProjection.of(custom, Item.class));
+        assertEquals(GsonProjection.of(custom, OrderView.class), GsonProjection.of(gson, OrderView.class));
+        assertEquals(GsonProjection.of(custom, Parent.class).get("items"), 1);
+    }
+
+    @Test
+    public void testFieldAdapter() throws Exception {
+        assertEquals(GsonProjection.of(gson, Archive.class), new BasicDBObjectBuilder()
+            .add("name", 1)
+            .add("report", 1)
+            .add("history", 1)
+            .add("_id", 0)
+            .get());
+    }
+
+    @Test
+    public void testOptIn() throws Exception {
+        GsonDBCollection<Order> orders = new GsonDBCollection<Order>(mock(DBCollection.class), Order.class, gson);
+        assertNull(orders.getProjection());
+        orders.setProjection(GsonProjection.of(gson, Order.class));
+        assertEquals(orders.getProjection().get("c"), 1);
+        assertNull(orders.view(OrderView.class).getProjection());
+    }
+
+    public static class Archive {
+        String name;
+        @JsonAdapter(GsonAdapters.CompressedAdapterFactory.class)
+        Item report; // stored as binary
+        Compressed<List<Item>> history;
+    }
+
+    public static class Order {
+        @SerializedName("_id")
+        ObjectId id;
+        @SerializedName("c")
+        String customer;
+        Date created;
+        Item[] items;
+        List<String> tags;
+        Map<String, Item> attributes;
+        Parent parent;
+        transient int cached;
+        static int counter;
+    }
+
+    public static class Parent {
+        Date created;
+        List<Item> items;
+        List<String> tags;
+        Map<String, Item> attributes;
+        Parent parent;
+    }
+
+    public static class Item {
+        String sku;
+        int qty;
+    }
+
+    public static class OrderView {
+        @SerializedName("c")
+        String customer;
+    }
+}
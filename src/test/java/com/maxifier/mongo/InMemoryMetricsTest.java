@@ -0,0 +1,70 @@
+/*
+ * Copyright (c) 2008-2015 Maxifier Ltd. All Rights Reserved.
+ */
+package com.maxifier.mongo;
+
+import org.testng.annotations.Test;
+
+import java.util.Map;
+
+/**
+ * @author Konstantin Lyamshin (2015-02-20 14:20)
+ */
+public class InMemoryMetricsTest extends org.testng.Assert {
+    @Test
+    public void testBuckets() throws Exception {
+        for (long v = 0; v < 100000; v++) {
+            int bucket = InMemoryMetrics.Histogram.bucket(v);
+            assertTrue(InMemoryMetrics.Histogram.lowerBound(bucket) <= v, "value " + v);
+            assertTrue(InMemoryMetrics.Histogram.lowerBound(bucket + 1) > v, "value " + v);
+        }
+        assertEquals(InMemoryMetrics.Histogram.bucket(7), 7);
+        assertEquals(InMemoryMetrics.Histogram.bucket(8), 8);
+        assertEquals(InMemoryMetrics.Histogram.bucket(16), 16);
+        assertEquals(InMemoryMetrics.Histogram.bucket(18), 17);
+        assertTrue(InMemoryMetrics.Histogram.bucket(Long.MAX_VALUE) < (64 - 3) * 8);
+    }
+
+    @Test
+    public void testHistogram() throws Exception {
+        InMemoryMetrics.Histogram histogram = new InMemoryMetrics.Histogram();
+        assertEquals(histogram.getQuantile(0.5), 0);
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i);
+        }
+        histogram.record(-1);
+        assertEquals(histogram.getCount(), 1001);
+        assertEquals(histogram.getSum(), 500500);
+        long p50 = histogram.getQuantile(0.5);
+        assertTrue(p50 >= 500 && p50 <= 500 * 1.125, "p50 " + p50);
+        long p99 = histogram.getQuantile(0.99);
+        assertTrue(p99 >= 990 && p99 <= 990 * 1.125, "p99 " + p99);
+        assertEquals(histogram.getQuantile(0), 0);
+        assertTrue(histogram.getQuantile(1) >= 1000);
+    }
+
+    @Test
+    public void testCollections() throws Exception {
+        InMemoryMetrics metrics = new InMemoryMetrics();
+        metrics.operation("a", "find");
+        metrics.operation("a", "find");
+        metrics.operation("a", "insert");
+        metrics.operation(null, "find");
+        metrics.encoded("a", 100, 1000);
+        metrics.decoded("b", 200, 2000);
+        metrics.batch("b", 101);
+        metrics.cursorWait("b", 3000);
+
+        Map<String, InMemoryMetrics.CollectionMetrics> collections = metrics.getCollections();
+        assertEquals(collections.keySet().toString(), "[, a, b]");
+        assertEquals(collections.get("a").getOperations().toString(), "{find=2, insert=1}");
+        assertEquals(collections.get("").getOperations().toString(), "{find=1}");
+        assertEquals(collections.get("a").getEncodeBytes().getSum(), 100);
+        assertEquals(collections.get("a").getEncodeNanos().getSum(), 1000);
+        assertEquals(collections.get("b").getDecodeBytes().getSum(), 200);
+        assertEquals(collections.get("b").getDecodeNanos().getSum(), 2000);
+        assertEquals(collections.get("b").getBatchDocuments().getSum(), 101);
+        assertEquals(collections.get("b").getCursorWaitNanos().getSum(), 3000);
+        assertEquals(collections.get("b").getDecodeBytes().getCount(), 1);
+    }
+}
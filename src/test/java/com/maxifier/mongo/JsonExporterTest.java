@@ -0,0 +1,156 @@
+/*
+ * Copyright (c) 2008-2015 Maxifier Ltd. All Rights Reserved.
+ */
+package com.maxifier.mongo;
+
+import com.mongodb.BasicDBObjectBuilder;
+import com.mongodb.DBObject;
+import com.mongodb.DefaultDBEncoder;
+import org.bson.io.BasicOutputBuffer;
+import org.bson.types.Binary;
+import org.bson.types.ObjectId;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * @author Konstantin Lyamshin (2015-02-12 17:20)
+ */
+public class JsonExporterTest extends org.testng.Assert {
+    private static byte[] encode(DBObject dbObject) {
+        BasicOutputBuffer buffer = new BasicOutputBuffer();
+        new DefaultDBEncoder().writeObject(buffer, dbObject);
+        return buffer.toByteArray();
+    }
+
+    private static List<byte[]> documents(int count) {
+        List<byte[]> documents = new ArrayList<byte[]>(count);
+        for (int i = 0; i < count; i++) {
+            documents.add(encode(new BasicDBObjectBuilder()
+                .add("_id", i)
+                .add("s", "doc" + i)
+                .add("l", (long) i << 33)
+                .add("a", Arrays.asList(i, "x"))
+                .get()));
+        }
+        return documents;
+    }
+
+    @Test
+    public void testWriteDocument() throws Exception {
+        Date date = new Date(1423745000123L);
+        byte[] document = encode(new BasicDBObjectBuilder()
+            .add("_id", new ObjectId("cafebabe0000000000000000"))
+            .add("nl", null)
+            .add("s", "str")
+            .add("b", true)
+            .add("i", 7)
+            .add("l", 99999999999L)
+            .add("d", 1.5)
+            .add("dt", date)
+            .add("bin", new Binary((byte) 0x80, new byte[]{1, 2, 3}))
+            .push("o").add("a", Arrays.asList(1, "2")).pop()
+            .get());
+
+        StringWriter out = new StringWriter();
+        assertEquals(new JsonExporter().export(Arrays.asList(document).iterator(), out), 1);
+        assertEquals(out.toString(), "{\"_id\":{\"$oid\":\"cafebabe0000000000000000\"},\"nl\":null,\"s\":\"str\"," +
+            "\"b\":true,\"i\":7,\"l\":{\"$numberLong\":99999999999},\"d\":1.5," +
+            "\"dt\":" + GsonAdapters.DATE_ADAPTER.toJson(date) + "," +
+            "\"bin\":{\"$binary\":\"AQID\",\"$type\":-128},\"o\":{\"a\":[1,\"2\"]}}\n");
+    }
+
+    @Test
+    public void testLargeBinary() throws Exception {
+        byte[] data = new byte[10000];
+        new Random(42).nextBytes(data);
+        byte[] document = encode(new BasicDBObjectBuilder()
+            .add("s", "binary")
+            .add("bin", new Binary(data))
+            .get());
+
+        final int[] maxWrite = {0};
+        StringWriter out = new StringWriter() {
+            @Override
+            public void write(char[] cbuf, int off, int len) {
+                maxWrite[0] = Math.max(maxWrite[0], len);
+                super.write(cbuf, off, len);
+            }
+
+            @Override
+            public void write(String str, int off, int len) {
+                maxWrite[0] = Math.max(maxWrite[0], len);
+                super.write(str, off, len);
+            }
+        };
+        assertEquals(new JsonExporter().export(Arrays.asList(document).iterator(), out), 1);
+        assertEquals(out.toString(), "{\"s\":\"binary\",\"bin\":{\"$binary\":\"" +
+            GsonAdapters.Base64Codec.encode(data) + "\",\"$type\":0}}\n");
+        assertTrue(maxWrite[0] <= 4096, "Binary is written in chunks");
+    }
+
+    @Test
+    public void testNonFiniteDoubles() throws Exception {
+        byte[] document = encode(new BasicDBObjectBuilder()
+            .add("nan", Double.NaN)
+            .add("inf", Double.POSITIVE_INFINITY)
+            .add("ninf", Double.NEGATIVE_INFINITY)
+            .get());
+        String expected = "{\"nan\":{\"$numberDouble\":\"NaN\"},\"inf\":{\"$numberDouble\":\"Infinity\"}," +
+            "\"ninf\":{\"$numberDouble\":\"-Infinity\"}}\n";
+
+        StringWriter out = new StringWriter();
+        assertEquals(new JsonExporter().export(Arrays.asList(document, document).iterator(), out), 2);
+        assertEquals(out.toString(), expected + expected);
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            StringWriter parallel = new StringWriter();
+            assertEquals(new JsonExporter(executor, 1).export(Arrays.asList(document, document).iterator(), parallel), 2);
+            assertEquals(parallel.toString(), expected + expected);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testParallelOrder() throws Exception {
+        List<byte[]> documents = documents(1000);
+        StringWriter serial = new StringWriter();
+        assertEquals(new JsonExporter().export(documents.iterator(), serial), 1000);
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            StringWriter parallel = new StringWriter();
+            assertEquals(new JsonExporter(executor, 2).export(documents.iterator(), parallel), 1000);
+            assertEquals(parallel.toString(), serial.toString());
+        } finally {
+            executor.shutdown();
+        }
+        assertTrue(serial.toString().startsWith("{\"_id\":0,\"s\":\"doc0\",\"l\":{\"$numberLong\":0},\"a\":[0,\"x\"]}\n"));
+    }
+
+    @Test
+    public void testExportStream() throws Exception {
+        List<byte[]> documents = documents(3);
+        ByteArrayOutputStream dump = new ByteArrayOutputStream();
+        for (byte[] document : documents) {
+            dump.write(document);
+        }
+        StringWriter expected = new StringWriter();
+        new JsonExporter().export(documents.iterator(), expected);
+
+        StringWriter out = new StringWriter();
+        assertEquals(new JsonExporter().export(new ByteArrayInputStream(dump.toByteArray()), out), 3);
+        assertEquals(out.toString(), expected.toString());
+    }
+}
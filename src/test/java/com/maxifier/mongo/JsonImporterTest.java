@@ -0,0 +1,123 @@
+/*
+ * Copyright (c) 2008-2015 Maxifier Ltd. All Rights Reserved.
+ */
+package com.maxifier.mongo;
+
+import com.mongodb.*;
+import org.bson.io.BasicOutputBuffer;
+import org.bson.types.Binary;
+import org.bson.types.ObjectId;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.testng.annotations.Test;
+
+import java.io.BufferedReader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+
+/**
+ * @author Konstantin Lyamshin (2015-02-13 15:10)
+ */
+public class JsonImporterTest extends org.testng.Assert {
+    private static byte[] encode(DBObject dbObject) {
+        BasicOutputBuffer buffer = new BasicOutputBuffer();
+        new DefaultDBEncoder().writeObject(buffer, dbObject);
+        return buffer.toByteArray();
+    }
+
+    private static DBCollection collect(final List<byte[]> inserted) {
+        DBCollection dbc = mock(DBCollection.class);
+        doAnswer(new Answer<Object>() {
+            @Override
+            public Object answer(InvocationOnMock invocation) throws Throwable {
+                @SuppressWarnings("unchecked")
+                List<DBObject> documents = (List<DBObject>) invocation.getArguments()[0];
+                InsertOptions options = (InsertOptions) invocation.getArguments()[1];
+                assertSame(options.getDbEncoder(), RawDBObject.ENCODER);
+                synchronized (inserted) {
+                    for (DBObject document : documents) {
+                        inserted.add(((RawDBObject) document).getBytes());
+                    }
+                }
+                return null;
+            }
+        }).when(dbc).insert(any(List.class), any(InsertOptions.class));
+        return dbc;
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        byte[] document = encode(new BasicDBObjectBuilder()
+            .add("_id", new ObjectId("cafebabe0000000000000000"))
+            .add("s", "str")
+            .add("b", true)
+            .add("i", 7)
+            .add("l", 99999999999L)
+            .add("sl", 5L)
+            .add("d", 1.0)
+            .add("nan", Double.NaN)
+            .add("inf", Double.POSITIVE_INFINITY)
+            .add("ninf", Double.NEGATIVE_INFINITY)
+            .add("dt", new Date(1423745000123L))
+            .add("bin", new Binary((byte) 0x80, new byte[]{1, 2, 3}))
+            .push("o").add("a", Arrays.asList(1, "2")).pop()
+            .get());
+        StringWriter json = new StringWriter();
+        new JsonExporter().export(Arrays.asList(document).iterator(), json);
+
+        List<byte[]> inserted = new ArrayList<byte[]>();
+        long count = new JsonImporter().load(
+            new BufferedReader(new StringReader(json.toString() + "\n")), collect(inserted), WriteConcern.ACKNOWLEDGED);
+        assertEquals(count, 1);
+        assertEquals(inserted.size(), 1);
+        assertEquals(inserted.get(0), document);
+    }
+
+    @Test
+    public void testParallel() throws Exception {
+        StringBuilder json = new StringBuilder();
+        for (int i = 0; i < 2500; i++) {
+            json.append("{\"_id\":").append(i).append(",\"l\":{\"$numberLong\":").append(i).append("}}\n");
+        }
+
+        List<byte[]> inserted = new ArrayList<byte[]>();
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            long count = new JsonImporter(executor, 3, 100).load(
+                new BufferedReader(new StringReader(json.toString())), collect(inserted), WriteConcern.ACKNOWLEDGED);
+            assertEquals(count, 2500);
+        } finally {
+            executor.shutdown();
+        }
+
+        assertEquals(inserted.size(), 2500);
+        Set<Integer> ids = new HashSet<Integer>();
+        DBDecoder decoder = new DefaultDBDecoder();
+        for (byte[] bytes : inserted) {
+            DBObject o = decoder.decode(bytes, (DBCollection) null);
+            assertEquals(((Number) o.get("l")).longValue(), ((Integer) o.get("_id")).longValue());
+            assertTrue(o.get("l") instanceof Long);
+            ids.add((Integer) o.get("_id"));
+        }
+        assertEquals(ids.size(), 2500);
+    }
+
+    @Test
+    public void testInvalidLine() throws Exception {
+        List<byte[]> inserted = new ArrayList<byte[]>();
+        try {
+            new JsonImporter().load(
+                new BufferedReader(new StringReader("{\"a\":1}\n\n[1]\n")), collect(inserted), WriteConcern.ACKNOWLEDGED);
+            fail();
+        } catch (MongoSerializationException e) {
+            assertTrue(e.getMessage().contains("line 3"), e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright (c) 2008-2015 Maxifier Ltd. All Rights Reserved.
+ */
+package com.maxifier.mongo;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.BasicDBObjectBuilder;
+import org.testng.annotations.Test;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author Konstantin Lyamshin (2015-02-20 18:10)
+ */
+public class OperationTracerTest extends org.testng.Assert {
+    @Test
+    public void testShape() throws Exception {
+        assertEquals(OperationTracer.shape(null), "{}");
+        assertEquals(OperationTracer.shape(new BasicDBObject()), "{}");
+        BasicDBList in = new BasicDBList();
+        in.add(1);
+        in.add(2);
+        assertEquals(OperationTracer.shape(new BasicDBObjectBuilder()
+            .add("a", 1)
+            .push("b").add("$gt", 2).add("$lt", 3).pop()
+            .add("c", in)
+            .add("$or", Arrays.asList(new BasicDBObject("d", "x"), new BasicDBObject("e", new BasicDBObject("$exists", true))))
+            .add("f", Arrays.asList(1, 2))
+            .get()), "{a: ?, b: {$gt: ?, $lt: ?}, c: ?, $or: [{d: ?}, {e: {$exists: ?}}], f: ?}");
+    }
+
+    @Test
+    public void testTag() throws Exception {
+        assertEquals(OperationTracer.tag("items", "find", new BasicDBObject("n", 1)),
+            OperationTracer.tag("items", "find", new BasicDBObject("n", 2)));
+        assertNotEquals(OperationTracer.tag("items", "find", new BasicDBObject("n", 1)),
+            OperationTracer.tag("items", "find", new BasicDBObject("s", 1)));
+        assertTrue(OperationTracer.tag("items", "find", null).startsWith("items.find#"));
+    }
+
+    @Test
+    public void testMaxShapes() throws Exception {
+        OperationTracer tracer = new OperationTracer(1, TimeUnit.HOURS, 0);
+        for (int i = 0; i < OperationTracer.MAX_SHAPES + 10; i++) {
+            tracer.traced("items", "find", new BasicDBObject("k" + i, 1), 1, null);
+        }
+        tracer.traced("items", "find", new BasicDBObject("k0", 2), 1, null);
+        assertEquals(tracer.getLatencies().size(), OperationTracer.MAX_SHAPES + 1);
+        assertEquals(tracer.getLatencies().get(OperationTracer.OTHER_SHAPES).getCount(), 10);
+        assertEquals(tracer.getLatencies().get("items.find {k0: ?}").getCount(), 2);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testInvalidRate() throws Exception {
+        new OperationTracer(1, TimeUnit.SECONDS, 2);
+    }
+}
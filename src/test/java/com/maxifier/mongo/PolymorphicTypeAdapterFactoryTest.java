@@ -0,0 +1,167 @@
+/*
+ * Copyright (c) 2008-2015 Maxifier Ltd. All Rights Reserved.
+ */
+package com.maxifier.mongo;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonSyntaxException;
+import com.google.gson.stream.JsonReader;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.DefaultDBDecoder;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import static org.mockito.Mockito.mock;
+
+/**
+ * @author Konstantin Lyamshin (2015-02-26 12:40)
+ */
+public class PolymorphicTypeAdapterFactoryTest extends org.testng.Assert {
+    private Gson gson;
+
+    @BeforeClass
+    public void setUp() throws Exception {
+        gson = GsonAdapters.configure(new GsonBuilder())
+            .registerTypeAdapterFactory(PolymorphicTypeAdapterFactory.of(Event.class, "_t")
+                .subtype(Created.class, "created")
+                .subtype(Renamed.class, "renamed")
+                .subtype(Event.class, "event"))
+            .create();
+    }
+
+    @Test
+    public void testJson() throws Exception {
+        Stream stream = new Stream();
+        stream.last = new Renamed("a", "b");
+        stream.events = Arrays.asList(new Created("a", new Date(1000)), stream.last, new Event(), null);
+
+        String json = gson.toJson(stream);
+        assertTrue(json.contains("{\"_t\":\"renamed\",\"from\":\"a\",\"to\":\"b\"}"), json);
+        assertTrue(json.contains("{\"_t\":\"event\"}"), json);
+
+        Stream parsed = gson.fromJson(json, Stream.class);
+        assertEquals(parsed.last, stream.last);
+        assertEquals(parsed.events, stream.events);
+    }
+
+    @Test
+    public void testBson() throws Exception {
+        GsonDBCollection<Event> events = new GsonDBCollection<Event>(mock(DBCollection.class), Event.class, gson);
+
+        Created created = new Created("a", new Date(1000));
+        byte[] bytes = GsonDBCollectionTest.encode(events, created);
+        DBObject stored = new DefaultDBDecoder().decode(bytes, (DBCollection) null);
+        assertEquals(stored.keySet().toString(), "[_t, name, at]");
+        assertEquals(stored.get("_t"), "created");
+
+        assertEquals(GsonDBCollectionTest.decode(events, bytes), created);
+    }
+
+    @Test
+    public void testPrefetchString() throws Exception {
+        GsonBuffer.PrefetchableReader reader = new GsonBuffer.PrefetchableReader(
+            new JsonReader(new StringReader("[{\"_t\": \"x\", \"a\": 1}, {\"_t\": \"y\"}, {\"a\": {}}, {}]")));
+        reader.beginArray();
+        assertEquals(reader.peekObjectString(), "x");
+        assertEquals(reader.peekObjectString(), "x");
+        reader.beginObject();
+        assertEquals(reader.nextName(), "_t");
+        assertEquals(reader.nextString(), "x");
+        assertEquals(reader.nextName(), "a");
+        assertEquals(reader.nextInt(), 1);
+        reader.endObject();
+        assertEquals(reader.peekObjectString(), "y");
+        reader.skipValue();
+        assertNull(reader.peekObjectString());
+        assertEquals(reader.peekObjectField(), "a");
+        reader.skipValue();
+        assertNull(reader.peekObjectString());
+        reader.skipValue();
+        reader.endArray();
+    }
+
+    @Test
+    public void testErrors() throws Exception {
+        try {
+            gson.fromJson("{\"_t\": \"deleted\"}", Event.class);
+            fail("Unknown subtype accepted");
+        } catch (JsonSyntaxException e) {
+            assertTrue(e.getMessage().contains("subtype deleted"), e.getMessage());
+        }
+        try {
+            gson.fromJson("{\"name\": \"a\", \"_t\": \"created\"}", Event.class);
+            fail("Discriminator accepted out of order");
+        } catch (JsonSyntaxException e) {
+            assertTrue(e.getMessage().contains("Discriminator _t expected"), e.getMessage());
+        }
+        try {
+            gson.toJson(new Event() { }, Event.class);
+            fail("Unregistered subtype accepted");
+        } catch (IllegalArgumentException ignored) {
+        }
+        try {
+            PolymorphicTypeAdapterFactory.of(Event.class, "_t").subtype(Created.class, "a").subtype(Renamed.class, "a");
+            fail("Duplicate label accepted");
+        } catch (IllegalArgumentException ignored) {
+        }
+    }
+
+    public static class Stream {
+        Event last;
+        List<Event> events;
+    }
+
+    public static class Event {
+        @Override
+        public boolean equals(Object o) {
+            return o != null && o.getClass() == getClass() && toString().equals(o.toString());
+        }
+
+        @Override
+        public int hashCode() {
+            return toString().hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return getClass().getSimpleName();
+        }
+    }
+
+    public static class Created extends Event {
+        String name;
+        Date at;
+
+        public Created(String name, Date at) {
+            this.name = name;
+            this.at = at;
+        }
+
+        @Override
+        public String toString() {
+            return "Created{" + name + ", " + at.getTime() + "}";
+        }
+    }
+
+    public static class Renamed extends Event {
+        String from;
+        String to;
+
+        public Renamed(String from, String to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        public String toString() {
+            return "Renamed{" + from + ", " + to + "}";
+        }
+    }
+}
@@ -0,0 +1,300 @@
+/*
+ * Copyright (c) 2008-2015 Maxifier Ltd. All Rights Reserved.
+ */
+package com.maxifier.mongo;
+
+import com.google.gson.Gson;
+import com.mongodb.*;
+import org.mockito.ArgumentCaptor;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.maxifier.mongo.ValueDBObject.inc;
+import static com.maxifier.mongo.ValueDBObject.set;
+import static com.maxifier.mongo.ValueDBObject.v;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.RETURNS_MOCKS;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * @author Konstantin Lyamshin (2015-02-17 15:30)
+ */
+public class UpdateCoalescerTest extends org.testng.Assert {
+    private ScheduledExecutorService executor;
+    private final Map<Object, DBObject> written = new HashMap<Object, DBObject>();
+    private int executed;
+    private volatile CountDownLatch release; // blocks bulk execution if set
+    private final AtomicInteger executing = new AtomicInteger();
+    private volatile boolean overlapped;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        executor = new ScheduledThreadPoolExecutor(1);
+        written.clear();
+        executed = 0;
+        release = null;
+        overlapped = false;
+    }
+
+    @AfterMethod
+    public void tearDown() throws Exception {
+        executor.shutdown();
+    }
+
+    private GsonDBCollection<Object> collection() {
+        DBCollection dbc = mock(DBCollection.class);
+        when(dbc.initializeUnorderedBulkOperation()).thenAnswer(new Answer<BulkWriteOperation>() {
+            @Override
+            public BulkWriteOperation answer(InvocationOnMock invocation) throws Throwable {
+                BulkWriteOperation op = mock(BulkWriteOperation.class);
+                when(op.find(any(DBObject.class))).thenAnswer(new Answer<BulkWriteRequestBuilder>() {
+                    @Override
+                    public BulkWriteRequestBuilder answer(InvocationOnMock invocation) throws Throwable {
+                        final Object id = ((DBObject) invocation.getArguments()[0]).get("_id");
+                        return mock(BulkWriteRequestBuilder.class, new Answer<Object>() {
+                            @Override
+                            public Object answer(InvocationOnMock invocation) throws Throwable {
+                                if (invocation.getMethod().getName().equals("updateOne")) {
+                                    synchronized (written) {
+                                        assertNull(written.put(id, (DBObject) invocation.getArguments()[0]));
+                                    }
+                                }
+                                return null;
+                            }
+                        });
+                    }
+                });
+                when(op.execute()).thenAnswer(new Answer<BulkWriteResult>() {
+                    @Override
+                    public BulkWriteResult answer(InvocationOnMock invocation) throws Throwable {
+                        if (executing.incrementAndGet() > 1) {
+                            overlapped = true;
+                        }
+                        try {
+                            if (release != null) {
+                                release.await();
+                            }
+                        } finally {
+                            executing.decrementAndGet();
+                        }
+                        synchronized (written) {
+                            executed++;
+                            written.notifyAll();
+                        }
+                        return null;
+                    }
+                });
+                return op;
+            }
+        });
+        return new GsonDBCollection<Object>(dbc, Object.class, new Gson());
+    }
+
+    @Test
+    public void testMerge() throws Exception {
+        UpdateCoalescer coalescer = new UpdateCoalescer(collection(), executor, 100, 1, TimeUnit.HOURS, false);
+        for (int i = 0; i < 1000; i++) {
+            coalescer.updateOne(v("_id", i % 2), inc("hits", 1));
+        }
+        coalescer.updateOne(v("_id", 0), set("name", "a"));
+        coalescer.updateOne(v("_id", 0), set("name", "b"));
+        coalescer.updateOne(v("_id", 0), inc("big", Integer.MAX_VALUE));
+        coalescer.updateOne(v("_id", 0), inc("big", 1));
+        coalescer.updateOne(v("_id", 1), set("score", 10));
+        coalescer.updateOne(v("_id", 1), inc("score", 2.5));
+        assertEquals(coalescer.getPendingCount(), 2);
+        coalescer.close();
+
+        assertEquals(executed, 1);
+        assertEquals(written.get(0), new BasicDBObject()
+            .append("$inc", new BasicDBObject("hits", 500).append("big", Integer.MAX_VALUE + 1L))
+            .append("$set", new BasicDBObject("name", "b")));
+        assertEquals(written.get(1), new BasicDBObject()
+            .append("$inc", new BasicDBObject("hits", 500))
+            .append("$set", new BasicDBObject("score", 12.5)));
+
+        try {
+            coalescer.updateOne(v("_id", 0), inc("hits", 1));
+            fail();
+        } catch (IllegalStateException ignored) {
+        }
+    }
+
+    @Test
+    public void testRejected() throws Exception {
+        UpdateCoalescer coalescer = new UpdateCoalescer(collection(), executor, 100, 1, TimeUnit.HOURS, false);
+        try {
+            coalescer.updateOne(v("a", 1), inc("hits", 1));
+            fail();
+        } catch (IllegalArgumentException ignored) {
+        }
+        try {
+            coalescer.updateOne(v("_id", 1), ValueDBObject.push("list", 1));
+            fail();
+        } catch (IllegalArgumentException ignored) {
+        }
+        try {
+            coalescer.updateOne(v("_id", 1), inc("hits", "1"));
+            fail();
+        } catch (IllegalArgumentException ignored) {
+        }
+        assertEquals(coalescer.getPendingCount(), 0);
+        coalescer.close();
+    }
+
+    @Test
+    public void testRejectedMerge() throws Exception {
+        UpdateCoalescer coalescer = new UpdateCoalescer(collection(), executor, 100, 1, TimeUnit.HOURS, false);
+        coalescer.updateOne(v("_id", 1), set("name", "a"));
+        try {
+            coalescer.updateOne(v("_id", 1), new BasicDBObject("$set", new BasicDBObject("x", 1))
+                .append("$inc", new BasicDBObject("name", 1)));
+            fail();
+        } catch (IllegalArgumentException ignored) {
+        }
+        try {
+            coalescer.updateOne(v("_id", 2), new BasicDBObject("$set", new BasicDBObject("n", "b"))
+                .append("$inc", new BasicDBObject("n", 1)));
+            fail();
+        } catch (IllegalArgumentException ignored) {
+        }
+        assertEquals(coalescer.getPendingCount(), 1);
+        coalescer.close();
+        assertEquals(written.get(1), new BasicDBObject("$set", new BasicDBObject("name", "a")));
+    }
+
+    @Test
+    public void testOverlappedPaths() throws Exception {
+        UpdateCoalescer coalescer = new UpdateCoalescer(collection(), executor, 100, 1, TimeUnit.HOURS, false);
+        coalescer.updateOne(v("_id", 1), inc("a.b", 1));
+        coalescer.updateOne(v("_id", 2), set("a", v("b", 1)));
+        coalescer.updateOne(v("_id", 1), set("a", v("b", 5)));
+        assertEquals(executed, 1);
+        assertEquals(written.get(1), new BasicDBObject("$inc", new BasicDBObject("a.b", 1)));
+        assertEquals(written.get(2), new BasicDBObject("$set", new BasicDBObject("a", v("b", 1))));
+
+        written.clear();
+        coalescer.updateOne(v("_id", 1), inc("ab", 1)); // not a subpath
+        coalescer.updateOne(v("_id", 1), inc("a.b", 1));
+        assertEquals(executed, 2);
+        assertEquals(written.get(1), new BasicDBObject()
+            .append("$inc", new BasicDBObject("ab", 1))
+            .append("$set", new BasicDBObject("a", v("b", 5))));
+
+        written.clear();
+        coalescer.close();
+        assertEquals(written.get(1), new BasicDBObject("$inc", new BasicDBObject("a.b", 1)));
+    }
+
+    @Test
+    public void testFlushRejected() throws Exception {
+        ScheduledExecutorService executor = mock(ScheduledExecutorService.class, RETURNS_MOCKS);
+        doThrow(new RejectedExecutionException()).doNothing().when(executor).execute(any(Runnable.class));
+        UpdateCoalescer coalescer = new UpdateCoalescer(collection(), executor, 1, 1, TimeUnit.HOURS, false);
+        coalescer.updateOne(v("_id", 1), inc("hits", 1));
+        coalescer.updateOne(v("_id", 2), inc("hits", 1));
+        verify(executor, times(2)).execute(any(Runnable.class)); // flush is scheduled again
+        assertEquals(coalescer.getPendingCount(), 2);
+    }
+
+    @Test
+    public void testFlushScheduledOnce() throws Exception {
+        ScheduledExecutorService executor = mock(ScheduledExecutorService.class, RETURNS_MOCKS);
+        UpdateCoalescer coalescer = new UpdateCoalescer(collection(), executor, 2, 1, TimeUnit.HOURS, false);
+        for (int i = 0; i < 10; i++) {
+            coalescer.updateOne(v("_id", i), inc("hits", 1));
+        }
+        ArgumentCaptor<Runnable> task = ArgumentCaptor.forClass(Runnable.class);
+        verify(executor).execute(task.capture());
+        task.getValue().run();
+        assertEquals(written.size(), 10);
+
+        for (int i = 0; i < 2; i++) {
+            coalescer.updateOne(v("_id", i), inc("hits", 1));
+        }
+        verify(executor, times(2)).execute(any(Runnable.class)); // next batch
+    }
+
+    @Test
+    public void testSerializedFlush() throws Exception {
+        final UpdateCoalescer coalescer = new UpdateCoalescer(collection(), executor, 100, 1, TimeUnit.HOURS, false);
+        release = new CountDownLatch(1);
+        Runnable flush = new Runnable() {
+            @Override
+            public void run() {
+                coalescer.flush();
+            }
+        };
+        coalescer.updateOne(v("_id", 1), set("n", 1));
+        Thread first = new Thread(flush);
+        first.start();
+        while (executing.get() == 0) {
+            Thread.sleep(1);
+        }
+        coalescer.updateOne(v("_id", 2), set("n", 2));
+        Thread second = new Thread(flush);
+        second.start();
+        second.join(100);
+        assertTrue(second.isAlive(), "Second flush should wait for the first one");
+        release.countDown();
+        first.join(10000);
+        second.join(10000);
+        assertFalse(overlapped);
+        assertEquals(executed, 2);
+        coalescer.close();
+    }
+
+    @Test
+    public void testFlushBySize() throws Exception {
+        UpdateCoalescer coalescer = new UpdateCoalescer(collection(), executor, 10, 1, TimeUnit.HOURS, false);
+        for (int i = 0; i < 10; i++) {
+            coalescer.updateOne(v("_id", i), inc("hits", 1));
+        }
+        waitExecuted(1);
+        assertEquals(written.size(), 10);
+        coalescer.close();
+    }
+
+    @Test
+    public void testFlushByTimer() throws Exception {
+        UpdateCoalescer coalescer = new UpdateCoalescer(collection(), executor, 10, 10, TimeUnit.MILLISECONDS, false);
+        coalescer.updateOne(v("_id", 1), inc("hits", 1));
+        waitExecuted(1);
+        assertEquals(written.get(1), new BasicDBObject("$inc", new BasicDBObject("hits", 1)));
+        coalescer.close();
+    }
+
+    private void waitExecuted(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        synchronized (written) {
+            while (executed < count && System.currentTimeMillis() < deadline) {
+                written.wait(100);
+            }
+            assertEquals(executed, count);
+        }
+    }
+
+    @Test
+    public void testAdd() throws Exception {
+        assertEquals(UpdateCoalescer.add(1, 2), 3);
+        assertEquals(UpdateCoalescer.add(1L, 2), 3L);
+        assertEquals(UpdateCoalescer.add(Integer.MAX_VALUE, 1), Integer.MAX_VALUE + 1L);
+        assertEquals(UpdateCoalescer.add(1, 0.5), 1.5);
+    }
+}